@@ -0,0 +1,32 @@
+package com.microsoft.vs.diagnostic.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmark suite with 1, 8 and 32 threads and the GC profiler attached,
+ * so every result is reported together with its allocation rate (gc.alloc.rate.norm).
+ *
+ * Usage: java -cp target/benchmarks.jar com.microsoft.vs.diagnostic.benchmark.BenchmarkRunner [include regex]
+ */
+public class BenchmarkRunner {
+    private static final int[] THREAD_COUNTS = {1, 8, 32};
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*";
+        for(int threads : THREAD_COUNTS) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-result-" + threads + "-threads.json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.microsoft.vs.diagnostic.benchmark;
+
+import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.vs.diagnostic.ConcurrentContinuousDiagnosticProvider;
+import com.microsoft.vs.diagnostic.DeviceClientWrapper;
+import com.microsoft.vs.diagnostic.DiagnosticEncoding;
+import com.microsoft.vs.diagnostic.IDiagnosticProvider;
+import com.microsoft.vs.diagnostic.InMemoryDeviceClient;
+import com.microsoft.vs.diagnostic.LatencyHistogram;
+import com.microsoft.vs.diagnostic.SamplingRules;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Simulates a fleet of devices, each with its own DeviceClientWrapper and provider, sending at a
+ * fixed rate, and reports what the fleet achieved over the measurement window: acknowledged
+ * throughput (OK and OK_EMPTY only; other outcomes are reported as failed), send-to-acknowledgement
+ * latency percentiles of the acknowledged messages and, separately, of every completed message,
+ * process CPU time per completed message and bytes allocated per completed message (summed over
+ * all live threads, so it includes the generator building the messages, and misses threads that
+ * exit during the window).
+ *
+ * Devices run over an InMemoryDeviceClient unless connections= names a file of device
+ * connection strings for a local stand-in broker, one per line. Each device keeps at most
+ * window messages unacknowledged; sends due while the window is full are counted as skipped
+ * instead of queued, so a slow hub shows up as lower throughput rather than as a backlog.
+ *
+ * Usage: java -cp target/benchmarks.jar com.microsoft.vs.diagnostic.benchmark.FleetLoadGenerator [name=value ...]
+ * <pre>
+ * devices=100          simulated devices (in-memory only)
+ * rate=10              messages per second per device
+ * payload=256          message body bytes
+ * sampling=10          sampling percentage, fractions allowed
+ * rules=               sampling rules, e.g. type=alarm:100
+ * encoding=PROPERTIES  PROPERTIES or COMPACT
+ * warmup=5             seconds before measuring
+ * duration=30          measured seconds
+ * window=1000          unacknowledged messages per device
+ * threads=#cpus        sender threads
+ * latencyMin=0         in-memory hub latency, micros
+ * latencyMax=0
+ * loss=0               in-memory loss fraction
+ * throttle=0           in-memory throttle, messages per second per device
+ * connections=         file of connection strings, instead of the in-memory hub
+ * protocol=MQTT        protocol for connections=
+ * </pre>
+ */
+public class FleetLoadGenerator {
+    private final Map<String, String> options;
+    private final List<SimulatedDevice> devices = new ArrayList<SimulatedDevice>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram completionLatency = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLongArray outcomes = new AtomicLongArray(IotHubStatusCode.values().length);
+
+    public FleetLoadGenerator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for(String arg : args) {
+            int eq = arg.indexOf('=');
+            if(eq <= 0) {
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new FleetLoadGenerator(options).run();
+    }
+
+    public void run() throws Exception {
+        double rate = number("rate", 10);
+        int payload = (int) number("payload", 256);
+        long warmupNanos = TimeUnit.MILLISECONDS.toNanos((long) (number("warmup", 5) * 1000));
+        long durationNanos = TimeUnit.MILLISECONDS.toNanos((long) (number("duration", 30) * 1000));
+        int threads = (int) number("threads", Runtime.getRuntime().availableProcessors());
+        if(rate <= 0 || durationNanos <= 0) {
+            throw new IllegalArgumentException("rate and duration must be positive");
+        }
+
+        createDevices(payload);
+        for(SimulatedDevice device : devices) {
+            device.wrapper.open();
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fleet-sender-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long periodNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        Random random = new Random(1);
+        List<ScheduledFuture<?>> schedules = new ArrayList<ScheduledFuture<?>>();
+        for(final SimulatedDevice device : devices) {
+            // spread the devices over the period so they do not send in lockstep
+            long offset = (long) (random.nextDouble() * periodNanos);
+            schedules.add(senders.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    device.send();
+                }
+            }, offset, periodNanos, TimeUnit.NANOSECONDS));
+        }
+
+        TimeUnit.NANOSECONDS.sleep(warmupNanos);
+        latency.reset();
+        completionLatency.reset();
+        Snapshot start = new Snapshot();
+        TimeUnit.NANOSECONDS.sleep(durationNanos);
+        Snapshot end = new Snapshot();
+        long[] latencySnapshot = {latency.getP50(), latency.getValueAtPercentile(90), latency.getP99(), latency.getP999(), latency.getMaxValue(),
+                completionLatency.getP50(), completionLatency.getP99(), completionLatency.getMaxValue()};
+
+        for(ScheduledFuture<?> schedule : schedules) {
+            schedule.cancel(false);
+        }
+        senders.shutdown();
+        senders.awaitTermination(10, TimeUnit.SECONDS);
+        for(SimulatedDevice device : devices) {
+            device.drain(10, TimeUnit.SECONDS);
+            device.wrapper.close();
+        }
+        report(rate, payload, start, end, latencySnapshot);
+    }
+
+    private void createDevices(int payload) throws IOException, URISyntaxException {
+        double sampling = number("sampling", 10);
+        int window = (int) number("window", 1000);
+        DiagnosticEncoding encoding = DiagnosticEncoding.valueOf(text("encoding", "PROPERTIES"));
+        String rules = text("rules", "");
+        byte[] body = new byte[payload];
+        new Random(1).nextBytes(body);
+
+        List<String> connections = new ArrayList<String>();
+        String connectionFile = text("connections", "");
+        if(!connectionFile.isEmpty()) {
+            for(String line : Files.readAllLines(Paths.get(connectionFile), StandardCharsets.UTF_8)) {
+                if(!line.trim().isEmpty()) {
+                    connections.add(line.trim());
+                }
+            }
+        }
+        int count = connections.isEmpty() ? (int) number("devices", 100) : connections.size();
+        IotHubClientProtocol protocol = IotHubClientProtocol.valueOf(text("protocol", "MQTT"));
+        for(int i = 0; i < count; i++) {
+            ConcurrentContinuousDiagnosticProvider provider = new ConcurrentContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, 0);
+            provider.setSamplingRatePartsPerMillion((int) Math.round(sampling * IDiagnosticProvider.PARTS_PER_MILLION_PER_PERCENT));
+            provider.setEncoding(encoding);
+            if(!rules.isEmpty()) {
+                provider.setSamplingRules(SamplingRules.parse(rules));
+            }
+            DeviceClientWrapper wrapper;
+            InMemoryDeviceClient client = null;
+            if(connections.isEmpty()) {
+                client = new InMemoryDeviceClient(IotHubClientProtocol.MQTT, i);
+                client.setLatency((long) number("latencyMin", 0), (long) number("latencyMax", number("latencyMin", 0)));
+                client.setLossRate(number("loss", 0));
+                client.setThrottleRate(number("throttle", 0));
+                wrapper = new DeviceClientWrapper("fleet-" + i, client, provider);
+            } else {
+                wrapper = new DeviceClientWrapper(connections.get(i), protocol, provider);
+            }
+            devices.add(new SimulatedDevice(wrapper, client, body, window));
+        }
+    }
+
+    private void report(double rate, int payload, Snapshot start, Snapshot end, long[] latencyMicros) {
+        double seconds = (end.nanos - start.nanos) / 1e9;
+        long messages = end.completed - start.completed;
+        long acknowledged = end.acknowledged - start.acknowledged;
+        line("devices", devices.size());
+        line("offered", String.format("%.1f msg/s (%s per device, %d bytes)", rate * devices.size(), rate, payload));
+        line("measured", String.format("%.1f s", seconds));
+        line("sent", end.sent - start.sent);
+        line("skipped, window full", end.skipped - start.skipped);
+        line("acknowledged", String.format("%d (%.1f msg/s)", acknowledged, acknowledged / seconds));
+        line("failed", String.format("%d (%.1f msg/s)", messages - acknowledged, (messages - acknowledged) / seconds));
+        line("latency p50 us", latencyMicros[0]);
+        line("latency p90 us", latencyMicros[1]);
+        line("latency p99 us", latencyMicros[2]);
+        line("latency p99.9 us", latencyMicros[3]);
+        line("latency max us", latencyMicros[4]);
+        line("all outcomes, us", "p50 " + latencyMicros[5] + ", p99 " + latencyMicros[6] + ", max " + latencyMicros[7]);
+        line("cpu per message us", messages > 0 && start.cpuNanos >= 0
+                ? String.format("%.2f", (end.cpuNanos - start.cpuNanos) / 1000.0 / messages) : "n/a");
+        line("allocated per message", messages > 0 && start.allocatedBytes >= 0
+                ? (end.allocatedBytes - start.allocatedBytes) / messages + " bytes" : "n/a");
+        Map<IotHubStatusCode, Long> byStatus = new EnumMap<IotHubStatusCode, Long>(IotHubStatusCode.class);
+        for(IotHubStatusCode status : IotHubStatusCode.values()) {
+            long count = end.outcomes[status.ordinal()] - start.outcomes[status.ordinal()];
+            if(count > 0) {
+                byStatus.put(status, count);
+            }
+        }
+        line("outcomes", byStatus);
+
+        long sampled = 0;
+        long accepted = 0;
+        long lost = 0;
+        long throttled = 0;
+        for(SimulatedDevice device : devices) {
+            sampled += device.wrapper.getStatistics().getMessagesSampled();
+            if(device.client != null) {
+                accepted += device.client.getAcceptedCount();
+                lost += device.client.getLostCount();
+                throttled += device.client.getThrottledCount();
+            }
+        }
+        line("sampled, whole run", sampled);
+        if(devices.get(0).client != null) {
+            line("hub, whole run", "accepted " + accepted + ", lost " + lost + ", throttled " + throttled);
+        }
+    }
+
+    private static void line(String label, Object value) {
+        System.out.println(String.format("%-24s%s", label + ":", value));
+    }
+
+    private double number(String name, double defaultValue) {
+        String value = options.get(name);
+        return value == null || value.isEmpty() ? defaultValue : Double.parseDouble(value);
+    }
+
+    private String text(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private final class SimulatedDevice implements IotHubEventCallback {
+        final DeviceClientWrapper wrapper;
+        final InMemoryDeviceClient client;
+        final byte[] body;
+        final int window;
+        final Semaphore inFlight;
+
+        SimulatedDevice(DeviceClientWrapper wrapper, InMemoryDeviceClient client, byte[] body, int window) {
+            this.wrapper = wrapper;
+            this.client = client;
+            this.body = body;
+            this.window = window;
+            this.inFlight = new Semaphore(window);
+        }
+
+        void send() {
+            if(!inFlight.tryAcquire()) {
+                skipped.incrementAndGet();
+                return;
+            }
+            sent.incrementAndGet();
+            try {
+                wrapper.sendEventAsync(new Message(body), this, System.nanoTime());
+            } catch (RuntimeException e) {
+                inFlight.release();
+                outcomes.incrementAndGet(IotHubStatusCode.ERROR.ordinal());
+            }
+        }
+
+        public void execute(IotHubStatusCode status, Object context) {
+            long micros = (System.nanoTime() - (Long) context) / 1000L;
+            completionLatency.recordValue(micros);
+            if(status == IotHubStatusCode.OK || status == IotHubStatusCode.OK_EMPTY) {
+                latency.recordValue(micros);
+            }
+            outcomes.incrementAndGet(status.ordinal());
+            inFlight.release();
+        }
+
+        void drain(long timeout, TimeUnit unit) throws InterruptedException {
+            if(inFlight.tryAcquire(window, timeout, unit)) {
+                inFlight.release(window);
+            }
+        }
+    }
+
+    private final class Snapshot {
+        final long nanos = System.nanoTime();
+        final long sent = FleetLoadGenerator.this.sent.get();
+        final long skipped = FleetLoadGenerator.this.skipped.get();
+        final long[] outcomes = new long[FleetLoadGenerator.this.outcomes.length()];
+        final long completed;
+        final long acknowledged;
+        final long cpuNanos = processCpuNanos();
+        final long allocatedBytes = allocatedBytes();
+
+        Snapshot() {
+            long total = 0;
+            for(int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = FleetLoadGenerator.this.outcomes.get(i);
+                total += outcomes[i];
+            }
+            completed = total;
+            acknowledged = outcomes[IotHubStatusCode.OK.ordinal()] + outcomes[IotHubStatusCode.OK_EMPTY.ordinal()];
+        }
+    }
+
+    private static long processCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if(os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        if(!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for(long bytes : hotspot.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if(bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+}
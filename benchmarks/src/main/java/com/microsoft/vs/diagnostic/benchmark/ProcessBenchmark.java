@@ -0,0 +1,72 @@
+package com.microsoft.vs.diagnostic.benchmark;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.vs.diagnostic.BaseDiagnosticProvider;
+import com.microsoft.vs.diagnostic.DiagnosticEncoding;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of BaseDiagnosticProvider.Process for sampled and unsampled messages carrying
+ * a varying number of user properties, in both stamp encodings. newMessage() is the baseline to subtract,
+ * it builds the same message without running the provider.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessBenchmark {
+    @Param({"true", "false"})
+    public boolean sampled;
+
+    @Param({"0", "4", "16", "64"})
+    public int propertyCount;
+
+    @Param({"PROPERTIES", "COMPACT"})
+    public DiagnosticEncoding encoding;
+
+    private BaseDiagnosticProvider diagnosticProvider;
+    private String[] propertyNames;
+    private String[] propertyValues;
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        final boolean needSampling = sampled;
+        diagnosticProvider = new BaseDiagnosticProvider() {
+            @Override
+            public boolean NeedSampling() {
+                return needSampling;
+            }
+        };
+        diagnosticProvider.setEncoding(encoding);
+        propertyNames = new String[propertyCount];
+        propertyValues = new String[propertyCount];
+        for(int i = 0; i < propertyCount; i++) {
+            propertyNames[i] = "property" + i;
+            propertyValues[i] = "value" + i;
+        }
+        body = "{\"deviceId\":\"benchmark\",\"temperature\":21.5}".getBytes();
+    }
+
+    @Benchmark
+    public Message newMessage() {
+        return buildMessage();
+    }
+
+    @Benchmark
+    public Message process() {
+        return diagnosticProvider.Process(buildMessage());
+    }
+
+    private Message buildMessage() {
+        Message message = new Message(body);
+        for(int i = 0; i < propertyNames.length; i++) {
+            message.setProperty(propertyNames[i], propertyValues[i]);
+        }
+        return message;
+    }
+}
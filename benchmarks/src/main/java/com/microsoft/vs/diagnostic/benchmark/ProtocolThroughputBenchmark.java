@@ -0,0 +1,71 @@
+package com.microsoft.vs.diagnostic.benchmark;
+
+import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.vs.diagnostic.ConcurrentContinuousDiagnosticProvider;
+import com.microsoft.vs.diagnostic.DeviceClientWrapper;
+import com.microsoft.vs.diagnostic.IDiagnosticProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acknowledged messages per second through DeviceClientWrapper for each transport protocol.
+ *
+ * Needs a reachable endpoint: pass the connection string of a device on a local stand-in
+ * broker (or a test hub) with java -Dbenchmark.connectionString=... (JMH forks inherit the
+ * JVM arguments). At most WINDOW messages are unacknowledged at any time, so the score is bounded
+ * by the acknowledgement rate rather than by how fast the SDK queue accepts messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ProtocolThroughputBenchmark {
+    private static final int WINDOW = 1000;
+
+    @Param({"MQTT", "AMQPS", "AMQPS_WS", "HTTPS"})
+    public String protocol;
+
+    @Param({"10"})
+    public int samplingRatePercentage;
+
+    private DeviceClientWrapper wrapper;
+    private final Semaphore window = new Semaphore(WINDOW);
+    private final IotHubEventCallback release = new IotHubEventCallback() {
+        public void execute(IotHubStatusCode status, Object context) {
+            window.release();
+        }
+    };
+    private byte[] body;
+
+    @Setup
+    public void setUp() throws Exception {
+        String connString = System.getProperty("benchmark.connectionString");
+        if(connString == null || connString.isEmpty()) {
+            throw new IllegalStateException("Set -Dbenchmark.connectionString to a device on a stand-in broker");
+        }
+        wrapper = new DeviceClientWrapper(connString, IotHubClientProtocol.valueOf(protocol),
+                new ConcurrentContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, samplingRatePercentage));
+        wrapper.open();
+        body = "{\"deviceId\":\"benchmark\",\"temperature\":21.5}".getBytes();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        // let outstanding messages drain before closing
+        window.tryAcquire(WINDOW, 30, TimeUnit.SECONDS);
+        wrapper.close();
+    }
+
+    @Benchmark
+    public void sendAcknowledged() throws InterruptedException {
+        window.acquire();
+        wrapper.sendEventAsync(new Message(body), release, null);
+    }
+}
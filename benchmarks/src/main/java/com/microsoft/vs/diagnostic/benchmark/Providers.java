@@ -0,0 +1,28 @@
+package com.microsoft.vs.diagnostic.benchmark;
+
+import com.microsoft.vs.diagnostic.*;
+
+/**
+ * Maps the provider names used in benchmark parameters to provider instances.
+ */
+final class Providers {
+    private Providers() {
+    }
+
+    static IDiagnosticProvider create(String name, int samplingRatePercentage) {
+        IDiagnosticProvider.SamplingRateSource source = IDiagnosticProvider.SamplingRateSource.Client;
+        if(name.equals("continuous")) {
+            return new ContinuousDiagnosticProvider(source, samplingRatePercentage);
+        }
+        if(name.equals("concurrentContinuous")) {
+            return new ConcurrentContinuousDiagnosticProvider(source, samplingRatePercentage);
+        }
+        if(name.equals("probability")) {
+            return new ProbabilityDiagnosticProvider(source, samplingRatePercentage);
+        }
+        if(name.equals("concurrentProbability")) {
+            return new ConcurrentProbabilityDiagnosticProvider(source, samplingRatePercentage);
+        }
+        throw new IllegalArgumentException("Unknown provider " + name);
+    }
+}
@@ -0,0 +1,46 @@
+package com.microsoft.vs.diagnostic.benchmark;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.vs.diagnostic.IDiagnosticProvider;
+import com.microsoft.vs.diagnostic.ReservedProperties;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reserved property check on a message without reserved properties (the common case, and the
+ * worst case for the scan). threeLookups is the check Process used to do, one getProperty call
+ * per reserved key; singlePass is the current ReservedProperties lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReservedPropertyBenchmark {
+    @Param({"0", "4", "16", "64"})
+    public int propertyCount;
+
+    private Message message;
+
+    @Setup
+    public void setUp() {
+        message = new Message("body");
+        for(int i = 0; i < propertyCount; i++) {
+            message.setProperty("property" + i, "value" + i);
+        }
+    }
+
+    @Benchmark
+    public boolean threeLookups() {
+        return message.getProperty(IDiagnosticProvider.KEY_CORRELATION_ID) != null
+                || message.getProperty(IDiagnosticProvider.KEY_BEFORE_SEND_REQUEST) != null
+                || message.getProperty(IDiagnosticProvider.KEY_VERSION) != null;
+    }
+
+    @Benchmark
+    public boolean singlePass() {
+        return ReservedProperties.findReserved(message) != null;
+    }
+}
@@ -0,0 +1,36 @@
+package com.microsoft.vs.diagnostic.benchmark;
+
+import com.microsoft.vs.diagnostic.IDiagnosticProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the sampling decision alone (NeedSampling()), per provider and rate.
+ * All threads share one provider, the way DeviceClientWrapper uses it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplingBenchmark {
+    @Param({"continuous", "concurrentContinuous", "probability", "concurrentProbability"})
+    public String provider;
+
+    @Param({"1", "10", "50", "100"})
+    public int samplingRatePercentage;
+
+    private IDiagnosticProvider diagnosticProvider;
+
+    @Setup
+    public void setUp() {
+        diagnosticProvider = Providers.create(provider, samplingRatePercentage);
+    }
+
+    @Benchmark
+    public boolean needSampling() {
+        return diagnosticProvider.NeedSampling();
+    }
+}
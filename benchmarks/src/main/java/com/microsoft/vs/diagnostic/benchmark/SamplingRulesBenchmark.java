@@ -0,0 +1,45 @@
+package com.microsoft.vs.diagnostic.benchmark;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.vs.diagnostic.SamplingRule;
+import com.microsoft.vs.diagnostic.SamplingRules;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rule matching on a message whose type matches the last rule. All rules test the same
+ * property, so the cost should not grow with ruleCount.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplingRulesBenchmark {
+    @Param({"1", "16", "256"})
+    public int ruleCount;
+
+    private SamplingRules rules;
+    private Message message;
+
+    @Setup
+    public void setUp() {
+        List<SamplingRule> list = new ArrayList<SamplingRule>();
+        for(int i = 0; i < ruleCount; i++) {
+            list.add(new SamplingRule("type", "kind" + i, 1000));
+        }
+        rules = new SamplingRules(list);
+        message = new Message("body");
+        message.setProperty("priority", "high");
+        message.setProperty("type", "kind" + (ruleCount - 1));
+    }
+
+    @Benchmark
+    public SamplingRule match() {
+        return rules.match(message);
+    }
+}
@@ -0,0 +1,63 @@
+package com.microsoft.vs.diagnostic.benchmark;
+
+import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.vs.diagnostic.ConcurrentContinuousDiagnosticProvider;
+import com.microsoft.vs.diagnostic.DeviceClientWrapper;
+import com.microsoft.vs.diagnostic.IDiagnosticProvider;
+import com.microsoft.vs.diagnostic.InMemoryDeviceClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of DeviceClientWrapper.sendEventAsync, from stamping to the acknowledgement callback,
+ * over an InMemoryDeviceClient with no simulated latency, so only the wrapper is measured.
+ * As in ProtocolThroughputBenchmark at most WINDOW messages are unacknowledged at any time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendEventBenchmark {
+    private static final int WINDOW = 1000;
+
+    @Param({"0", "10", "100"})
+    public int samplingRatePercentage;
+
+    private InMemoryDeviceClient client;
+    private DeviceClientWrapper wrapper;
+    private final Semaphore window = new Semaphore(WINDOW);
+    private final IotHubEventCallback release = new IotHubEventCallback() {
+        public void execute(IotHubStatusCode status, Object context) {
+            window.release();
+        }
+    };
+    private byte[] body;
+
+    @Setup
+    public void setUp() throws Exception {
+        client = new InMemoryDeviceClient(IotHubClientProtocol.MQTT, 1);
+        wrapper = new DeviceClientWrapper("benchmark", client,
+                new ConcurrentContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, samplingRatePercentage));
+        wrapper.open();
+        body = "{\"deviceId\":\"benchmark\",\"temperature\":21.5}".getBytes();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        window.tryAcquire(WINDOW, 30, TimeUnit.SECONDS);
+        wrapper.close();
+    }
+
+    @Benchmark
+    public void sendEventAsync() throws InterruptedException {
+        window.acquire();
+        wrapper.sendEventAsync(new Message(body), release, null);
+    }
+}
@@ -0,0 +1,33 @@
+package com.microsoft.vs.diagnostic.it;
+
+import com.microsoft.vs.diagnostic.DiagnosticExecutors;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+public class MultiReleaseJarTest {
+
+    @Test
+    // The jar resolves DiagnosticExecutors to its Java 21 version
+    public void java21ExecutorsAreLoaded()
+    {
+        assertTrue(DiagnosticExecutors.isVirtualThreadSupported());
+        assertTrue(DiagnosticExecutors.class.getResource("DiagnosticExecutors.class").toString()
+                .contains("META-INF/versions/21/"));
+    }
+
+    @Test
+    // Callbacks and blocking operations run on virtual threads
+    public void executorsUseVirtualThreads() throws Exception
+    {
+        ExecutorService[] executors = {DiagnosticExecutors.newCallbackExecutor(), DiagnosticExecutors.sharedBlockingExecutor()};
+        for(ExecutorService executor : executors) {
+            assertTrue(executor.submit(() -> Thread.currentThread().isVirtual()).get(5, TimeUnit.SECONDS));
+        }
+        executors[0].shutdown();
+        assertTrue(executors[0].awaitTermination(5, TimeUnit.SECONDS));
+    }
+}
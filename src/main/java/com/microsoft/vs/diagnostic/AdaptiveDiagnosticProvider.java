@@ -0,0 +1,125 @@
+package com.microsoft.vs.diagnostic;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Samples towards a target number of diagnostic messages per second instead of a fixed share.
+ *
+ * Message throughput is measured over a sliding window split into buckets. Each time a bucket
+ * is complete the sampling rate is recomputed as target / measured rate, capped by
+ * the provider sampling rate, so a device bursting to thousands of messages per second and a
+ * device sending one message a minute both produce about the same number of samples. Sampling
+ * itself is deterministic: every message adds the current rate to a shared fixed-point credit
+ * and is sampled when the credit crosses a whole number. Messages decided by a sampling rule
+ * count towards the measured throughput but do not take credit.
+ */
+public class AdaptiveDiagnosticProvider extends BaseDiagnosticProvider {
+    public static final long DEFAULT_WINDOW_MILLIS = 5000;
+    private static final int WINDOW_BUCKETS = 10;
+    private static final long RATE_SCALE = 1000000L;
+
+    private volatile double targetSamplesPerSecond;
+    private final long bucketMicros;
+    private final long originMicros;
+    private final AtomicLongArray bucketEpochs = new AtomicLongArray(WINDOW_BUCKETS);
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(WINDOW_BUCKETS);
+    private final AtomicLong credit = new AtomicLong();
+    private volatile long effectiveRateScaled;
+
+    public AdaptiveDiagnosticProvider(SamplingRateSource samplingRateSource, double targetSamplesPerSecond) {
+        this(samplingRateSource, targetSamplesPerSecond, DEFAULT_WINDOW_MILLIS, MonotonicClock.getInstance());
+    }
+
+    public AdaptiveDiagnosticProvider(SamplingRateSource samplingRateSource, double targetSamplesPerSecond, long windowMillis, DiagnosticClock clock) {
+        super(samplingRateSource, 100);
+        if(windowMillis < WINDOW_BUCKETS) {
+            throw new IllegalArgumentException("Window must be at least " + WINDOW_BUCKETS + " milliseconds");
+        }
+        setTargetSamplesPerSecond(targetSamplesPerSecond);
+        setClock(clock);
+        this.bucketMicros = windowMillis * 1000L / WINDOW_BUCKETS;
+        this.originMicros = clock.currentTimeMicros();
+        for(int i = 0; i < WINDOW_BUCKETS; i++) {
+            bucketEpochs.set(i, -1);
+        }
+        // until the first bucket completes there is no throughput to adapt to
+        this.effectiveRateScaled = RATE_SCALE;
+    }
+
+    public double getTargetSamplesPerSecond() {
+        return targetSamplesPerSecond;
+    }
+
+    public void setTargetSamplesPerSecond(double targetSamplesPerSecond) {
+        if(targetSamplesPerSecond < 0 || Double.isNaN(targetSamplesPerSecond) || Double.isInfinite(targetSamplesPerSecond)) {
+            throw new IllegalArgumentException("Invalid target samples per second");
+        }
+        this.targetSamplesPerSecond = targetSamplesPerSecond;
+    }
+
+    /**
+     * The share of messages currently sampled, between 0 and 1.
+     */
+    public double getEffectiveSamplingRate() {
+        return (double) currentRate(getSettings()) / RATE_SCALE;
+    }
+
+    @Override
+    public boolean NeedSampling() {
+        DiagnosticSettings settings = getSettings();
+        if(!settings.isSamplingEnabled()) {
+            return false;
+        }
+        recordMessage();
+        long rate = currentRate(settings);
+        if(rate <= 0) {
+            return false;
+        }
+        long before = credit.getAndAdd(rate);
+        return (before + rate) / RATE_SCALE != before / RATE_SCALE;
+    }
+
+    @Override
+    protected void recordRuleMatch() {
+        recordMessage();
+    }
+
+    private long currentRate(DiagnosticSettings settings) {
+        return Math.min(effectiveRateScaled, RATE_SCALE * settings.getSamplingRatePartsPerMillion() / PARTS_PER_MILLION);
+    }
+
+    private void recordMessage() {
+        long epoch = (clock.currentTimeMicros() - originMicros) / bucketMicros;
+        int index = (int) (epoch % WINDOW_BUCKETS);
+        if(bucketEpochs.get(index) != epoch) {
+            synchronized (this) {
+                if(bucketEpochs.get(index) != epoch) {
+                    bucketCounts.set(index, 0);
+                    bucketEpochs.set(index, epoch);
+                    recomputeRate(epoch);
+                }
+            }
+        }
+        bucketCounts.incrementAndGet(index);
+    }
+
+    private void recomputeRate(long currentEpoch) {
+        long messages = 0;
+        for(int i = 0; i < WINDOW_BUCKETS; i++) {
+            long epoch = bucketEpochs.get(i);
+            if(epoch >= 0 && epoch < currentEpoch && epoch > currentEpoch - WINDOW_BUCKETS) {
+                messages += bucketCounts.get(i);
+            }
+        }
+        // idle buckets count as zero throughput, except before the window has been filled once
+        int buckets = (int) Math.min(WINDOW_BUCKETS - 1, currentEpoch);
+        if(buckets == 0 || messages == 0) {
+            effectiveRateScaled = RATE_SCALE;
+            return;
+        }
+        double messagesPerSecond = messages * 1000000.0 / (buckets * bucketMicros);
+        double rate = Math.min(1.0, targetSamplesPerSecond / messagesPerSecond);
+        effectiveRateScaled = (long) (rate * RATE_SCALE);
+    }
+}
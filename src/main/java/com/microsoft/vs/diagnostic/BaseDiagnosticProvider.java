@@ -2,40 +2,189 @@ package com.microsoft.vs.diagnostic;
 
 import com.microsoft.azure.sdk.iot.device.Message;
 
-import java.util.Date;
-import java.util.UUID;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by zhqqi on 3/23/2017.
  */
 public abstract class BaseDiagnosticProvider implements IDiagnosticProvider {
-    protected IDiagnosticProvider.SamplingRateSource samplingRateSource;
-    protected int samplingRatePercentage;
+    private final AtomicReference<DiagnosticSettings> settings = new AtomicReference<DiagnosticSettings>();
+    protected IdGenerator idGenerator;
+    protected DiagnosticClock clock;
+    protected TimestampFormat timestampFormat;
+    protected ReservedPropertyValidation reservedPropertyValidation;
+    protected DiagnosticEncoding encoding;
+    private final LongAdder processedCount = new LongAdder();
+    private final LongAdder sampledCount = new LongAdder();
+
+    /**
+     * The current sampling settings. Samplers read this once per decision so that every
+     * setting they look at comes from the same update.
+     */
+    public DiagnosticSettings getSettings() {
+        return settings.get();
+    }
+
+    /**
+     * Replaces all sampling settings in one step.
+     */
+    public void setSettings(DiagnosticSettings settings) {
+        if(settings == null) {
+            throw new IllegalArgumentException("Settings cannot be null");
+        }
+        this.settings.set(settings);
+    }
+
+    /**
+     * Replaces all sampling settings in one step if they are still expected.
+     */
+    public boolean compareAndSetSettings(DiagnosticSettings expected, DiagnosticSettings settings) {
+        if(settings == null) {
+            throw new IllegalArgumentException("Settings cannot be null");
+        }
+        return this.settings.compareAndSet(expected, settings);
+    }
 
     public boolean isServerSamplingTurnedOn() {
-        return serverSamplingTurnedOn;
+        return settings.get().isServerSamplingTurnedOn();
     }
 
     public void setServerSamplingTurnedOn(boolean serverSamplingTurnedOn) {
-        this.serverSamplingTurnedOn = serverSamplingTurnedOn;
+        DiagnosticSettings current;
+        do {
+            current = settings.get();
+        } while(!settings.compareAndSet(current, current.withServerSamplingTurnedOn(serverSamplingTurnedOn)));
     }
 
-    protected boolean serverSamplingTurnedOn;
-
     public IDiagnosticProvider.SamplingRateSource getSamplingRateSource() {
-        return samplingRateSource;
+        return settings.get().getSamplingRateSource();
     }
 
     public void setSamplingRateSource(SamplingRateSource samplingRateSource) {
-        this.samplingRateSource = samplingRateSource;
+        DiagnosticSettings current;
+        do {
+            current = settings.get();
+        } while(!settings.compareAndSet(current, current.withSamplingRateSource(samplingRateSource)));
     }
 
     public int getSamplingRatePercentage() {
-        return samplingRatePercentage;
+        return settings.get().getSamplingRatePercentage();
     }
 
     public void setSamplingRatePercentage(int samplingRatePercentage) {
-        this.samplingRatePercentage = samplingRatePercentage;
+        DiagnosticSettings current;
+        do {
+            current = settings.get();
+        } while(!settings.compareAndSet(current, current.withSamplingRatePercentage(samplingRatePercentage)));
+    }
+
+    public int getSamplingRatePartsPerMillion() {
+        return settings.get().getSamplingRatePartsPerMillion();
+    }
+
+    public boolean isSamplingRulesSupported() {
+        return true;
+    }
+
+    public SamplingRules getSamplingRules() {
+        return settings.get().getSamplingRules();
+    }
+
+    public void setSamplingRules(SamplingRules samplingRules) {
+        DiagnosticSettings current;
+        do {
+            current = settings.get();
+        } while(!settings.compareAndSet(current, current.withSamplingRules(samplingRules)));
+    }
+
+    /**
+     * Sets the sampling rate with a resolution of one message in a million. The percentage
+     * reported by getSamplingRatePercentage is this rate rounded down.
+     */
+    public void setSamplingRatePartsPerMillion(int samplingRatePartsPerMillion) {
+        DiagnosticSettings current;
+        do {
+            current = settings.get();
+        } while(!settings.compareAndSet(current, current.withSamplingRatePartsPerMillion(samplingRatePartsPerMillion)));
+    }
+
+    /**
+     * Sampling rate as a fraction between 0 and 1.
+     */
+    public double getSamplingRate() {
+        return (double) getSamplingRatePartsPerMillion() / PARTS_PER_MILLION;
+    }
+
+    public void setSamplingRate(double samplingRate) {
+        if(samplingRate > 1 || samplingRate < 0 || Double.isNaN(samplingRate)) {
+            throw new IllegalArgumentException("Invalid sampling rate");
+        }
+        setSamplingRatePartsPerMillion((int) Math.round(samplingRate * PARTS_PER_MILLION));
+    }
+
+    public IdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
+    public void setIdGenerator(IdGenerator idGenerator) {
+        if(idGenerator == null) {
+            throw new IllegalArgumentException("IdGenerator cannot be null");
+        }
+        this.idGenerator = idGenerator;
+    }
+
+    public DiagnosticClock getClock() {
+        return clock;
+    }
+
+    public void setClock(DiagnosticClock clock) {
+        if(clock == null) {
+            throw new IllegalArgumentException("Clock cannot be null");
+        }
+        this.clock = clock;
+    }
+
+    public TimestampFormat getTimestampFormat() {
+        return timestampFormat;
+    }
+
+    public void setTimestampFormat(TimestampFormat timestampFormat) {
+        if(timestampFormat == null) {
+            throw new IllegalArgumentException("TimestampFormat cannot be null");
+        }
+        this.timestampFormat = timestampFormat;
+    }
+
+    public ReservedPropertyValidation getReservedPropertyValidation() {
+        return reservedPropertyValidation;
+    }
+
+    public void setReservedPropertyValidation(ReservedPropertyValidation reservedPropertyValidation) {
+        if(reservedPropertyValidation == null) {
+            throw new IllegalArgumentException("ReservedPropertyValidation cannot be null");
+        }
+        this.reservedPropertyValidation = reservedPropertyValidation;
+    }
+
+    public DiagnosticEncoding getEncoding() {
+        return encoding;
+    }
+
+    public void setEncoding(DiagnosticEncoding encoding) {
+        if(encoding == null) {
+            throw new IllegalArgumentException("DiagnosticEncoding cannot be null");
+        }
+        this.encoding = encoding;
+    }
+
+    public long getProcessedCount() {
+        return processedCount.sum();
+    }
+
+    public long getSampledCount() {
+        return sampledCount.sum();
     }
 
     public BaseDiagnosticProvider() {
@@ -47,43 +196,126 @@ public abstract class BaseDiagnosticProvider implements IDiagnosticProvider {
         if(samplingRatePercentage > 100 || samplingRatePercentage < 0) {
             throw new IllegalArgumentException("Invalid percentage value");
         }
-        this.samplingRateSource = samplingRateSource;
-        this.samplingRatePercentage = samplingRatePercentage;
-        this.serverSamplingTurnedOn = false;
+        this.settings.set(new DiagnosticSettings(samplingRateSource, samplingRatePercentage * PARTS_PER_MILLION_PER_PERCENT, false));
+        this.idGenerator = new TimeOrderedIdGenerator();
+        this.clock = MonotonicClock.getInstance();
+        this.timestampFormat = TimestampFormat.DATE_STRING;
+        this.reservedPropertyValidation = ReservedPropertyValidation.SAMPLED_ONLY;
+        this.encoding = DiagnosticEncoding.PROPERTIES;
     }
 
     public boolean NeedSampling() {
-        if(samplingRateSource == SamplingRateSource.None) {
-            return false;
+        return settings.get().isSamplingEnabled();
+    }
+
+    /**
+     * Sampling decision for a particular message: the first sampling rule matching the
+     * message decides, and messages no rule matches fall back to NeedSampling().
+     */
+    public boolean NeedSampling(Message message) {
+        DiagnosticSettings settings = this.settings.get();
+        SamplingRules rules = settings.getSamplingRules();
+        if(rules.isEmpty()) {
+            return NeedSampling();
+        }
+        int rule = rules.matchIndex(message);
+        if(rule < 0) {
+            return NeedSampling();
         }
-        if(samplingRateSource == SamplingRateSource.Server && !serverSamplingTurnedOn) {
+        if(!settings.isSamplingEnabled()) {
             return false;
         }
-        return true;
+        recordRuleMatch();
+        return rules.sample(rule);
+    }
+
+    /**
+     * Called for every message a sampling rule decides on while sampling is enabled, in place
+     * of NeedSampling(), for samplers that keep track of the messages they see.
+     */
+    protected void recordRuleMatch() {
     }
 
     public Message Process(Message message) {
-        if(!NeedSampling()) {
+        processedCount.increment();
+        if(reservedPropertyValidation == ReservedPropertyValidation.ALWAYS) {
+            checkReservedProperties(message);
+        }
+        if(!NeedSampling(message)) {
             return message;
         }
 
-        if(message.getProperty(KEY_CORRELATION_ID) != null) {
-            throw new IllegalArgumentException("Property " + KEY_CORRELATION_ID+" is reserved.");
+        if(reservedPropertyValidation == ReservedPropertyValidation.SAMPLED_ONLY) {
+            checkReservedProperties(message);
+        }
+        if(encoding == DiagnosticEncoding.COMPACT) {
+            stampCompact(message, clock.currentTimeMicros());
+        } else {
+            stamp(message, timestampFormat.format(clock));
+        }
+        sampledCount.increment();
+        return message;
+    }
+
+    /**
+     * Same as calling Process on every message, but all sampling decisions and reserved
+     * property checks are made before any message is modified, and every sampled message
+     * of the batch shares a single before-send timestamp.
+     */
+    public List<Message> ProcessBatch(List<Message> messages) {
+        boolean[] sampled = new boolean[messages.size()];
+        int sampledInBatch = 0;
+        processedCount.add(sampled.length);
+        for(int i = 0; i < sampled.length; i++) {
+            if(reservedPropertyValidation == ReservedPropertyValidation.ALWAYS) {
+                checkReservedProperties(messages.get(i));
+            }
+            if(NeedSampling(messages.get(i))) {
+                if(reservedPropertyValidation == ReservedPropertyValidation.SAMPLED_ONLY) {
+                    checkReservedProperties(messages.get(i));
+                }
+                sampled[i] = true;
+                sampledInBatch++;
+            }
+        }
+        if(sampledInBatch == 0) {
+            return messages;
         }
 
-        if(message.getProperty(KEY_BEFORE_SEND_REQUEST) != null) {
-            throw new IllegalArgumentException("Property " + KEY_BEFORE_SEND_REQUEST+" is reserved.");
+        if(encoding == DiagnosticEncoding.COMPACT) {
+            long micros = clock.currentTimeMicros();
+            for(int i = 0; i < sampled.length; i++) {
+                if(sampled[i]) {
+                    stampCompact(messages.get(i), micros);
+                }
+            }
+        } else {
+            String timestamp = timestampFormat.format(clock);
+            for(int i = 0; i < sampled.length; i++) {
+                if(sampled[i]) {
+                    stamp(messages.get(i), timestamp);
+                }
+            }
         }
+        sampledCount.add(sampledInBatch);
+        return messages;
+    }
 
-        if(message.getProperty(KEY_VERSION) != null) {
-            throw new IllegalArgumentException("Property " + KEY_VERSION+" is reserved.");
+    protected void checkReservedProperties(Message message) {
+        String reserved = ReservedProperties.findReserved(message);
+        if(reserved != null) {
+            throw new IllegalArgumentException("Property " + reserved+" is reserved.");
         }
+    }
 
-        // add condition
-        message.setProperty(KEY_CORRELATION_ID, UUID.randomUUID().toString());
-        message.setProperty(KEY_BEFORE_SEND_REQUEST, new Date().toString());
+    protected void stamp(Message message, String timestamp) {
+        message.setProperty(KEY_CORRELATION_ID, idGenerator.nextId());
+        message.setProperty(KEY_BEFORE_SEND_REQUEST, timestamp);
         message.setProperty(KEY_VERSION, DIAGNOSTIC_VERSION);
-        return message;
+    }
+
+    protected void stampCompact(Message message, long beforeSendMicros) {
+        message.setProperty(KEY_COMPACT, CompactDiagnosticHeader.encode(idGenerator.nextId(), beforeSendMicros));
     }
 
 }
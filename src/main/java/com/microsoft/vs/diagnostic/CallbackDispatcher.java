@@ -0,0 +1,211 @@
+package com.microsoft.vs.diagnostic;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs user callbacks on an executor instead of the device SDK's I/O thread, so a slow handler
+ * delays only its own callbacks instead of every send and receive.
+ *
+ * Every ordering key gets its own serial lane: tasks of one key run one at a time, in submission
+ * order, on whatever executor thread picks the lane up, while different keys run in parallel, so
+ * a slow callback only holds up later callbacks with the same key. Callers that need ordering
+ * (all callbacks of one IotHubEventCallback, all twin property updates) use the same key. Keys
+ * are compared with equals; a lane is dropped as soon as it runs out of tasks. Lanes hand the
+ * thread back to the executor after a few tasks so one busy key cannot starve the others. If
+ * the executor rejects a lane, its tasks run on the caller thread.
+ *
+ * Queue delay (submission to start) and execution time of every task are recorded, in
+ * microseconds.
+ */
+public class CallbackDispatcher {
+    private static final int TASKS_PER_TURN = 32;
+    private static final Object NULL_KEY = new Object();
+
+    private final Executor executor;
+    private final ConcurrentMap<Object, Lane> lanes = new ConcurrentHashMap<Object, Lane>();
+    private final LatencyHistogram queueDelay = new LatencyHistogram();
+    private final LatencyHistogram executionTime = new LatencyHistogram();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public CallbackDispatcher(Executor executor) {
+        if(executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Runs task after every task previously dispatched with an equal orderingKey. A null key is
+     * a key like any other.
+     */
+    public void dispatch(Object orderingKey, Runnable task) {
+        Object key = orderingKey == null ? NULL_KEY : orderingKey;
+        Task queued = new Task(task, System.nanoTime());
+        pendingCount.incrementAndGet();
+        while(true) {
+            Lane lane = lanes.get(key);
+            if(lane == null) {
+                Lane created = new Lane(key);
+                lane = lanes.putIfAbsent(key, created);
+                if(lane == null) {
+                    lane = created;
+                }
+            }
+            if(lane.submit(queued)) {
+                return;
+            }
+            // the lane ran dry and is on its way out of the map; make way for a new one
+            lanes.remove(key, lane);
+        }
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Time from dispatch until the task started, in microseconds.
+     */
+    public LatencyHistogram getQueueDelayHistogram() {
+        return queueDelay;
+    }
+
+    /**
+     * Time the tasks took to run, in microseconds.
+     */
+    public LatencyHistogram getExecutionTimeHistogram() {
+        return executionTime;
+    }
+
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    /**
+     * Tasks that threw. The exception is printed and the lane carries on.
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Times the executor refused to run a lane, which then ran on the dispatching thread.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Keys with tasks queued or running.
+     */
+    int getLaneCount() {
+        return lanes.size();
+    }
+
+    private void run(Task task) {
+        long start = System.nanoTime();
+        queueDelay.recordValue((start - task.dispatchNanos) / 1000L);
+        try {
+            task.runnable.run();
+        } catch (RuntimeException e) {
+            failedCount.incrementAndGet();
+            System.out.println("Callback failed: " + e);
+        } finally {
+            executionTime.recordValue((System.nanoTime() - start) / 1000L);
+            pendingCount.decrementAndGet();
+            dispatchedCount.incrementAndGet();
+        }
+    }
+
+    private static final class Task {
+        final Runnable runnable;
+        final long dispatchNanos;
+
+        Task(Runnable runnable, long dispatchNanos) {
+            this.runnable = runnable;
+            this.dispatchNanos = dispatchNanos;
+        }
+    }
+
+    private final class Lane implements Runnable {
+        private final Object key;
+        // guarded by this
+        private final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+        private boolean scheduled;
+        private boolean retired;
+
+        Lane(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * Returns false if the lane has been retired and the task must go to a new lane.
+         */
+        boolean submit(Task task) {
+            synchronized (this) {
+                if(retired) {
+                    return false;
+                }
+                tasks.add(task);
+                if(scheduled) {
+                    return true;
+                }
+                scheduled = true;
+            }
+            schedule();
+            return true;
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                rejectedCount.incrementAndGet();
+                run();
+            }
+        }
+
+        public void run() {
+            boolean more = false;
+            try {
+                for(int i = 0; i < TASKS_PER_TURN; i++) {
+                    Task task;
+                    synchronized (this) {
+                        task = tasks.poll();
+                    }
+                    if(task == null) {
+                        break;
+                    }
+                    CallbackDispatcher.this.run(task);
+                }
+            } finally {
+                synchronized (this) {
+                    if(tasks.isEmpty()) {
+                        scheduled = false;
+                        retired = true;
+                    } else {
+                        more = true;
+                    }
+                }
+                if(more) {
+                    schedule();
+                } else {
+                    lanes.remove(key, this);
+                }
+            }
+        }
+    }
+}
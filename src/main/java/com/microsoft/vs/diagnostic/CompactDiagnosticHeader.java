@@ -0,0 +1,255 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Encoder and decoder of the {@link DiagnosticEncoding#COMPACT} diagnostic header.
+ *
+ * The header is unpadded base64url of
+ * <pre>
+ *  0  3 bytes  diagnostic version as major, minor, patch (0, 2, 0 for "0.2.0")
+ *  3  byte     flags, {@link #FLAG_TEXT_ID} when the id is not a UUID
+ *  4  long     before-send time, epoch micros, big endian
+ * 12  16 bytes correlation id as a UUID, or the id in UTF-8 when FLAG_TEXT_ID is set
+ * </pre>
+ * which is 38 characters for a UUID id, against about 110 bytes of names and values for the
+ * three separate properties.
+ */
+public final class CompactDiagnosticHeader {
+    public static final int FLAG_TEXT_ID = 1;
+
+    private static final int ID_OFFSET = 12;
+    private static final byte[] VERSION = parseVersion(IDiagnosticProvider.COMPACT_DIAGNOSTIC_VERSION);
+
+    private final String version;
+    private final String correlationId;
+    private final long beforeSendMicros;
+
+    private CompactDiagnosticHeader(String version, String correlationId, long beforeSendMicros) {
+        this.version = version;
+        this.correlationId = correlationId;
+        this.beforeSendMicros = beforeSendMicros;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getCorrelationId() {
+        return correlationId;
+    }
+
+    public long getBeforeSendMicros() {
+        return beforeSendMicros;
+    }
+
+    public static String encode(String correlationId, long beforeSendMicros) {
+        boolean uuid = isUuid(correlationId);
+        byte[] textId = uuid ? null : correlationId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(ID_OFFSET + (uuid ? 16 : textId.length));
+        buffer.put(VERSION).put((byte) (uuid ? 0 : FLAG_TEXT_ID)).putLong(beforeSendMicros);
+        if(uuid) {
+            buffer.putLong(parseHex(correlationId, 0, 8) << 32 | parseHex(correlationId, 9, 4) << 16 | parseHex(correlationId, 14, 4));
+            buffer.putLong(parseHex(correlationId, 19, 4) << 48 | parseHex(correlationId, 24, 12));
+        } else {
+            buffer.put(textId);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    /**
+     * Decodes a header value. Throws IllegalArgumentException if it is not a compact header.
+     */
+    public static CompactDiagnosticHeader decode(String value) {
+        byte[] bytes = Base64.getUrlDecoder().decode(value);
+        if(bytes.length < ID_OFFSET) {
+            throw new IllegalArgumentException("Compact diagnostic header is too short");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        String version = (buffer.get() & 0xFF) + "." + (buffer.get() & 0xFF) + "." + (buffer.get() & 0xFF);
+        int flags = buffer.get();
+        long micros = buffer.getLong();
+        String correlationId;
+        if((flags & FLAG_TEXT_ID) != 0) {
+            correlationId = new String(bytes, ID_OFFSET, bytes.length - ID_OFFSET, StandardCharsets.UTF_8);
+        } else if(bytes.length == ID_OFFSET + 16) {
+            char[] chars = new char[36];
+            TimeOrderedIdGenerator.format(buffer.getLong(), buffer.getLong(), chars);
+            correlationId = new String(chars);
+        } else {
+            throw new IllegalArgumentException("Invalid compact diagnostic header");
+        }
+        return new CompactDiagnosticHeader(version, correlationId, micros);
+    }
+
+    /**
+     * Decodes the compact header of the message, or returns null if it has none.
+     */
+    public static CompactDiagnosticHeader decode(Message message) {
+        String value = message.getProperty(IDiagnosticProvider.KEY_COMPACT);
+        return value == null ? null : decode(value);
+    }
+
+    /**
+     * Whether the message was stamped by a provider, in either encoding.
+     */
+    public static boolean isStamped(Message message) {
+        return message.getProperty(IDiagnosticProvider.KEY_CORRELATION_ID) != null
+                || message.getProperty(IDiagnosticProvider.KEY_COMPACT) != null;
+    }
+
+    /**
+     * The correlation id of the message in either encoding, or null if it was not stamped.
+     */
+    public static String getCorrelationId(Message message) {
+        String id = message.getProperty(IDiagnosticProvider.KEY_CORRELATION_ID);
+        if(id != null) {
+            return id;
+        }
+        CompactDiagnosticHeader header = decode(message);
+        return header == null ? null : header.getCorrelationId();
+    }
+
+    /**
+     * Reads byte index of the decoded header straight from its base64url text, without
+     * decoding the whole value. Used where the send path must not allocate.
+     */
+    static int byteAt(String value, int index) {
+        int bit = index * 8;
+        int c = bit / 6;
+        int high = sextet(value.charAt(c));
+        int low = c + 1 < value.length() ? sextet(value.charAt(c + 1)) : 0;
+        return ((high << 6 | low) >> (4 - bit % 6)) & 0xFF;
+    }
+
+    /**
+     * True when the base64url header value carries a UUID correlation id.
+     */
+    static boolean hasUuidId(String value) {
+        return value.length() == 38 && (byteAt(value, 3) & FLAG_TEXT_ID) == 0;
+    }
+
+    /**
+     * Bits 64 * half to 64 * half + 63 of the UUID id of a header value, see {@link #hasUuidId}.
+     */
+    static long uuidBits(String value, int half) {
+        long bits = 0;
+        for(int i = ID_OFFSET + half * 8; i < ID_OFFSET + half * 8 + 8; i++) {
+            bits = bits << 8 | byteAt(value, i);
+        }
+        return bits;
+    }
+
+    /**
+     * True when the base64url header value carries a text correlation id.
+     */
+    static boolean hasTextId(String value) {
+        return value.length() >= 16 && (byteAt(value, 3) & FLAG_TEXT_ID) != 0;
+    }
+
+    /**
+     * The hash code of the text correlation id of a header value (see {@link #FLAG_TEXT_ID}),
+     * equal to that of the decoded id string, so that both encodings of an id hash alike.
+     * Valid UTF-8 is hashed straight from the base64url text.
+     */
+    static int textIdHashCode(String value) {
+        int length = value.length() * 6 / 8;
+        int hash = 0;
+        int i = ID_OFFSET;
+        while(i < length) {
+            int b = byteAt(value, i);
+            int extra;
+            int codePoint;
+            if(b < 0x80) {
+                extra = 0;
+                codePoint = b;
+            } else if(b >= 0xC2 && b < 0xE0) {
+                extra = 1;
+                codePoint = b & 0x1F;
+            } else if(b >= 0xE0 && b < 0xF0) {
+                extra = 2;
+                codePoint = b & 0x0F;
+            } else if(b >= 0xF0 && b < 0xF5) {
+                extra = 3;
+                codePoint = b & 0x07;
+            } else {
+                return decode(value).getCorrelationId().hashCode();
+            }
+            if(i + extra >= length) {
+                return decode(value).getCorrelationId().hashCode();
+            }
+            for(int k = 1; k <= extra; k++) {
+                int next = byteAt(value, i + k);
+                if((next & 0xC0) != 0x80) {
+                    return decode(value).getCorrelationId().hashCode();
+                }
+                codePoint = codePoint << 6 | (next & 0x3F);
+            }
+            if((extra == 2 && (codePoint < 0x800 || (codePoint >= 0xD800 && codePoint < 0xE000)))
+                    || (extra == 3 && (codePoint < 0x10000 || codePoint > 0x10FFFF))) {
+                return decode(value).getCorrelationId().hashCode();
+            }
+            if(codePoint >= 0x10000) {
+                hash = 31 * hash + Character.highSurrogate(codePoint);
+                hash = 31 * hash + Character.lowSurrogate(codePoint);
+            } else {
+                hash = 31 * hash + codePoint;
+            }
+            i += extra + 1;
+        }
+        return hash;
+    }
+
+    private static int sextet(char c) {
+        if(c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        }
+        if(c >= 'a' && c <= 'z') {
+            return c - 'a' + 26;
+        }
+        if(c >= '0' && c <= '9') {
+            return c - '0' + 52;
+        }
+        if(c == '-') {
+            return 62;
+        }
+        if(c == '_') {
+            return 63;
+        }
+        throw new IllegalArgumentException("Invalid base64url character " + c);
+    }
+
+    static boolean isUuid(String id) {
+        if(id.length() != 36) {
+            return false;
+        }
+        for(int i = 0; i < 36; i++) {
+            char c = id.charAt(i);
+            if(i == 8 || i == 13 || i == 18 || i == 23) {
+                if(c != '-') {
+                    return false;
+                }
+            } else if(Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long parseHex(String s, int offset, int digits) {
+        long value = 0;
+        for(int i = offset; i < offset + digits; i++) {
+            value = value << 4 | Character.digit(s.charAt(i), 16);
+        }
+        return value;
+    }
+
+    private static byte[] parseVersion(String version) {
+        String[] parts = version.split("\\.");
+        return new byte[]{Byte.parseByte(parts[0]), Byte.parseByte(parts[1]), Byte.parseByte(parts[2])};
+    }
+}
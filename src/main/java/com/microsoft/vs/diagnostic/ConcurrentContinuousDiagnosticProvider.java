@@ -0,0 +1,48 @@
+package com.microsoft.vs.diagnostic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe variant of {@link ContinuousDiagnosticProvider}.
+ *
+ * Every call to NeedSampling() takes a ticket from a single atomic sequence and
+ * samples the message when the ticket crosses a multiple of 1000000 / samplingRatePartsPerMillion,
+ * so exactly samplingRatePartsPerMillion out of every million consecutive calls (and, for
+ * whole percentages, samplingRatePercentage out of every 100) are sampled no matter how many
+ * threads are sending. The sequence lives in its own padded
+ * object so that it does not share a cache line with the provider settings.
+ */
+public class ConcurrentContinuousDiagnosticProvider extends BaseDiagnosticProvider {
+    private final PaddedAtomicLong sequence = new PaddedAtomicLong();
+
+    public ConcurrentContinuousDiagnosticProvider(SamplingRateSource samplingRateSource , int samplingRatePercentage) {
+        super(samplingRateSource,samplingRatePercentage);
+    }
+
+    @Override
+    public boolean NeedSampling() {
+        DiagnosticSettings settings = getSettings();
+        if(!settings.isSamplingEnabled()) {
+            return false;
+        }
+        long rate = settings.getSamplingRatePartsPerMillion();
+        if(rate <= 0) {
+            return false;
+        }
+        if(rate >= PARTS_PER_MILLION) {
+            return true;
+        }
+        long ticket = sequence.getAndIncrement();
+        // the number of samples owed after ticket+1 calls is floor((ticket+1)*rate/1000000),
+        // this call is sampled when that number goes up
+        return (ticket + 1) * rate / PARTS_PER_MILLION != ticket * rate / PARTS_PER_MILLION;
+    }
+
+    /**
+     * AtomicLong followed by enough padding to keep neighbouring fields off its cache line.
+     */
+    @SuppressWarnings("unused")
+    private static final class PaddedAtomicLong extends AtomicLong {
+        private long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
@@ -0,0 +1,72 @@
+package com.microsoft.vs.diagnostic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe variant of {@link ProbabilityDiagnosticProvider}.
+ *
+ * Instead of sharing one java.util.Random, every sending thread draws from its own
+ * SplitMix64 stream, so sampling threads never compete for a common seed. Streams are
+ * derived from the provider seed in the order threads first call NeedSampling(), so a
+ * provider created with an explicit seed gives reproducible decisions for a fixed
+ * threading layout (e.g. a single-threaded test).
+ */
+public class ConcurrentProbabilityDiagnosticProvider extends BaseDiagnosticProvider {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final AtomicLong seedUniquifier = new AtomicLong(System.nanoTime());
+
+    private final long seed;
+    private final AtomicLong streamCount = new AtomicLong();
+    private final ThreadLocal<RandomStream> streams = new ThreadLocal<RandomStream>() {
+        @Override
+        protected RandomStream initialValue() {
+            return new RandomStream(mix64(seed + GOLDEN_GAMMA * streamCount.incrementAndGet()));
+        }
+    };
+
+    public ConcurrentProbabilityDiagnosticProvider(IDiagnosticProvider.SamplingRateSource samplingRateSource , int samplingRatePercentage) {
+        this(samplingRateSource,samplingRatePercentage,mix64(seedUniquifier.addAndGet(GOLDEN_GAMMA) ^ System.nanoTime()));
+    }
+
+    public ConcurrentProbabilityDiagnosticProvider(IDiagnosticProvider.SamplingRateSource samplingRateSource , int samplingRatePercentage, long seed) {
+        super(samplingRateSource,samplingRatePercentage);
+        this.seed = seed;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    @Override
+    public boolean NeedSampling() {
+        DiagnosticSettings settings = getSettings();
+        if(!settings.isSamplingEnabled()) {
+            return false;
+        }
+        int n = streams.get().nextInt(PARTS_PER_MILLION) + 1; //1-1000000
+        return n<=settings.getSamplingRatePartsPerMillion();
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Unsynchronized SplitMix64 generator, only ever touched by its owning thread.
+     */
+    private static final class RandomStream {
+        private long state;
+
+        RandomStream(long state) {
+            this.state = state;
+        }
+
+        int nextInt(int bound) {
+            state += GOLDEN_GAMMA;
+            long r = mix64(state) >>> 32;
+            return (int) ((r * bound) >>> 32);
+        }
+    }
+}
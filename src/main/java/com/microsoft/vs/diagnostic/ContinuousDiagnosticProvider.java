@@ -12,11 +12,12 @@ public class ContinuousDiagnosticProvider extends BaseDiagnosticProvider {
 
     @Override
     public boolean NeedSampling() {
-        if(!super.NeedSampling()) {
+        DiagnosticSettings settings = getSettings();
+        if(!settings.isSamplingEnabled()) {
             return false;
         }
-        counter = counter + samplingRatePercentage;
-        if(counter >= 100) {
+        counter = counter + settings.getSamplingRatePartsPerMillion();
+        if(counter >= PARTS_PER_MILLION) {
             counter = 0;
             return true;
         }
@@ -3,22 +3,63 @@ package com.microsoft.vs.diagnostic;
 import com.microsoft.azure.sdk.iot.device.*;
 import com.microsoft.azure.sdk.iot.device.DeviceTwin.*;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by zhqqi on 3/23/2017.
  */
 public class DeviceClientWrapper {
+    private static final String JMX_DOMAIN = "com.microsoft.vs.diagnostic";
+    private static final AtomicInteger instanceCount = new AtomicInteger();
+
     private DeviceClient deviceClient;
+    private DeviceClient twinClient;
+    private final IDeviceClient client;
+    private final IDeviceClient twin;
+    private final IotHubClientProtocol protocol;
     private IDiagnosticProvider diagnosticProvider;
     private boolean userCalledStartTwin;
     private TwinStatusCallBack _twinStatusCallback;
     private Object _twinStatusCallbackContext;
     private TwinGenericCallBack _twinGenericCallback;
     private Object _twinGenericCallbackContext;
+    private volatile SendPipeline sendPipeline;
+    private int sendPipelineCapacity;
+    private int sendPipelineWorkerCount;
+    private SendPipeline.OverflowPolicy sendPipelineOverflowPolicy;
+    private final SendLatencyTracker sendLatencyTracker = new SendLatencyTracker();
+    private volatile TailSampler tailSampler;
+    private File journalDirectory;
+    private long journalSegmentBytes;
+    private long journalMaxBytes;
+    private double replayMessagesPerSecond;
+    private int journalMaxAttempts;
+    private volatile StoreAndForward storeAndForward;
+    private volatile CallbackDispatcher callbackDispatcher;
+    // created by enableCallbackDispatch() and shut down by close()
+    private volatile ExecutorService ownedCallbackExecutor;
+    private volatile Executor blockingExecutor = DiagnosticExecutors.sharedBlockingExecutor();
+    private final DeviceClientWrapperStatistics statistics = new DeviceClientWrapperStatistics(this);
+    private volatile CountingCallback lastCountingCallback;
+    private final String deviceId;
+    private final int instanceId;
+    private ObjectName wrapperObjectName;
+    private ObjectName providerObjectName;
 
 
     protected class TwinStatusCallBack implements IotHubEventCallback{
@@ -27,11 +68,17 @@ public class DeviceClientWrapper {
 
         public void execute(IotHubStatusCode status, Object context){
             if(this.userTwinStatusCallback != null ) {
-                this.userTwinStatusCallback.execute(status,this.userTwinStatusCallbackContext);
+                dispatch(this, this.userTwinStatusCallback, status, this.userTwinStatusCallbackContext);
             }
         }
     }
 
+    /**
+     * Applies the diagnostic desired properties on the thread that delivers them. The SDK hands
+     * a desired patch over one key at a time and never marks its end, so every key is applied as
+     * soon as it arrives, as one swap of the provider's settings: samplers see each key either
+     * before or after its change, never a half updated settings object.
+     */
     protected class TwinGenericCallBack extends Device{
         public PropertyCallBack userTwinGenericCallback;
         public Object userTwinGenericCallbackContext;
@@ -39,42 +86,239 @@ public class DeviceClientWrapper {
         public void PropertyCall(String propertyKey, Object propertyValue, Object context){
             if(propertyKey.equals(IDiagnosticProvider.KEY_TWIN_DIAG_SAMPLE_RATE)) {
                 if(diagnosticProvider.getSamplingRateSource() == IDiagnosticProvider.SamplingRateSource.Server) {
+                    int newVal;
                     try {
                         // in Java SDK, integer value will be converted to float value
                         // e.g., set a => 10, here propertyValue is 10.0
-                        // so make a workaround
+                        // fractional percentages (e.g. 0.05) are kept down to parts per million
                         Double temp = Double.parseDouble((String) propertyValue);
-                        int newVal = temp.intValue();
-                        if(newVal<0 || newVal>100) {
+                        if(temp.isNaN() || temp<0 || temp>100) {
                             throw new Exception();
                         }
-                        System.out.println("Sampling rate changed to " + newVal);
-                        diagnosticProvider.setSamplingRatePercentage(newVal);
+                        newVal = (int) Math.round(temp * IDiagnosticProvider.PARTS_PER_MILLION_PER_PERCENT);
                     } catch (Exception e) {
                         System.out.println("Received invalid value of sampling percentage");
                         return;
                     }
+                    DiagnosticTwinPatch patch = new DiagnosticTwinPatch();
+                    patch.samplingRatePartsPerMillion = newVal;
+                    apply(patch);
+                }
+            }
+            else if(propertyKey.equals(IDiagnosticProvider.KEY_TWIN_DIAG_SAMPLE_TARGET)) {
+                if(diagnosticProvider instanceof AdaptiveDiagnosticProvider
+                        && diagnosticProvider.getSamplingRateSource() == IDiagnosticProvider.SamplingRateSource.Server) {
+                    double newVal;
+                    try {
+                        newVal = Double.parseDouble((String) propertyValue);
+                        if(Double.isNaN(newVal) || Double.isInfinite(newVal) || newVal < 0) {
+                            throw new Exception();
+                        }
+                    } catch (Exception e) {
+                        System.out.println("Received invalid value of sampling target");
+                        return;
+                    }
+                    DiagnosticTwinPatch patch = new DiagnosticTwinPatch();
+                    patch.targetSamplesPerSecond = newVal;
+                    apply(patch);
+                }
+            }
+            else if(propertyKey.equals(IDiagnosticProvider.KEY_TWIN_DIAG_SAMPLE_RULES)) {
+                if(diagnosticProvider.getSamplingRateSource() == IDiagnosticProvider.SamplingRateSource.Server) {
+                    if(!diagnosticProvider.isSamplingRulesSupported()) {
+                        System.out.println("Sampling rules are not supported by the diagnostic provider, ignoring them");
+                        return;
+                    }
+                    SamplingRules rules;
+                    try {
+                        rules = SamplingRules.parse((String) propertyValue);
+                    } catch (Exception e) {
+                        System.out.println("Received invalid value of sampling rules");
+                        return;
+                    }
+                    DiagnosticTwinPatch patch = new DiagnosticTwinPatch();
+                    patch.samplingRules = rules;
+                    apply(patch);
                 }
             }
             else if(propertyKey.equals(IDiagnosticProvider.KEY_TWIN_DIAG_ENABLE)) {
                 String val = (String) propertyValue;
+                boolean on;
                 if(val.equals("true")) {
-                    diagnosticProvider.setServerSamplingTurnedOn(true);
+                    on = true;
                 }else if(val.equals("false")) {
-                    diagnosticProvider.setServerSamplingTurnedOn(false);
+                    on = false;
                 }else {
                     System.out.println("Received invalid value of sampling switch");
                     return;
                 }
+                DiagnosticTwinPatch patch = new DiagnosticTwinPatch();
+                patch.serverSamplingTurnedOn = on;
+                apply(patch);
             }
             else if(this.userTwinGenericCallback != null ) {
-                this.userTwinGenericCallback.PropertyCall(propertyKey,propertyValue,this.userTwinGenericCallbackContext);
+                dispatchProperty(this, this.userTwinGenericCallback, propertyKey, propertyValue, this.userTwinGenericCallbackContext);
+            }
+        }
+
+        // a provider that fails to take the update must not take the SDK's twin thread down
+        private void apply(DiagnosticTwinPatch patch) {
+            try {
+                if(patch.targetSamplesPerSecond != null) {
+                    ((AdaptiveDiagnosticProvider) diagnosticProvider).setTargetSamplesPerSecond(patch.targetSamplesPerSecond);
+                    System.out.println("Sampling target changed to " + patch.targetSamplesPerSecond + " per second");
+                    return;
+                }
+                DiagnosticSettings updated;
+                if(diagnosticProvider instanceof BaseDiagnosticProvider) {
+                    BaseDiagnosticProvider provider = (BaseDiagnosticProvider) diagnosticProvider;
+                    DiagnosticSettings current;
+                    do {
+                        current = provider.getSettings();
+                        updated = patch.applyTo(current);
+                    } while(!provider.compareAndSetSettings(current, updated));
+                } else {
+                    // other providers only get the setter of the property that changed
+                    patch.applyTo(diagnosticProvider);
+                    updated = diagnosticProvider.getSettings();
+                }
+                System.out.println("Diagnostic settings changed to " + updated);
+            } catch (RuntimeException e) {
+                System.out.println("Failed to apply diagnostic twin properties: " + e);
+            }
+        }
+    }
+
+    /**
+     * A diagnostic twin property to apply. Null fields are left unchanged.
+     */
+    private static final class DiagnosticTwinPatch {
+        Integer samplingRatePartsPerMillion;
+        Boolean serverSamplingTurnedOn;
+        SamplingRules samplingRules;
+        Double targetSamplesPerSecond;
+
+        DiagnosticSettings applyTo(DiagnosticSettings settings) {
+            if(samplingRatePartsPerMillion != null) {
+                settings = settings.withSamplingRatePartsPerMillion(samplingRatePartsPerMillion);
+            }
+            if(serverSamplingTurnedOn != null) {
+                settings = settings.withServerSamplingTurnedOn(serverSamplingTurnedOn);
+            }
+            if(samplingRules != null) {
+                settings = settings.withSamplingRules(samplingRules);
+            }
+            return settings;
+        }
+
+        void applyTo(IDiagnosticProvider provider) {
+            if(samplingRatePartsPerMillion != null) {
+                provider.setSamplingRatePartsPerMillion(samplingRatePartsPerMillion);
+            }
+            if(serverSamplingTurnedOn != null) {
+                provider.setServerSamplingTurnedOn(serverSamplingTurnedOn);
+            }
+            if(samplingRules != null) {
+                provider.setSamplingRules(samplingRules);
+            }
+        }
+    }
+
+    // a message stamped by submit whose journal write failed, so the worker must not stamp it again
+    private static final class Stamped implements IotHubEventCallback {
+        private final IotHubEventCallback callback;
+
+        Stamped(IotHubEventCallback callback) {
+            this.callback = callback;
+        }
+
+        public void execute(IotHubStatusCode status, Object context) {
+            callback.execute(status, context);
+        }
+    }
+
+    private class CountingCallback implements IotHubEventCallback{
+        private final IotHubEventCallback userCallback;
+
+        CountingCallback(IotHubEventCallback userCallback) {
+            this.userCallback = userCallback;
+        }
+
+        public void execute(IotHubStatusCode status, Object context){
+            statistics.recordOutcome(status);
+            if(this.userCallback != null) {
+                dispatch(this.userCallback, this.userCallback, status, context);
             }
         }
     }
 
     public DeviceClientWrapper(String connString,IDiagnosticProvider diagnosticProvider) throws URISyntaxException {
-        this.deviceClient = new DeviceClient(connString,IotHubClientProtocol.MQTT);
+        this(connString,IotHubClientProtocol.MQTT,diagnosticProvider);
+    }
+
+    /**
+     * Telemetry is sent over the given protocol. Device twin and direct methods, which drive
+     * the diagnostic settings, are only available over MQTT in the device SDK. For any other
+     * protocol the wrapper opens a second, MQTT connection for the twin when the provider takes
+     * its sampling rate from the server, so that the server can still turn sampling on; for other
+     * providers there is no twin, and the twin methods throw {@link UnsupportedOperationException}.
+     */
+    public DeviceClientWrapper(String connString,IotHubClientProtocol protocol,IDiagnosticProvider diagnosticProvider) throws URISyntaxException {
+        this(connString,protocol,diagnosticProvider,needsTwin(diagnosticProvider));
+    }
+
+    /**
+     * As above, but whether a protocol other than MQTT gets the second, MQTT connection for
+     * device twin and direct methods is up to mqttTwinConnection. The second connection doubles
+     * the connections to the hub. A provider that takes its sampling rate from the server needs
+     * the twin, so it cannot be combined with a protocol other than MQTT and no twin connection.
+     */
+    public DeviceClientWrapper(String connString,IotHubClientProtocol protocol,IDiagnosticProvider diagnosticProvider,
+                               boolean mqttTwinConnection) throws URISyntaxException {
+        if(protocol == null) {
+            throw new IllegalArgumentException("Protocol cannot be null");
+        }
+        if(protocol != IotHubClientProtocol.MQTT && !mqttTwinConnection && needsTwin(diagnosticProvider)) {
+            throw new IllegalArgumentException("A provider with sampling rate source Server needs the device twin, which needs mqttTwinConnection over " + protocol);
+        }
+        this.protocol = protocol;
+        this.deviceClient = new DeviceClient(connString,protocol);
+        this.client = new SdkDeviceClient(this.deviceClient,protocol);
+        if(protocol == IotHubClientProtocol.MQTT) {
+            this.twinClient = this.deviceClient;
+            this.twin = this.client;
+        } else if(mqttTwinConnection) {
+            this.twinClient = new DeviceClient(connString,IotHubClientProtocol.MQTT);
+            this.twin = new SdkDeviceClient(this.twinClient,IotHubClientProtocol.MQTT);
+        } else {
+            this.twinClient = null;
+            this.twin = null;
+        }
+        this.deviceId = parseDeviceId(connString);
+        this.instanceId = instanceCount.incrementAndGet();
+        this.diagnosticProvider = diagnosticProvider;
+        this.userCalledStartTwin = false;
+        this._twinStatusCallback = new TwinStatusCallBack();
+        this._twinGenericCallback = new TwinGenericCallBack();
+    }
+
+    private static boolean needsTwin(IDiagnosticProvider diagnosticProvider) {
+        return diagnosticProvider != null && diagnosticProvider.getSamplingRateSource() == IDiagnosticProvider.SamplingRateSource.Server;
+    }
+
+    /**
+     * Runs over the given client, for example an {@link InMemoryDeviceClient}, which carries
+     * both telemetry and the device twin. deviceId only names the JMX beans.
+     */
+    public DeviceClientWrapper(String deviceId,IDeviceClient client,IDiagnosticProvider diagnosticProvider) {
+        if(client == null) {
+            throw new IllegalArgumentException("Client cannot be null");
+        }
+        this.protocol = client.getProtocol();
+        this.client = client;
+        this.twin = client;
+        this.deviceId = deviceId;
+        this.instanceId = instanceCount.incrementAndGet();
         this.diagnosticProvider = diagnosticProvider;
         this.userCalledStartTwin = false;
         this._twinStatusCallback = new TwinStatusCallBack();
@@ -82,38 +326,472 @@ public class DeviceClientWrapper {
     }
 
     public void open() throws IOException {
-        this.deviceClient.open();
-        this.deviceClient.startDeviceTwin(this._twinStatusCallback,this._twinStatusCallbackContext,this._twinGenericCallback,this._twinGenericCallbackContext);
+        if(this.sendPipeline != null && this.sendPipeline.isClosed()) {
+            this.sendPipeline = newSendPipeline();
+        }
+        if(this.ownedCallbackExecutor != null && this.ownedCallbackExecutor.isShutdown()) {
+            this.ownedCallbackExecutor = DiagnosticExecutors.newCallbackExecutor();
+            this.callbackDispatcher = new CallbackDispatcher(this.ownedCallbackExecutor);
+        }
+        this.client.open();
+        if(this.twin != null) {
+            if(this.twin != this.client) {
+                this.twin.open();
+            }
+            this.twin.startDeviceTwin(this._twinStatusCallback,this._twinStatusCallbackContext,this._twinGenericCallback,this._twinGenericCallbackContext);
+        }
+        registerMBeans();
+        TailSampler sampler = this.tailSampler;
+        if(sampler != null) {
+            sampler.start();
+        }
+        if(this.journalDirectory != null && this.storeAndForward == null) {
+            OutboundJournal journal = new OutboundJournal(this.journalDirectory,this.journalSegmentBytes,this.journalMaxBytes);
+            // resends of this session's messages keep their counting callback, replays get one
+            StoreAndForward storeAndForward = new StoreAndForward(journal,this.replayMessagesPerSecond,this.journalMaxAttempts,new SendPipeline.Sink() {
+                public void send(Message message, IotHubEventCallback callback, Object callbackContext) {
+                    statistics.recordSent();
+                    client.sendEventAsync(message,callback,callbackContext);
+                }
+            },new CountingCallback(null));
+            this.storeAndForward = storeAndForward;
+            storeAndForward.start();
+        }
+    }
+
+    /**
+     * Runs {@link #open()} on the blocking executor.
+     */
+    public CompletableFuture<Void> openAsync() {
+        return runBlocking(new BlockingOperation() {
+            public void run() throws IOException {
+                open();
+            }
+        });
     }
 
     public void close() throws IOException {
-        this.deviceClient.close();
+        if(this.sendPipeline != null) {
+            this.sendPipeline.close();
+        }
+        // stop resending before the client goes away
+        StoreAndForward storeAndForward = this.storeAndForward;
+        if(storeAndForward != null) {
+            this.storeAndForward = null;
+            storeAndForward.close();
+        }
+        this.client.close();
+        if(this.twin != null && this.twin != this.client) {
+            this.twin.close();
+        }
+        // after the clients, so that their cancellations are still dispatched; later callbacks
+        // run on the calling thread
+        ExecutorService callbackExecutor = this.ownedCallbackExecutor;
+        if(callbackExecutor != null) {
+            callbackExecutor.shutdown();
+        }
+        unregisterMBeans();
+        TailSampler sampler = this.tailSampler;
+        if(sampler != null) {
+            sampler.close();
+        }
+        DiagnosticRingLog log = this.sendLatencyTracker.getDiagnosticLog();
+        if(log != null) {
+            this.sendLatencyTracker.setDiagnosticLog(null);
+            log.close();
+        }
+    }
+
+    public IotHubClientProtocol getProtocol() {
+        return this.protocol;
+    }
+
+    public IDiagnosticProvider getDiagnosticProvider() {
+        return this.diagnosticProvider;
+    }
+
+    public DeviceClientWrapperStatistics getStatistics() {
+        return this.statistics;
     }
 
     public void setOption(String optionName, Object value) {
-        this.deviceClient.setOption(optionName,value);
+        this.client.setOption(optionName,value);
+    }
+
+    /**
+     * Puts a bounded queue and worker threads between sendEventAsync and the DeviceClient.
+     * Once enabled, the diagnostic provider runs on the workers (on the sending thread when
+     * store and forward is enabled too) and sendEventAsync only enqueues, applying
+     * overflowPolicy when the queue is full. close() closes the pipeline and
+     * the next open() replaces it with a new one of the same configuration.
+     */
+    public SendPipeline enableSendPipeline(int capacity, int workerCount, SendPipeline.OverflowPolicy overflowPolicy)
+    {
+        if(this.sendPipeline != null) {
+            throw new IllegalStateException("Send pipeline is already enabled");
+        }
+        this.sendPipelineCapacity = capacity;
+        this.sendPipelineWorkerCount = workerCount;
+        this.sendPipelineOverflowPolicy = overflowPolicy;
+        this.sendPipeline = newSendPipeline();
+        return this.sendPipeline;
+    }
+
+    private SendPipeline newSendPipeline() {
+        return new SendPipeline(this.sendPipelineCapacity, this.sendPipelineWorkerCount, this.sendPipelineOverflowPolicy, new SendPipeline.Sink() {
+            public void send(Message message, IotHubEventCallback callback, Object callbackContext) {
+                sendEventInline(message, callback, callbackContext);
+            }
+
+            public void drop(Message message, IotHubEventCallback callback, Object callbackContext) {
+                if(callback instanceof StoreAndForward.JournalCallback) {
+                    // a generic error would be retried, around the overflow policy
+                    ((StoreAndForward.JournalCallback) callback).abandon(IotHubStatusCode.ERROR, callbackContext);
+                } else if(callback != null) {
+                    callback.execute(IotHubStatusCode.ERROR, callbackContext);
+                }
+            }
+        });
+    }
+
+    public SendPipeline getSendPipeline() {
+        return this.sendPipeline;
+    }
+
+    /**
+     * Reports every message that fails or whose acknowledgement takes longer than
+     * latencyThresholdMillis to listener, independently of the head sampling rate.
+     * Up to capacity outstanding messages are also watched for stalls while the wrapper is open.
+     */
+    public TailSampler enableTailSampling(int capacity, long latencyThresholdMillis, TailSampleListener listener)
+    {
+        if(this.tailSampler != null) {
+            throw new IllegalStateException("Tail sampling is already enabled");
+        }
+        this.tailSampler = new TailSampler(capacity, latencyThresholdMillis, listener);
+        return this.tailSampler;
+    }
+
+    /**
+     * Runs user callbacks (send confirmations, twin status and twin properties) on executor
+     * instead of the SDK's I/O thread. Callbacks of one IotHubEventCallback instance, and all
+     * twin property updates, keep their order. Diagnostic twin properties are still applied
+     * on the I/O thread.
+     */
+    public CallbackDispatcher enableCallbackDispatch(Executor executor)
+    {
+        if(this.callbackDispatcher != null) {
+            throw new IllegalStateException("Callback dispatch is already enabled");
+        }
+        this.callbackDispatcher = new CallbackDispatcher(executor);
+        return this.callbackDispatcher;
+    }
+
+    /**
+     * Runs user callbacks on {@link DiagnosticExecutors#newCallbackExecutor()}, which uses a
+     * virtual thread per callback on Java 21 and later. The wrapper owns that executor: close()
+     * shuts it down and the next open() replaces it, together with the dispatcher.
+     */
+    public CallbackDispatcher enableCallbackDispatch()
+    {
+        ExecutorService executor = DiagnosticExecutors.newCallbackExecutor();
+        try {
+            enableCallbackDispatch(executor);
+        } catch (IllegalStateException e) {
+            executor.shutdown();
+            throw e;
+        }
+        this.ownedCallbackExecutor = executor;
+        return this.callbackDispatcher;
+    }
+
+    public CallbackDispatcher getCallbackDispatcher() {
+        return this.callbackDispatcher;
+    }
+
+    private void dispatch(Object orderingKey, final IotHubEventCallback callback, final IotHubStatusCode status, final Object context) {
+        CallbackDispatcher dispatcher = this.callbackDispatcher;
+        if(dispatcher == null) {
+            callback.execute(status,context);
+            return;
+        }
+        dispatcher.dispatch(orderingKey, new Runnable() {
+            public void run() {
+                callback.execute(status,context);
+            }
+        });
+    }
+
+    private void dispatchProperty(Object orderingKey, final PropertyCallBack callback, final String key, final Object value, final Object context) {
+        CallbackDispatcher dispatcher = this.callbackDispatcher;
+        if(dispatcher == null) {
+            callback.PropertyCall(key,value,context);
+            return;
+        }
+        dispatcher.dispatch(orderingKey, new Runnable() {
+            public void run() {
+                callback.PropertyCall(key,value,context);
+            }
+        });
+    }
+
+    public TailSampler getTailSampler() {
+        return this.tailSampler;
+    }
+
+    /**
+     * Writes the correlation id, send and acknowledgement times, size and outcome of every
+     * sampled message to a memory-mapped ring file of capacity records, which can be read back
+     * with {@link DiagnosticRingLogReader}. The file is closed with the wrapper.
+     */
+    public DiagnosticRingLog enableDiagnosticLog(File file, int capacity) throws IOException
+    {
+        if(this.sendLatencyTracker.getDiagnosticLog() != null) {
+            throw new IllegalStateException("Diagnostic log is already enabled");
+        }
+        DiagnosticRingLog log = new DiagnosticRingLog(file, capacity);
+        this.sendLatencyTracker.setDiagnosticLog(log);
+        return log;
+    }
+
+    public DiagnosticRingLog getDiagnosticLog() {
+        return this.sendLatencyTracker.getDiagnosticLog();
+    }
+
+    /**
+     * Journals every message to segment files of up to segmentBytes in directory, maxBytes in
+     * total, before handing it to the client, so that messages survive restarts and outages.
+     * On every open() the messages an earlier session did not get delivered are resent, at most
+     * replayMessagesPerSecond, with their original diagnostic stamps. Must be called before open().
+     * With the send pipeline enabled, messages are stamped and journaled before they are
+     * queued, so the diagnostic provider runs on the sending thread and a reserved property
+     * set by the user throws there; a message the pipeline drops is acknowledged in the journal
+     * and never resent.
+     */
+    public void enableStoreAndForward(File directory, long segmentBytes, long maxBytes, double replayMessagesPerSecond)
+    {
+        enableStoreAndForward(directory,segmentBytes,maxBytes,replayMessagesPerSecond,StoreAndForward.DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * Same as above, but a message that keeps failing transiently is given up after maxAttempts
+     * sends instead of {@link StoreAndForward#DEFAULT_MAX_ATTEMPTS}. Its callback only gets the
+     * final outcome.
+     */
+    public void enableStoreAndForward(File directory, long segmentBytes, long maxBytes, double replayMessagesPerSecond, int maxAttempts)
+    {
+        if(this.journalDirectory != null) {
+            throw new IllegalStateException("Store and forward is already enabled");
+        }
+        if(directory == null) {
+            throw new IllegalArgumentException("Directory cannot be null");
+        }
+        if(replayMessagesPerSecond <= 0 || Double.isNaN(replayMessagesPerSecond) || Double.isInfinite(replayMessagesPerSecond)) {
+            throw new IllegalArgumentException("Replay rate must be positive");
+        }
+        if(maxAttempts <= 0) {
+            throw new IllegalArgumentException("Max attempts must be positive");
+        }
+        this.journalDirectory = directory;
+        this.journalSegmentBytes = segmentBytes;
+        this.journalMaxBytes = maxBytes;
+        this.replayMessagesPerSecond = replayMessagesPerSecond;
+        this.journalMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * The store and forward state of the current connection, or null while closed or not enabled.
+     */
+    public StoreAndForward getStoreAndForward() {
+        return this.storeAndForward;
+    }
+
+    /**
+     * Latency, in microseconds, between handing a sampled message to the client and its acknowledgement.
+     */
+    public LatencyHistogram getSendLatencyHistogram() {
+        return this.sendLatencyTracker.getHistogram();
+    }
+
+    public SendLatencyTracker getSendLatencyTracker() {
+        return this.sendLatencyTracker;
+    }
+
+    public int getInFlightSampledMessageCount() {
+        return this.sendLatencyTracker.getInFlightCount();
     }
 
     public void sendEventAsync(Message message,
                                IotHubEventCallback callback,
                                Object callbackContext)
     {
-        message = this.diagnosticProvider.Process(message);
-        this.deviceClient.sendEventAsync(message,callback,callbackContext);
+        SendPipeline sendPipeline = this.sendPipeline;
+        if(sendPipeline != null) {
+            submit(sendPipeline,message,callback,callbackContext);
+            return;
+        }
+        sendEventInline(message,callback,callbackContext);
+    }
+
+    // stamps and journals before queuing, so that queued messages survive a crash and replays
+    // carry the same stamps as the first attempt
+    private void submit(SendPipeline sendPipeline,
+                        Message message,
+                        IotHubEventCallback callback,
+                        Object callbackContext)
+    {
+        StoreAndForward storeAndForward = this.storeAndForward;
+        if(storeAndForward == null) {
+            sendPipeline.submit(message,callback,callbackContext);
+            return;
+        }
+        message = process(message);
+        IotHubEventCallback counted = countingCallback(callback);
+        IotHubEventCallback journaled = storeAndForward.track(message,counted);
+        if(journaled == counted) {
+            // not journaled, the worker tries again
+            sendPipeline.submit(message,new Stamped(counted),callbackContext);
+            return;
+        }
+        try {
+            sendPipeline.submit(message,journaled,callbackContext);
+        } catch (IllegalStateException e) {
+            storeAndForward.discard(journaled);
+            throw e;
+        }
+    }
+
+    private void sendEventInline(Message message,
+                                 IotHubEventCallback callback,
+                                 Object callbackContext)
+    {
+        IotHubEventCallback chain;
+        if(callback instanceof StoreAndForward.JournalCallback) {
+            // stamped and journaled by submit
+            StoreAndForward.JournalCallback journaled = (StoreAndForward.JournalCallback) callback;
+            journaled.setNext(instrument(message,journaled.getNext()));
+            chain = journaled;
+        } else if(callback instanceof Stamped) {
+            chain = journal(message,instrument(message,((Stamped) callback).callback));
+        } else {
+            message = process(message);
+            chain = journal(message,instrument(message,countingCallback(callback)));
+        }
+        this.statistics.recordSent();
+        this.client.sendEventAsync(message,chain,callbackContext);
+    }
+
+    private Message process(Message message) {
+        try {
+            return this.diagnosticProvider.Process(message);
+        } catch (IllegalArgumentException e) {
+            this.statistics.recordReservedPropertyRejection();
+            throw e;
+        }
+    }
+
+    private IotHubEventCallback instrument(Message message, IotHubEventCallback callback) {
+        callback = this.sendLatencyTracker.track(message,callback);
+        TailSampler sampler = this.tailSampler;
+        if(sampler != null) {
+            callback = sampler.track(message,callback);
+        }
+        return callback;
+    }
+
+    private IotHubEventCallback journal(Message message, IotHubEventCallback callback) {
+        StoreAndForward storeAndForward = this.storeAndForward;
+        return storeAndForward == null ? callback : storeAndForward.track(message,callback);
+    }
+
+    private IotHubEventCallback countingCallback(IotHubEventCallback callback) {
+        // senders normally reuse one callback instance, so keep the last wrapper around
+        CountingCallback last = this.lastCountingCallback;
+        if(last == null || last.userCallback != callback) {
+            last = new CountingCallback(callback);
+            this.lastCountingCallback = last;
+        }
+        return last;
+    }
+
+    /**
+     * Stamps diagnostic properties on the whole batch in one provider call, then enqueues
+     * every message. The callback is invoked once per message with callbackContext, so use
+     * the overload taking one context per message to tell the confirmations apart.
+     * When the send pipeline is enabled the messages are queued one by one instead.
+     */
+    public void sendEventBatchAsync(List<Message> messages,
+                                    IotHubEventCallback callback,
+                                    Object callbackContext)
+    {
+        if(messages == null) {
+            throw new IllegalArgumentException("Messages cannot be null");
+        }
+        sendEventBatchAsync(messages,callback,Collections.nCopies(messages.size(),callbackContext));
+    }
+
+    /**
+     * Same as above, but the callback of messages.get(i) is invoked with callbackContexts.get(i).
+     * A null list passes null for every message.
+     */
+    public void sendEventBatchAsync(List<Message> messages,
+                                    IotHubEventCallback callback,
+                                    List<?> callbackContexts)
+    {
+        if(messages == null) {
+            throw new IllegalArgumentException("Messages cannot be null");
+        }
+        if(callbackContexts == null) {
+            callbackContexts = Collections.nCopies(messages.size(),null);
+        } else if(callbackContexts.size() != messages.size()) {
+            throw new IllegalArgumentException("Expected one callback context per message");
+        }
+        SendPipeline sendPipeline = this.sendPipeline;
+        if(sendPipeline != null) {
+            for(int i = 0; i < messages.size(); i++) {
+                submit(sendPipeline,messages.get(i),callback,callbackContexts.get(i));
+            }
+            return;
+        }
+        try {
+            messages = this.diagnosticProvider.ProcessBatch(messages);
+        } catch (IllegalArgumentException e) {
+            this.statistics.recordReservedPropertyRejection();
+            throw e;
+        }
+        IotHubEventCallback countingCallback = countingCallback(callback);
+        for(int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            this.statistics.recordSent();
+            this.client.sendEventAsync(message,journal(message,instrument(message,countingCallback)),callbackContexts.get(i));
+        }
     }
 
+    /**
+     * Returns the underlying DeviceClient, or null when the wrapper runs over another
+     * {@link IDeviceClient}.
+     */
     public DeviceClient setMessageCallback(
             MessageCallback callback,
             Object context)
     {
-        return this.deviceClient.setMessageCallback(callback,context);
+        this.client.setMessageCallback(callback,context);
+        return this.deviceClient;
+    }
+
+    private IDeviceClient requireTwin() {
+        if(this.twin == null) {
+            throw new UnsupportedOperationException("Device twin needs MQTT, construct the wrapper with mqttTwinConnection to use it over " + this.protocol);
+        }
+        return this.twin;
     }
 
     public void startDeviceTwin(IotHubEventCallback deviceTwinStatusCallback, Object deviceTwinStatusCallbackContext,
                                 PropertyCallBack genericPropertyCallBack, Object genericPropertyCallBackContext) throws IOException
     {
+        IDeviceClient twin = requireTwin();
         if(this.userCalledStartTwin) {
-            this.deviceClient.startDeviceTwin(deviceTwinStatusCallback, deviceTwinStatusCallbackContext, genericPropertyCallBack, genericPropertyCallBackContext);
+            twin.startDeviceTwin(deviceTwinStatusCallback, deviceTwinStatusCallbackContext, genericPropertyCallBack, genericPropertyCallBackContext);
         }else{
             this.userCalledStartTwin = true;
             this._twinStatusCallback.userTwinStatusCallback = deviceTwinStatusCallback;
@@ -123,18 +801,141 @@ public class DeviceClientWrapper {
         }
     }
 
+    /**
+     * Runs {@link #startDeviceTwin} on the blocking executor.
+     */
+    public CompletableFuture<Void> startDeviceTwinAsync(final IotHubEventCallback deviceTwinStatusCallback, final Object deviceTwinStatusCallbackContext,
+                                                        final PropertyCallBack genericPropertyCallBack, final Object genericPropertyCallBackContext)
+    {
+        return runBlocking(new BlockingOperation() {
+            public void run() throws IOException {
+                startDeviceTwin(deviceTwinStatusCallback,deviceTwinStatusCallbackContext,genericPropertyCallBack,genericPropertyCallBackContext);
+            }
+        });
+    }
+
     public void subscribeToDesiredProperties(Map<Property, Pair<PropertyCallBack<String, Object>, Object>> onDesiredPropertyChange) throws IOException
     {
-        this.deviceClient.subscribeToDesiredProperties(onDesiredPropertyChange);
+        requireTwin().subscribeToDesiredProperties(onDesiredPropertyChange);
     }
 
     public void sendReportedProperties(Set<Property> reportedProperties) throws IOException
     {
-        this.deviceClient.sendReportedProperties(reportedProperties);
+        requireTwin().sendReportedProperties(reportedProperties);
+    }
+
+    /**
+     * Runs {@link #sendReportedProperties} on the blocking executor.
+     */
+    public CompletableFuture<Void> sendReportedPropertiesAsync(final Set<Property> reportedProperties)
+    {
+        return runBlocking(new BlockingOperation() {
+            public void run() throws IOException {
+                sendReportedProperties(reportedProperties);
+            }
+        });
     }
 
     public void subscribeToDeviceMethod(DeviceMethodCallback deviceMethodCallback, Object deviceMethodCallbackContext, IotHubEventCallback deviceMethodStatusCallback, Object deviceMethodStatusCallbackContext) throws IOException
     {
-        this.deviceClient.subscribeToDeviceMethod(deviceMethodCallback,deviceMethodCallbackContext,deviceMethodStatusCallback,deviceMethodStatusCallbackContext);
+        requireTwin().subscribeToDeviceMethod(deviceMethodCallback,deviceMethodCallbackContext,deviceMethodStatusCallback,deviceMethodStatusCallbackContext);
+    }
+
+    /**
+     * Runs {@link #subscribeToDeviceMethod} on the blocking executor.
+     */
+    public CompletableFuture<Void> subscribeToDeviceMethodAsync(final DeviceMethodCallback deviceMethodCallback, final Object deviceMethodCallbackContext,
+                                                                final IotHubEventCallback deviceMethodStatusCallback, final Object deviceMethodStatusCallbackContext)
+    {
+        return runBlocking(new BlockingOperation() {
+            public void run() throws IOException {
+                subscribeToDeviceMethod(deviceMethodCallback,deviceMethodCallbackContext,deviceMethodStatusCallback,deviceMethodStatusCallbackContext);
+            }
+        });
+    }
+
+    /**
+     * Sets the executor of the *Async operations. The default is
+     * {@link DiagnosticExecutors#sharedBlockingExecutor()}, which uses a virtual thread per
+     * operation on Java 21 and later, so a gateway can open and run twins of thousands of
+     * devices without a platform thread each.
+     */
+    public void setBlockingExecutor(Executor executor) {
+        if(executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null");
+        }
+        this.blockingExecutor = executor;
+    }
+
+    public Executor getBlockingExecutor() {
+        return this.blockingExecutor;
+    }
+
+    private interface BlockingOperation {
+        void run() throws IOException;
+    }
+
+    private CompletableFuture<Void> runBlocking(final BlockingOperation operation) {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        try {
+            this.blockingExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        operation.run();
+                        future.complete(null);
+                    } catch (IOException | RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void registerMBeans() {
+        if(this.wrapperObjectName != null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            String keys = ",device=" + ObjectName.quote(this.deviceId) + ",instance=" + this.instanceId;
+            ObjectName wrapperName = new ObjectName(JMX_DOMAIN + ":type=DeviceClientWrapper" + keys);
+            ObjectName providerName = new ObjectName(JMX_DOMAIN + ":type=DiagnosticProvider" + keys);
+            server.registerMBean(this.statistics, wrapperName);
+            this.wrapperObjectName = wrapperName;
+            server.registerMBean(new DiagnosticProviderStatistics(this.diagnosticProvider), providerName);
+            this.providerObjectName = providerName;
+        } catch (JMException e) {
+            System.out.println("Failed to register diagnostic MBeans: " + e.getMessage());
+        }
+    }
+
+    private void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(ObjectName name : new ObjectName[]{this.wrapperObjectName, this.providerObjectName}) {
+            if(name == null) {
+                continue;
+            }
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                System.out.println("Failed to unregister diagnostic MBean " + name + ": " + e.getMessage());
+            }
+        }
+        this.wrapperObjectName = null;
+        this.providerObjectName = null;
+    }
+
+    static String parseDeviceId(String connString) {
+        if(connString != null) {
+            for(String part : connString.split(";")) {
+                if(part.startsWith("DeviceId=")) {
+                    return part.substring("DeviceId=".length());
+                }
+            }
+        }
+        return "unknown";
     }
 }
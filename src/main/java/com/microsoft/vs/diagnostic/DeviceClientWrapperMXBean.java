@@ -0,0 +1,28 @@
+package com.microsoft.vs.diagnostic;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link DeviceClientWrapper}. Latencies are in microseconds.
+ */
+public interface DeviceClientWrapperMXBean {
+    public long getMessagesSent();
+    public long getMessagesSampled();
+    public double getEffectiveSamplingRate();
+    public long getReservedPropertyRejections();
+    public Map<String, Long> getCallbackOutcomes();
+    public String getSamplingRateSource();
+    public int getSamplingRatePercentage();
+    public int getSamplingRatePartsPerMillion();
+    public boolean isServerSamplingTurnedOn();
+    public long getSendLatencyP50();
+    public long getSendLatencyP99();
+    public long getSendLatencyP999();
+    public int getInFlightSampledMessages();
+    public long getExpiredSampledMessages();
+    public int getSendQueueDepth();
+    public long getSendQueueRejections();
+    public long getCallbackQueueDelayP99();
+    public long getCallbackExecutionTimeP99();
+    public int getPendingCallbacks();
+}
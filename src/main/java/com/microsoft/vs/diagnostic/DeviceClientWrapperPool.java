@@ -0,0 +1,305 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.Message;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hosts many devices of a field gateway in one process.
+ *
+ * Devices are registered up front but only get a {@link DeviceClientWrapper} (and therefore a
+ * connection and SDK threads) when they first send. A single shared scheduler thread closes
+ * connections that have been idle longer than the idle timeout; the next send reconnects.
+ * All devices share one {@link IDiagnosticProvider}, so the sampling decision is made across
+ * the whole gateway and a server-side sampling change on any device applies to all of them.
+ * Server-side changes arrive over the device twin, which the SDK only offers over MQTT, so with
+ * another protocol and a provider whose source is Server every device opens a second, MQTT
+ * connection for its twin.
+ * A device that has been removed, or whose pool has been closed, is retired: it never
+ * reconnects, and a send that races the removal fails with an {@link IllegalStateException}.
+ */
+public class DeviceClientWrapperPool {
+    private final IDiagnosticProvider diagnosticProvider;
+    private final IotHubClientProtocol protocol;
+    private final long idleTimeoutNanos;
+    private final ConcurrentMap<String, PooledDevice> devices = new ConcurrentHashMap<String, PooledDevice>();
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean closed;
+
+    public DeviceClientWrapperPool(IDiagnosticProvider diagnosticProvider, long idleTimeoutMillis) {
+        this(IotHubClientProtocol.MQTT, diagnosticProvider, idleTimeoutMillis);
+    }
+
+    public DeviceClientWrapperPool(IotHubClientProtocol protocol, IDiagnosticProvider diagnosticProvider, long idleTimeoutMillis) {
+        if(protocol == null) {
+            throw new IllegalArgumentException("Protocol cannot be null");
+        }
+        if(diagnosticProvider == null) {
+            throw new IllegalArgumentException("Diagnostic provider cannot be null");
+        }
+        if(idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        }
+        this.protocol = protocol;
+        this.diagnosticProvider = diagnosticProvider;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "diagnostic-pool-idle");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long sweepMillis = Math.max(1, idleTimeoutMillis / 2);
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                disconnectIdleDevices();
+            }
+        }, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a device by its connection string and returns its device id. No connection is
+     * opened until the device first sends.
+     */
+    public String addDevice(String connString) {
+        if(closed) {
+            throw new IllegalStateException("Pool is closed");
+        }
+        String deviceId = DeviceClientWrapper.parseDeviceId(connString);
+        if(devices.putIfAbsent(deviceId, new PooledDevice(deviceId, connString)) != null) {
+            throw new IllegalArgumentException("Device " + deviceId + " is already registered");
+        }
+        return deviceId;
+    }
+
+    public void removeDevice(String deviceId) throws IOException {
+        PooledDevice device = devices.remove(deviceId);
+        if(device != null) {
+            device.retire();
+        }
+    }
+
+    public void sendEventAsync(String deviceId,
+                               Message message,
+                               IotHubEventCallback callback,
+                               Object callbackContext) throws IOException
+    {
+        if(closed) {
+            throw new IllegalStateException("Pool is closed");
+        }
+        PooledDevice device = devices.get(deviceId);
+        if(device == null) {
+            throw new IllegalArgumentException("Device " + deviceId + " is not registered");
+        }
+        device.sendEventAsync(message, callback, callbackContext);
+    }
+
+    public PooledDevice getDevice(String deviceId) {
+        return devices.get(deviceId);
+    }
+
+    public Collection<PooledDevice> getDevices() {
+        return devices.values();
+    }
+
+    public int getConnectedDeviceCount() {
+        int count = 0;
+        for(PooledDevice device : devices.values()) {
+            if(device.isConnected()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public IDiagnosticProvider getDiagnosticProvider() {
+        return diagnosticProvider;
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        scheduler.shutdownNow();
+        List<IOException> failures = new ArrayList<IOException>();
+        for(PooledDevice device : devices.values()) {
+            try {
+                device.retire();
+            } catch (IOException e) {
+                failures.add(e);
+            }
+        }
+        if(!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+    }
+
+    void disconnectIdleDevices() {
+        disconnectIdleDevices(System.nanoTime());
+    }
+
+    void disconnectIdleDevices(long now) {
+        for(PooledDevice device : devices.values()) {
+            if(device.isConnected() && now - device.lastActivityNanos > idleTimeoutNanos) {
+                try {
+                    device.disconnect(true);
+                } catch (IOException e) {
+                    System.out.println("Failed to close idle device " + device.getDeviceId() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * A registered device and its statistics across reconnects.
+     */
+    public final class PooledDevice {
+        private final String deviceId;
+        private final String connString;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile DeviceClientWrapper wrapper;
+        private boolean retired;
+        private volatile long lastActivityNanos;
+        private final LongAdder messagesSent = new LongAdder();
+        private final AtomicLong connectCount = new AtomicLong();
+        private final AtomicLong idleDisconnectCount = new AtomicLong();
+
+        PooledDevice(String deviceId, String connString) {
+            this.deviceId = deviceId;
+            this.connString = connString;
+            this.lastActivityNanos = System.nanoTime();
+        }
+
+        void sendEventAsync(Message message, IotHubEventCallback callback, Object callbackContext) throws IOException {
+            lock.readLock().lock();
+            try {
+                DeviceClientWrapper current;
+                while((current = wrapper) == null) {
+                    lock.readLock().unlock();
+                    try {
+                        connect();
+                    } finally {
+                        lock.readLock().lock();
+                    }
+                }
+                lastActivityNanos = System.nanoTime();
+                current.sendEventAsync(message, callback, callbackContext);
+                messagesSent.increment();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private void connect() throws IOException {
+            lock.writeLock().lock();
+            try {
+                if(retired) {
+                    throw new IllegalStateException(closed ? "Pool is closed" : "Device " + deviceId + " has been removed");
+                }
+                if(wrapper == null) {
+                    DeviceClientWrapper created;
+                    try {
+                        created = new DeviceClientWrapper(connString, protocol, diagnosticProvider);
+                    } catch (URISyntaxException e) {
+                        throw new IllegalArgumentException("Invalid connection string for device " + deviceId, e);
+                    }
+                    try {
+                        created.open();
+                    } catch (IOException | RuntimeException e) {
+                        // the client may be connected already, e.g. when the twin failed to start
+                        try {
+                            created.close();
+                        } catch (IOException | RuntimeException closeFailure) {
+                            e.addSuppressed(closeFailure);
+                        }
+                        throw e;
+                    }
+                    wrapper = created;
+                    connectCount.incrementAndGet();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void retire() throws IOException {
+            lock.writeLock().lock();
+            try {
+                retired = true;
+                disconnect(false);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void disconnect(boolean idle) throws IOException {
+            // an idle sweep never waits for a sender, it simply tries again on the next sweep
+            if(idle) {
+                if(!lock.writeLock().tryLock()) {
+                    return;
+                }
+            } else {
+                lock.writeLock().lock();
+            }
+            try {
+                DeviceClientWrapper current = wrapper;
+                if(current == null) {
+                    return;
+                }
+                wrapper = null;
+                if(idle) {
+                    idleDisconnectCount.incrementAndGet();
+                }
+                current.close();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        public boolean isConnected() {
+            return wrapper != null;
+        }
+
+        /**
+         * Statistics of the current connection, or null while the device is disconnected.
+         */
+        public DeviceClientWrapperStatistics getConnectionStatistics() {
+            DeviceClientWrapper current = wrapper;
+            return current == null ? null : current.getStatistics();
+        }
+
+        public long getMessagesSent() {
+            return messagesSent.sum();
+        }
+
+        public long getConnectCount() {
+            return connectCount.get();
+        }
+
+        public long getIdleDisconnectCount() {
+            return idleDisconnectCount.get();
+        }
+
+        public long getIdleMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivityNanos);
+        }
+    }
+}
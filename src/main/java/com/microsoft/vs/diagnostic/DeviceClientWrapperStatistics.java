@@ -0,0 +1,131 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a {@link DeviceClientWrapper}, published as {@link DeviceClientWrapperMXBean}.
+ * Counters are LongAdders, so the send path only touches a per-thread cell and the cost of
+ * summing is paid by whoever reads them.
+ */
+public class DeviceClientWrapperStatistics implements DeviceClientWrapperMXBean {
+    private final DeviceClientWrapper wrapper;
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder reservedPropertyRejections = new LongAdder();
+    private final LongAdder[] callbackOutcomes;
+
+    DeviceClientWrapperStatistics(DeviceClientWrapper wrapper) {
+        this.wrapper = wrapper;
+        this.callbackOutcomes = new LongAdder[IotHubStatusCode.values().length];
+        for(int i = 0; i < callbackOutcomes.length; i++) {
+            callbackOutcomes[i] = new LongAdder();
+        }
+    }
+
+    void recordSent() {
+        messagesSent.increment();
+    }
+
+    void recordReservedPropertyRejection() {
+        reservedPropertyRejections.increment();
+    }
+
+    void recordOutcome(IotHubStatusCode status) {
+        if(status != null) {
+            callbackOutcomes[status.ordinal()].increment();
+        }
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    public long getMessagesSampled() {
+        return wrapper.getSendLatencyTracker().getTrackedCount();
+    }
+
+    public double getEffectiveSamplingRate() {
+        long sent = getMessagesSent();
+        return sent == 0 ? 0 : (double) getMessagesSampled() / sent;
+    }
+
+    public long getReservedPropertyRejections() {
+        return reservedPropertyRejections.sum();
+    }
+
+    public long getCallbackOutcome(IotHubStatusCode status) {
+        return callbackOutcomes[status.ordinal()].sum();
+    }
+
+    public Map<String, Long> getCallbackOutcomes() {
+        Map<String, Long> outcomes = new LinkedHashMap<String, Long>();
+        for(IotHubStatusCode status : IotHubStatusCode.values()) {
+            outcomes.put(status.name(), getCallbackOutcome(status));
+        }
+        return outcomes;
+    }
+
+    public String getSamplingRateSource() {
+        return String.valueOf(wrapper.getDiagnosticProvider().getSamplingRateSource());
+    }
+
+    public int getSamplingRatePercentage() {
+        return wrapper.getDiagnosticProvider().getSamplingRatePercentage();
+    }
+
+    public int getSamplingRatePartsPerMillion() {
+        return wrapper.getDiagnosticProvider().getSamplingRatePartsPerMillion();
+    }
+
+    public boolean isServerSamplingTurnedOn() {
+        return wrapper.getDiagnosticProvider().isServerSamplingTurnedOn();
+    }
+
+    public long getSendLatencyP50() {
+        return wrapper.getSendLatencyHistogram().getP50();
+    }
+
+    public long getSendLatencyP99() {
+        return wrapper.getSendLatencyHistogram().getP99();
+    }
+
+    public long getSendLatencyP999() {
+        return wrapper.getSendLatencyHistogram().getP999();
+    }
+
+    public int getInFlightSampledMessages() {
+        return wrapper.getInFlightSampledMessageCount();
+    }
+
+    public long getExpiredSampledMessages() {
+        return wrapper.getSendLatencyTracker().getExpiredCount();
+    }
+
+    public int getSendQueueDepth() {
+        SendPipeline pipeline = wrapper.getSendPipeline();
+        return pipeline == null ? 0 : pipeline.getQueueDepth();
+    }
+
+    public long getSendQueueRejections() {
+        SendPipeline pipeline = wrapper.getSendPipeline();
+        return pipeline == null ? 0 : pipeline.getRejectedCount();
+    }
+
+    public long getCallbackQueueDelayP99() {
+        CallbackDispatcher dispatcher = wrapper.getCallbackDispatcher();
+        return dispatcher == null ? 0 : dispatcher.getQueueDelayHistogram().getP99();
+    }
+
+    public long getCallbackExecutionTimeP99() {
+        CallbackDispatcher dispatcher = wrapper.getCallbackDispatcher();
+        return dispatcher == null ? 0 : dispatcher.getExecutionTimeHistogram().getP99();
+    }
+
+    public int getPendingCallbacks() {
+        CallbackDispatcher dispatcher = wrapper.getCallbackDispatcher();
+        return dispatcher == null ? 0 : dispatcher.getPendingCount();
+    }
+}
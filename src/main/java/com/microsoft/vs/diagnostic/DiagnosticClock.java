@@ -0,0 +1,10 @@
+package com.microsoft.vs.diagnostic;
+
+/**
+ * Time source used to stamp {@link IDiagnosticProvider#KEY_BEFORE_SEND_REQUEST}.
+ * Both methods return time since the Unix epoch.
+ */
+public interface DiagnosticClock {
+    public long currentTimeMillis();
+    public long currentTimeMicros();
+}
@@ -0,0 +1,19 @@
+package com.microsoft.vs.diagnostic;
+
+/**
+ * How {@link BaseDiagnosticProvider} writes the diagnostic stamp onto a sampled message.
+ */
+public enum DiagnosticEncoding {
+    /**
+     * Three string properties, {@link IDiagnosticProvider#KEY_CORRELATION_ID},
+     * {@link IDiagnosticProvider#KEY_BEFORE_SEND_REQUEST} and {@link IDiagnosticProvider#KEY_VERSION}
+     * set to {@link IDiagnosticProvider#DIAGNOSTIC_VERSION}. This is the original format.
+     */
+    PROPERTIES,
+    /**
+     * A single {@link IDiagnosticProvider#KEY_COMPACT} property holding id, before-send time in
+     * epoch microseconds and {@link IDiagnosticProvider#COMPACT_DIAGNOSTIC_VERSION} as base64url
+     * binary, see {@link CompactDiagnosticHeader}. The timestamp format setting does not apply.
+     */
+    COMPACT
+}
@@ -0,0 +1,58 @@
+package com.microsoft.vs.diagnostic;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for callback dispatch and for the blocking wrapper operations (open, twin start,
+ * reported properties).
+ *
+ * This is the Java 8 implementation, backed by cached pools of daemon platform threads. The
+ * library jar is multi-release: on Java 21 and later the class is replaced by one that runs
+ * every task on its own virtual thread, so thousands of devices can block on the network
+ * without a platform thread each.
+ */
+public final class DiagnosticExecutors {
+    private DiagnosticExecutors() {
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return false;
+    }
+
+    public static ExecutorService newCallbackExecutor() {
+        return Executors.newCachedThreadPool(new DaemonThreadFactory("diagnostic-callback-"));
+    }
+
+    public static ExecutorService newBlockingExecutor() {
+        return Executors.newCachedThreadPool(new DaemonThreadFactory("diagnostic-blocking-"));
+    }
+
+    /**
+     * Blocking executor shared by every wrapper that was not given its own.
+     */
+    public static ExecutorService sharedBlockingExecutor() {
+        return SharedBlockingExecutor.INSTANCE;
+    }
+
+    private static final class SharedBlockingExecutor {
+        static final ExecutorService INSTANCE = newBlockingExecutor();
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+
+/**
+ * One message as read back from a {@link DiagnosticRingLog} file.
+ */
+public class DiagnosticLogRecord {
+    private final long sequence;
+    private final String correlationId;
+    private final long sentMicros;
+    private final long acknowledgedMicros;
+    private final int sizeBytes;
+    private final IotHubStatusCode status;
+
+    DiagnosticLogRecord(long sequence, String correlationId, long sentMicros, long acknowledgedMicros, int sizeBytes, IotHubStatusCode status) {
+        this.sequence = sequence;
+        this.correlationId = correlationId;
+        this.sentMicros = sentMicros;
+        this.acknowledgedMicros = acknowledgedMicros;
+        this.sizeBytes = sizeBytes;
+        this.status = status;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * The correlation id, or null for a message that was not sampled. Ids that are not UUIDs
+     * are stored as a hash and read back as "#" followed by the hash code.
+     */
+    public String getCorrelationId() {
+        return correlationId;
+    }
+
+    public long getSentMicros() {
+        return sentMicros;
+    }
+
+    /**
+     * When the callback fired, in epoch micros, or 0 if it never did.
+     */
+    public long getAcknowledgedMicros() {
+        return acknowledgedMicros;
+    }
+
+    public boolean isPending() {
+        return acknowledgedMicros == 0;
+    }
+
+    /**
+     * Time from send to acknowledgement in microseconds, or -1 while pending.
+     */
+    public long getLatencyMicros() {
+        return isPending() ? -1 : acknowledgedMicros - sentMicros;
+    }
+
+    public int getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * The status passed to the callback, or null while pending.
+     */
+    public IotHubStatusCode getStatus() {
+        return status;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + "," + (correlationId == null ? "" : correlationId) + "," + sentMicros + ","
+                + acknowledgedMicros + "," + getLatencyMicros() + "," + sizeBytes + "," + (status == null ? "PENDING" : status);
+    }
+}
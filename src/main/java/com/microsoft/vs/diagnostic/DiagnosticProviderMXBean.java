@@ -0,0 +1,15 @@
+package com.microsoft.vs.diagnostic;
+
+/**
+ * JMX view of an {@link IDiagnosticProvider}: current (twin-driven) settings and, for
+ * providers derived from {@link BaseDiagnosticProvider}, processing counters.
+ */
+public interface DiagnosticProviderMXBean {
+    public String getSamplingRateSource();
+    public int getSamplingRatePercentage();
+    public int getSamplingRatePartsPerMillion();
+    public boolean isServerSamplingTurnedOn();
+    public long getMessagesProcessed();
+    public long getMessagesSampled();
+    public double getEffectiveSamplingRate();
+}
@@ -0,0 +1,47 @@
+package com.microsoft.vs.diagnostic;
+
+/**
+ * {@link DiagnosticProviderMXBean} implementation reading straight from the provider.
+ */
+public class DiagnosticProviderStatistics implements DiagnosticProviderMXBean {
+    private final IDiagnosticProvider diagnosticProvider;
+
+    public DiagnosticProviderStatistics(IDiagnosticProvider diagnosticProvider) {
+        this.diagnosticProvider = diagnosticProvider;
+    }
+
+    public String getSamplingRateSource() {
+        return String.valueOf(diagnosticProvider.getSamplingRateSource());
+    }
+
+    public int getSamplingRatePercentage() {
+        return diagnosticProvider.getSamplingRatePercentage();
+    }
+
+    public int getSamplingRatePartsPerMillion() {
+        return diagnosticProvider.getSamplingRatePartsPerMillion();
+    }
+
+    public boolean isServerSamplingTurnedOn() {
+        return diagnosticProvider.isServerSamplingTurnedOn();
+    }
+
+    public long getMessagesProcessed() {
+        if(diagnosticProvider instanceof BaseDiagnosticProvider) {
+            return ((BaseDiagnosticProvider) diagnosticProvider).getProcessedCount();
+        }
+        return 0;
+    }
+
+    public long getMessagesSampled() {
+        if(diagnosticProvider instanceof BaseDiagnosticProvider) {
+            return ((BaseDiagnosticProvider) diagnosticProvider).getSampledCount();
+        }
+        return 0;
+    }
+
+    public double getEffectiveSamplingRate() {
+        long processed = getMessagesProcessed();
+        return processed == 0 ? 0 : (double) getMessagesSampled() / processed;
+    }
+}
@@ -0,0 +1,232 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size, memory-mapped ring file of per-message diagnostic records, kept on the device so
+ * that sampled messages can be looked at after an incident even if the hub never got them.
+ *
+ * The file is a 64 byte header followed by capacity records of {@link #RECORD_SIZE} bytes:
+ * <pre>
+ *  0  long  sequence + 1 (0 marks an empty slot)
+ *  8  long  correlation id, most significant bits
+ * 16  long  correlation id, least significant bits
+ * 24  long  sent, epoch micros
+ * 32  long  acknowledged, epoch micros (0 while pending)
+ * 40  int   message size in bytes, -1 when unknown
+ * 44  int   IotHubStatusCode ordinal + 1 (0 while pending)
+ * 48  int   flags
+ * 52  int   reserved
+ * 56  long  sequence + 1 again, written last
+ * </pre>
+ * Record sequence n lives in slot n % capacity, so the oldest records are overwritten once
+ * the file is full. A record whose two sequence fields differ was torn by a crash and is
+ * skipped by {@link DiagnosticRingLogReader}. Writes go straight to the mapped pages, which the
+ * operating system flushes even if the process dies; {@link #flush()} forces them to disk.
+ * Reopening an existing file continues after its newest record.
+ *
+ * Recording copies primitive fields into the mapping, does not allocate and takes no lock:
+ * a writer claims its sequence, and so its slot, with an atomic increment. Two writers only
+ * meet in one slot when more records are being written at once than the ring holds.
+ */
+public class DiagnosticRingLog implements Closeable {
+    public static final int MAGIC = 0x44524c47; // "DRLG"
+    public static final int FORMAT_VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 64;
+
+    /** Flag set when the correlation id was not a UUID; the id fields then hold its hash code. */
+    public static final int FLAG_HASHED_ID = 1;
+
+    static final int OFFSET_MAGIC = 0;
+    static final int OFFSET_VERSION = 4;
+    static final int OFFSET_RECORD_SIZE = 8;
+    static final int OFFSET_CAPACITY = 12;
+    static final int OFFSET_NEXT_SEQUENCE = 16;
+
+    static final int FIELD_SEQUENCE = 0;
+    static final int FIELD_ID_MOST = 8;
+    static final int FIELD_ID_LEAST = 16;
+    static final int FIELD_SENT = 24;
+    static final int FIELD_ACKNOWLEDGED = 32;
+    static final int FIELD_SIZE = 40;
+    static final int FIELD_STATUS = 44;
+    static final int FIELD_FLAGS = 48;
+    static final int FIELD_SEQUENCE_END = 56;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final DiagnosticClock clock;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private volatile boolean closed;
+
+    public DiagnosticRingLog(File path, int capacity) throws IOException {
+        this(path, capacity, MonotonicClock.getInstance());
+    }
+
+    public DiagnosticRingLog(File path, int capacity, DiagnosticClock clock) throws IOException {
+        if(capacity <= 0 || capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE) {
+            throw new IllegalArgumentException("Invalid capacity");
+        }
+        if(clock == null) {
+            throw new IllegalArgumentException("Clock cannot be null");
+        }
+        this.capacity = capacity;
+        this.clock = clock;
+        this.file = new RandomAccessFile(path, "rw");
+        try {
+            long length = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+            boolean existing = file.length() == length;
+            this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if(existing && buffer.getInt(OFFSET_MAGIC) == MAGIC && buffer.getInt(OFFSET_VERSION) == FORMAT_VERSION
+                    && buffer.getInt(OFFSET_RECORD_SIZE) == RECORD_SIZE && buffer.getInt(OFFSET_CAPACITY) == capacity) {
+                this.nextSequence.set(findNextSequence());
+            } else {
+                for(long i = 0; i < length; i += 8) {
+                    buffer.putLong((int) i, 0L);
+                }
+                buffer.putInt(OFFSET_VERSION, FORMAT_VERSION);
+                buffer.putInt(OFFSET_RECORD_SIZE, RECORD_SIZE);
+                buffer.putInt(OFFSET_CAPACITY, capacity);
+                buffer.putInt(OFFSET_MAGIC, MAGIC);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        } catch (RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getRecordCount() {
+        return nextSequence.get();
+    }
+
+    /**
+     * Appends a pending record for a message of sizeBytes bytes that is being handed to the
+     * client and returns its sequence, to be passed to
+     * {@link #recordOutcome(long, IotHubStatusCode)}. The size is passed in because reading it
+     * from the message copies the body.
+     */
+    public long recordSent(Message message, int sizeBytes) {
+        if(closed) {
+            return -1;
+        }
+        long sequence = nextSequence.getAndIncrement();
+        int base = slotOffset(sequence);
+        String correlationId = message.getProperty(IDiagnosticProvider.KEY_CORRELATION_ID);
+        String compact = correlationId == null ? message.getProperty(IDiagnosticProvider.KEY_COMPACT) : null;
+        long most = 0;
+        long least = 0;
+        int flags = 0;
+        if(correlationId != null) {
+            if(CompactDiagnosticHeader.isUuid(correlationId)) {
+                most = CompactDiagnosticHeader.parseHex(correlationId, 0, 8) << 32
+                        | CompactDiagnosticHeader.parseHex(correlationId, 9, 4) << 16
+                        | CompactDiagnosticHeader.parseHex(correlationId, 14, 4);
+                least = CompactDiagnosticHeader.parseHex(correlationId, 19, 4) << 48
+                        | CompactDiagnosticHeader.parseHex(correlationId, 24, 12);
+            } else {
+                least = correlationId.hashCode();
+                flags |= FLAG_HASHED_ID;
+            }
+        } else if(compact != null) {
+            if(CompactDiagnosticHeader.hasUuidId(compact)) {
+                most = CompactDiagnosticHeader.uuidBits(compact, 0);
+                least = CompactDiagnosticHeader.uuidBits(compact, 1);
+            } else {
+                // hash the id itself, as for the separate properties, not the whole header
+                least = CompactDiagnosticHeader.hasTextId(compact) ? CompactDiagnosticHeader.textIdHashCode(compact) : compact.hashCode();
+                flags |= FLAG_HASHED_ID;
+            }
+        }
+        buffer.putLong(base + FIELD_SEQUENCE, sequence + 1);
+        buffer.putLong(base + FIELD_ID_MOST, most);
+        buffer.putLong(base + FIELD_ID_LEAST, least);
+        buffer.putLong(base + FIELD_SENT, clock.currentTimeMicros());
+        buffer.putLong(base + FIELD_ACKNOWLEDGED, 0L);
+        buffer.putInt(base + FIELD_SIZE, sizeBytes);
+        buffer.putInt(base + FIELD_STATUS, 0);
+        buffer.putInt(base + FIELD_FLAGS, flags);
+        buffer.putLong(base + FIELD_SEQUENCE_END, sequence + 1);
+        // a hint for reopening only, the slots themselves say which records are newest
+        buffer.putLong(OFFSET_NEXT_SEQUENCE, sequence + 1);
+        return sequence;
+    }
+
+    /**
+     * Fills in the outcome of a record, unless the ring has wrapped over it in the meantime.
+     * Like {@link #recordSent}, the writes are bracketed by the two sequence fields: if a newer
+     * record claimed the slot while the outcome was being written, the outcome may have landed
+     * in that record, so it is marked torn and readers skip it. A newer record still being
+     * written when the mark is made finishes by restoring its end sequence; it resets both
+     * outcome fields itself, so only an outcome written between those resets and its end can
+     * survive into it.
+     */
+    public void recordOutcome(long sequence, IotHubStatusCode status) {
+        if(closed || sequence < 0) {
+            return;
+        }
+        int base = slotOffset(sequence);
+        long marker = sequence + 1;
+        if(buffer.getLong(base + FIELD_SEQUENCE) != marker || buffer.getLong(base + FIELD_SEQUENCE_END) != marker) {
+            return;
+        }
+        buffer.putLong(base + FIELD_ACKNOWLEDGED, clock.currentTimeMicros());
+        buffer.putInt(base + FIELD_STATUS, status == null ? 0 : status.ordinal() + 1);
+        if(buffer.getLong(base + FIELD_SEQUENCE) != marker || buffer.getLong(base + FIELD_SEQUENCE_END) != marker) {
+            buffer.putLong(base + FIELD_SEQUENCE_END, 0L);
+        }
+    }
+
+    /**
+     * Forces the mapped records to disk, e.g. before a planned shutdown.
+     */
+    public synchronized void flush() {
+        if(!closed) {
+            buffer.force();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        buffer.force();
+        closed = true;
+        file.close();
+    }
+
+    private int slotOffset(long sequence) {
+        return HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+    }
+
+    private long findNextSequence() {
+        long next = 0;
+        for(int slot = 0; slot < capacity; slot++) {
+            int base = HEADER_SIZE + slot * RECORD_SIZE;
+            long marker = buffer.getLong(base + FIELD_SEQUENCE);
+            if(marker != 0 && marker == buffer.getLong(base + FIELD_SEQUENCE_END) && marker > next) {
+                next = marker;
+            }
+        }
+        return Math.max(next, buffer.getLong(OFFSET_NEXT_SEQUENCE));
+    }
+}
@@ -0,0 +1,159 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the records of a {@link DiagnosticRingLog} file back, oldest first. The file is copied
+ * into memory when the reader is created, so it can be read while a device is still writing
+ * to it. Records torn by a crash and records already overwritten are skipped.
+ *
+ * Run as a program it prints one comma separated line per record:
+ * sequence,correlation id,sent micros,acknowledged micros,latency micros,size,status
+ */
+public class DiagnosticRingLogReader implements Iterable<DiagnosticLogRecord> {
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final long firstSequence;
+    private final long nextSequence;
+
+    public DiagnosticRingLogReader(File path) throws IOException {
+        FileInputStream in = new FileInputStream(path);
+        try {
+            FileChannel channel = in.getChannel();
+            if(channel.size() < DiagnosticRingLog.HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a diagnostic log: " + path);
+            }
+            ByteBuffer copy = ByteBuffer.allocate((int) channel.size());
+            while(copy.hasRemaining() && channel.read(copy) >= 0) {
+            }
+            copy.order(ByteOrder.LITTLE_ENDIAN);
+            this.buffer = copy;
+        } finally {
+            in.close();
+        }
+        if(buffer.getInt(DiagnosticRingLog.OFFSET_MAGIC) != DiagnosticRingLog.MAGIC) {
+            throw new IOException("Not a diagnostic log: " + path);
+        }
+        if(buffer.getInt(DiagnosticRingLog.OFFSET_VERSION) != DiagnosticRingLog.FORMAT_VERSION
+                || buffer.getInt(DiagnosticRingLog.OFFSET_RECORD_SIZE) != DiagnosticRingLog.RECORD_SIZE) {
+            throw new IOException("Unsupported diagnostic log format in " + path);
+        }
+        this.capacity = buffer.getInt(DiagnosticRingLog.OFFSET_CAPACITY);
+        if(capacity <= 0 || DiagnosticRingLog.HEADER_SIZE + (long) capacity * DiagnosticRingLog.RECORD_SIZE != buffer.capacity()) {
+            throw new IOException("Truncated diagnostic log: " + path);
+        }
+        // the header counter can lag the newest record if the process died in between
+        long next = buffer.getLong(DiagnosticRingLog.OFFSET_NEXT_SEQUENCE);
+        for(int slot = 0; slot < capacity; slot++) {
+            long marker = buffer.getLong(offset(slot) + DiagnosticRingLog.FIELD_SEQUENCE);
+            if(isComplete(slot) && marker > next) {
+                next = marker;
+            }
+        }
+        this.nextSequence = next;
+        this.firstSequence = Math.max(0, next - capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Number of records ever written to the file, including overwritten ones.
+     */
+    public long getRecordCount() {
+        return nextSequence;
+    }
+
+    public Iterator<DiagnosticLogRecord> iterator() {
+        return new Iterator<DiagnosticLogRecord>() {
+            private long sequence = firstSequence;
+            private DiagnosticLogRecord next = advance();
+
+            private DiagnosticLogRecord advance() {
+                while(sequence < nextSequence) {
+                    DiagnosticLogRecord record = read(sequence++);
+                    if(record != null) {
+                        return record;
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public DiagnosticLogRecord next() {
+                if(next == null) {
+                    throw new NoSuchElementException();
+                }
+                DiagnosticLogRecord record = next;
+                next = advance();
+                return record;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private DiagnosticLogRecord read(long sequence) {
+        int slot = (int) (sequence % capacity);
+        int base = offset(slot);
+        if(!isComplete(slot) || buffer.getLong(base + DiagnosticRingLog.FIELD_SEQUENCE) != sequence + 1) {
+            return null;
+        }
+        long most = buffer.getLong(base + DiagnosticRingLog.FIELD_ID_MOST);
+        long least = buffer.getLong(base + DiagnosticRingLog.FIELD_ID_LEAST);
+        int flags = buffer.getInt(base + DiagnosticRingLog.FIELD_FLAGS);
+        String correlationId;
+        if((flags & DiagnosticRingLog.FLAG_HASHED_ID) != 0) {
+            correlationId = "#" + (int) least;
+        } else if(most == 0 && least == 0) {
+            correlationId = null;
+        } else {
+            char[] chars = new char[36];
+            TimeOrderedIdGenerator.format(most, least, chars);
+            correlationId = new String(chars);
+        }
+        int statusCode = buffer.getInt(base + DiagnosticRingLog.FIELD_STATUS);
+        IotHubStatusCode[] statuses = IotHubStatusCode.values();
+        IotHubStatusCode status = statusCode > 0 && statusCode <= statuses.length ? statuses[statusCode - 1] : null;
+        return new DiagnosticLogRecord(sequence, correlationId,
+                buffer.getLong(base + DiagnosticRingLog.FIELD_SENT),
+                buffer.getLong(base + DiagnosticRingLog.FIELD_ACKNOWLEDGED),
+                buffer.getInt(base + DiagnosticRingLog.FIELD_SIZE),
+                status);
+    }
+
+    private boolean isComplete(int slot) {
+        int base = offset(slot);
+        long marker = buffer.getLong(base + DiagnosticRingLog.FIELD_SEQUENCE);
+        return marker != 0 && marker == buffer.getLong(base + DiagnosticRingLog.FIELD_SEQUENCE_END);
+    }
+
+    private static int offset(int slot) {
+        return DiagnosticRingLog.HEADER_SIZE + slot * DiagnosticRingLog.RECORD_SIZE;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 1) {
+            System.err.println("Usage: DiagnosticRingLogReader <log file>");
+            System.exit(1);
+        }
+        for(DiagnosticLogRecord record : new DiagnosticRingLogReader(new File(args[0]))) {
+            System.out.println(record);
+        }
+    }
+}
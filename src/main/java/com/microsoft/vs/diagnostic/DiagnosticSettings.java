@@ -0,0 +1,100 @@
+package com.microsoft.vs.diagnostic;
+
+/**
+ * Immutable snapshot of the sampling settings of a provider.
+ *
+ * A provider publishes its settings through a single reference, so a sampling decision
+ * reads one snapshot and never sees, say, a new sampling source combined with the old
+ * sampling rate. Changes are made by deriving a new snapshot with the with* methods.
+ */
+public final class DiagnosticSettings {
+    private final IDiagnosticProvider.SamplingRateSource samplingRateSource;
+    private final int samplingRatePartsPerMillion;
+    private final boolean serverSamplingTurnedOn;
+    private final SamplingRules samplingRules;
+
+    public DiagnosticSettings(IDiagnosticProvider.SamplingRateSource samplingRateSource, int samplingRatePartsPerMillion, boolean serverSamplingTurnedOn) {
+        this(samplingRateSource, samplingRatePartsPerMillion, serverSamplingTurnedOn, SamplingRules.NONE);
+    }
+
+    public DiagnosticSettings(IDiagnosticProvider.SamplingRateSource samplingRateSource, int samplingRatePartsPerMillion, boolean serverSamplingTurnedOn, SamplingRules samplingRules) {
+        if(samplingRules == null) {
+            throw new IllegalArgumentException("Sampling rules cannot be null");
+        }
+        if(samplingRatePartsPerMillion > IDiagnosticProvider.PARTS_PER_MILLION || samplingRatePartsPerMillion < 0) {
+            throw new IllegalArgumentException("Invalid parts per million value");
+        }
+        this.samplingRateSource = samplingRateSource;
+        this.samplingRatePartsPerMillion = samplingRatePartsPerMillion;
+        this.serverSamplingTurnedOn = serverSamplingTurnedOn;
+        this.samplingRules = samplingRules;
+    }
+
+    public IDiagnosticProvider.SamplingRateSource getSamplingRateSource() {
+        return samplingRateSource;
+    }
+
+    public int getSamplingRatePartsPerMillion() {
+        return samplingRatePartsPerMillion;
+    }
+
+    /**
+     * The sampling rate rounded down to a whole percentage.
+     */
+    public int getSamplingRatePercentage() {
+        return samplingRatePartsPerMillion / IDiagnosticProvider.PARTS_PER_MILLION_PER_PERCENT;
+    }
+
+    public boolean isServerSamplingTurnedOn() {
+        return serverSamplingTurnedOn;
+    }
+
+    /**
+     * Per-message rules that override the sampling rate for the messages they match.
+     */
+    public SamplingRules getSamplingRules() {
+        return samplingRules;
+    }
+
+    /**
+     * Whether these settings let any message be sampled at all, before the rate is applied.
+     */
+    public boolean isSamplingEnabled() {
+        if(samplingRateSource == IDiagnosticProvider.SamplingRateSource.None) {
+            return false;
+        }
+        if(samplingRateSource == IDiagnosticProvider.SamplingRateSource.Server && !serverSamplingTurnedOn) {
+            return false;
+        }
+        return true;
+    }
+
+    public DiagnosticSettings withSamplingRateSource(IDiagnosticProvider.SamplingRateSource samplingRateSource) {
+        return new DiagnosticSettings(samplingRateSource, samplingRatePartsPerMillion, serverSamplingTurnedOn, samplingRules);
+    }
+
+    public DiagnosticSettings withSamplingRatePartsPerMillion(int samplingRatePartsPerMillion) {
+        return new DiagnosticSettings(samplingRateSource, samplingRatePartsPerMillion, serverSamplingTurnedOn, samplingRules);
+    }
+
+    public DiagnosticSettings withSamplingRatePercentage(int samplingRatePercentage) {
+        if(samplingRatePercentage > 100 || samplingRatePercentage < 0) {
+            throw new IllegalArgumentException("Invalid percentage value");
+        }
+        return withSamplingRatePartsPerMillion(samplingRatePercentage * IDiagnosticProvider.PARTS_PER_MILLION_PER_PERCENT);
+    }
+
+    public DiagnosticSettings withServerSamplingTurnedOn(boolean serverSamplingTurnedOn) {
+        return new DiagnosticSettings(samplingRateSource, samplingRatePartsPerMillion, serverSamplingTurnedOn, samplingRules);
+    }
+
+    public DiagnosticSettings withSamplingRules(SamplingRules samplingRules) {
+        return new DiagnosticSettings(samplingRateSource, samplingRatePartsPerMillion, serverSamplingTurnedOn, samplingRules);
+    }
+
+    @Override
+    public String toString() {
+        return "DiagnosticSettings{source=" + samplingRateSource + ", ppm=" + samplingRatePartsPerMillion
+                + ", serverSamplingTurnedOn=" + serverSamplingTurnedOn + ", rules=" + samplingRules + "}";
+    }
+}
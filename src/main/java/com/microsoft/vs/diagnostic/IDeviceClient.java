@@ -0,0 +1,34 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageCallback;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.DeviceMethodCallback;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Pair;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Property;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.PropertyCallBack;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The DeviceClient operations {@link DeviceClientWrapper} uses. Internal: it exists so the
+ * wrapper can run over {@link InMemoryDeviceClient} for network-free tests and load runs, and
+ * may change with the device SDK.
+ */
+public interface IDeviceClient {
+    public IotHubClientProtocol getProtocol();
+    public void open() throws IOException;
+    public void close() throws IOException;
+    public void sendEventAsync(Message message, IotHubEventCallback callback, Object callbackContext);
+    public void setMessageCallback(MessageCallback callback, Object context);
+    public void setOption(String optionName, Object value);
+    public void startDeviceTwin(IotHubEventCallback deviceTwinStatusCallback, Object deviceTwinStatusCallbackContext,
+                                PropertyCallBack genericPropertyCallBack, Object genericPropertyCallBackContext) throws IOException;
+    public void subscribeToDesiredProperties(Map<Property, Pair<PropertyCallBack<String, Object>, Object>> onDesiredPropertyChange) throws IOException;
+    public void sendReportedProperties(Set<Property> reportedProperties) throws IOException;
+    public void subscribeToDeviceMethod(DeviceMethodCallback deviceMethodCallback, Object deviceMethodCallbackContext,
+                                        IotHubEventCallback deviceMethodStatusCallback, Object deviceMethodStatusCallbackContext) throws IOException;
+}
@@ -2,6 +2,9 @@ package com.microsoft.vs.diagnostic;
 
 import com.microsoft.azure.sdk.iot.device.Message;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by zhqqi on 3/29/2017.
  */
@@ -12,12 +15,18 @@ public interface IDiagnosticProvider {
         Client,
         Server
     };
+    static int PARTS_PER_MILLION = 1000000;
+    static int PARTS_PER_MILLION_PER_PERCENT = PARTS_PER_MILLION / 100;
     static String DIAGNOSTIC_VERSION = "0.1.0";
+    static String COMPACT_DIAGNOSTIC_VERSION = "0.2.0";
     static String KEY_CORRELATION_ID = "x-correlation-id";
     static String KEY_BEFORE_SEND_REQUEST = "x-before-send-request";
     static String KEY_VERSION = "x-version";
+    static String KEY_COMPACT = "x-diag";
     static String KEY_TWIN_DIAG_SAMPLE_RATE = "diag_sample_rate";
     static String KEY_TWIN_DIAG_ENABLE = "diag_enable";
+    static String KEY_TWIN_DIAG_SAMPLE_TARGET = "diag_sample_target";
+    static String KEY_TWIN_DIAG_SAMPLE_RULES = "diag_sample_rules";
 
     public Message Process(Message message);
     public boolean NeedSampling();
@@ -27,4 +36,65 @@ public interface IDiagnosticProvider {
     public void setSamplingRatePercentage(int samplingRatePercentage);
     public void setServerSamplingTurnedOn(boolean serverSamplingTurnedOn);
     public boolean isServerSamplingTurnedOn();
+
+    // Methods added after the first release have defaults built on the ones above, so
+    // providers written against the original interface keep compiling and working.
+
+    public default List<Message> ProcessBatch(List<Message> messages) {
+        List<Message> processed = new ArrayList<Message>(messages.size());
+        for(Message message : messages) {
+            processed.add(Process(message));
+        }
+        return processed;
+    }
+
+    public default boolean NeedSampling(Message message) {
+        return NeedSampling();
+    }
+
+    public default int getSamplingRatePartsPerMillion() {
+        return getSamplingRatePercentage() * PARTS_PER_MILLION_PER_PERCENT;
+    }
+
+    /**
+     * The default rounds down to whole percents.
+     */
+    public default void setSamplingRatePartsPerMillion(int samplingRatePartsPerMillion) {
+        setSamplingRatePercentage(samplingRatePartsPerMillion / PARTS_PER_MILLION_PER_PERCENT);
+    }
+
+    public default SamplingRules getSamplingRules() {
+        return SamplingRules.NONE;
+    }
+
+    /**
+     * Providers that do not support sampling rules ignore them, including the ones sent through
+     * the device twin.
+     */
+    public default boolean isSamplingRulesSupported() {
+        return false;
+    }
+
+    public default void setSamplingRules(SamplingRules samplingRules) {
+        System.out.println("Sampling rules are not supported by " + getClass().getName() + ", ignoring them");
+    }
+
+    public default DiagnosticSettings getSettings() {
+        return new DiagnosticSettings(getSamplingRateSource(), getSamplingRatePartsPerMillion(), isServerSamplingTurnedOn(), getSamplingRules());
+    }
+
+    /**
+     * The default applies the settings one by one, so other threads can see them half applied.
+     */
+    public default void setSettings(DiagnosticSettings settings) {
+        if(settings == null) {
+            throw new IllegalArgumentException("Settings cannot be null");
+        }
+        setSamplingRateSource(settings.getSamplingRateSource());
+        setSamplingRatePartsPerMillion(settings.getSamplingRatePartsPerMillion());
+        setServerSamplingTurnedOn(settings.isServerSamplingTurnedOn());
+        if(isSamplingRulesSupported() && settings.getSamplingRules() != getSamplingRules()) {
+            setSamplingRules(settings.getSamplingRules());
+        }
+    }
 }
@@ -0,0 +1,9 @@
+package com.microsoft.vs.diagnostic;
+
+/**
+ * Generates the value stamped into {@link IDiagnosticProvider#KEY_CORRELATION_ID}.
+ * Implementations must be thread-safe, every sending thread calls nextId() directly.
+ */
+public interface IdGenerator {
+    public String nextId();
+}
@@ -0,0 +1,188 @@
+package com.microsoft.vs.diagnostic;
+
+/**
+ * Fixed-capacity table of outstanding sampled messages.
+ *
+ * Entries are keyed by a long ticket handed out by {@link #put(long)} and stored in the slot
+ * ticket % capacity, so all state lives in preallocated primitive arrays and memory use never
+ * grows. An entry leaves the table when it is completed, when it is older than the timeout
+ * (tracked with a hashed timing wheel that is advanced on every call), or when a newer ticket
+ * needs its slot while it is still pending. Each way out has its own counter.
+ *
+ * All times are System.nanoTime() readings supplied by the caller.
+ */
+public class InFlightTable {
+    private static final long FREE = -1;
+    private static final int NONE = -1;
+
+    private final int mask;
+    private final long[] tickets;
+    private final long[] startNanos;
+    private final long[] deadlineTicks;
+    private final int[] next;
+    private final int[] prev;
+
+    private final int[] wheel;
+    private final int wheelMask;
+    private final long tickNanos;
+    private final long timeoutTicks;
+
+    private boolean started;
+    private long originNanos;
+    private long currentTick;
+    private long nextTicket;
+    private int size;
+
+    private long completedCount;
+    private long expiredCount;
+    private long evictedCount;
+
+    public InFlightTable(int capacity, long timeoutMillis) {
+        this(capacity, timeoutMillis, Math.max(1, timeoutMillis / 64));
+    }
+
+    public InFlightTable(int capacity, long timeoutMillis, long tickMillis) {
+        if(capacity <= 0 || timeoutMillis <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("Capacity, timeout and tick must be positive");
+        }
+        int slots = nextPowerOfTwo(capacity);
+        this.mask = slots - 1;
+        this.tickets = new long[slots];
+        this.startNanos = new long[slots];
+        this.deadlineTicks = new long[slots];
+        this.next = new int[slots];
+        this.prev = new int[slots];
+        for(int i = 0; i < slots; i++) {
+            tickets[i] = FREE;
+        }
+
+        this.tickNanos = tickMillis * 1000000L;
+        this.timeoutTicks = (timeoutMillis + tickMillis - 1) / tickMillis;
+        int wheelSize = nextPowerOfTwo((int) Math.min(1 << 20, timeoutTicks + 2));
+        this.wheel = new int[wheelSize];
+        this.wheelMask = wheelSize - 1;
+        for(int i = 0; i < wheelSize; i++) {
+            wheel[i] = NONE;
+        }
+    }
+
+    /**
+     * Adds an entry started at nowNanos and returns its ticket.
+     */
+    public synchronized long put(long nowNanos) {
+        advance(nowNanos);
+        long ticket = nextTicket++;
+        int slot = (int) (ticket & mask);
+        if(tickets[slot] != FREE) {
+            unlink(slot);
+            size--;
+            evictedCount++;
+        }
+        tickets[slot] = ticket;
+        startNanos[slot] = nowNanos;
+        deadlineTicks[slot] = currentTick + timeoutTicks + 1;
+        link(slot);
+        size++;
+        return ticket;
+    }
+
+    /**
+     * Removes the entry and returns the nanoseconds since it was put, or -1 when it already
+     * expired or was evicted.
+     */
+    public synchronized long complete(long ticket, long nowNanos) {
+        advance(nowNanos);
+        int slot = (int) (ticket & mask);
+        if(tickets[slot] != ticket) {
+            return -1;
+        }
+        unlink(slot);
+        size--;
+        completedCount++;
+        return nowNanos - startNanos[slot];
+    }
+
+    /**
+     * Evicts every entry whose timeout has passed at nowNanos.
+     */
+    public synchronized void expire(long nowNanos) {
+        advance(nowNanos);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public synchronized long getCompletedCount() {
+        return completedCount;
+    }
+
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    private void advance(long nowNanos) {
+        if(!started) {
+            started = true;
+            originNanos = nowNanos;
+            return;
+        }
+        long nowTick = (nowNanos - originNanos) / tickNanos;
+        if(nowTick <= currentTick) {
+            return;
+        }
+        long steps = Math.min(nowTick - currentTick, wheel.length);
+        for(long tick = currentTick + 1; tick <= currentTick + steps; tick++) {
+            int slot = wheel[(int) (tick & wheelMask)];
+            while(slot != NONE) {
+                int following = next[slot];
+                if(deadlineTicks[slot] <= nowTick) {
+                    unlink(slot);
+                    size--;
+                    expiredCount++;
+                }
+                slot = following;
+            }
+        }
+        currentTick = nowTick;
+    }
+
+    private void link(int slot) {
+        int bucket = (int) (deadlineTicks[slot] & wheelMask);
+        int head = wheel[bucket];
+        prev[slot] = NONE;
+        next[slot] = head;
+        if(head != NONE) {
+            prev[head] = slot;
+        }
+        wheel[bucket] = slot;
+    }
+
+    private void unlink(int slot) {
+        if(prev[slot] != NONE) {
+            next[prev[slot]] = next[slot];
+        } else {
+            wheel[(int) (deadlineTicks[slot] & wheelMask)] = next[slot];
+        }
+        if(next[slot] != NONE) {
+            prev[next[slot]] = prev[slot];
+        }
+        tickets[slot] = FREE;
+    }
+
+    private static int nextPowerOfTwo(int value) {
+        int result = 1;
+        while(result < value) {
+            result <<= 1;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,465 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageCallback;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.DeviceMethodCallback;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.DeviceMethodData;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Pair;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Property;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.PropertyCallBack;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback {@link IDeviceClient} that stands in for the IoT Hub, so the whole wrapper can be
+ * tested and load tested without a network.
+ *
+ * Sent messages complete after a latency drawn uniformly between the configured minimum and
+ * maximum. A configurable fraction is lost, which the SDK reports as MESSAGE_EXPIRED once it
+ * gives up, and sends above the throttle rate (a token bucket holding one second of messages,
+ * and at least one) complete with THROTTLED. Everything else is accepted: it is counted,
+ * handed to the {@link Receiver} and completes with OK_EMPTY. Callbacks run on a scheduler
+ * shared by all instances unless one is given, so with jitter they can complete out of order.
+ * Closing the client completes pending messages with MESSAGE_CANCELLED_ONCLOSE on the closing
+ * thread.
+ *
+ * Desired properties are driven with {@link #patchDesiredProperties}; startDeviceTwin delivers
+ * the current desired properties like the SDK's initial twin read. Reported properties are
+ * kept and acknowledged on the twin status callback.
+ */
+public class InMemoryDeviceClient implements IDeviceClient {
+    /**
+     * Receives the accepted messages, on a scheduler thread, before their callback runs.
+     */
+    public interface Receiver {
+        void receive(Message message);
+    }
+
+    private static final long STREAM_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final IotHubClientProtocol protocol;
+    private final ScheduledExecutorService scheduler;
+    private final long seed;
+    private final AtomicLong nextStream = new AtomicLong();
+    private final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random(seed + nextStream.getAndIncrement() * STREAM_GAMMA);
+        }
+    };
+    private final Set<Delivery> pending = Collections.newSetFromMap(new ConcurrentHashMap<Delivery, Boolean>());
+    private volatile boolean open;
+    private volatile long minLatencyMicros;
+    private volatile long maxLatencyMicros;
+    private volatile double lossRate;
+    private volatile double throttleRate;
+    private final Object throttleLock = new Object();
+    private double throttleTokens;
+    private long throttleRefillNanos;
+    private volatile Receiver receiver;
+
+    private volatile MessageCallback messageCallback;
+    private volatile Object messageCallbackContext;
+    private volatile IotHubEventCallback twinStatusCallback;
+    private volatile Object twinStatusCallbackContext;
+    private volatile PropertyCallBack genericPropertyCallBack;
+    private volatile Object genericPropertyCallBackContext;
+    private volatile DeviceMethodCallback deviceMethodCallback;
+    private volatile Object deviceMethodCallbackContext;
+    private final ConcurrentMap<String, Pair<PropertyCallBack<String, Object>, Object>> desiredPropertyCallbacks = new ConcurrentHashMap<String, Pair<PropertyCallBack<String, Object>, Object>>();
+    private final Map<String, Object> desiredProperties = new LinkedHashMap<String, Object>();
+    private final ConcurrentMap<String, Object> reportedProperties = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentMap<String, Object> options = new ConcurrentHashMap<String, Object>();
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong acceptedBytes = new AtomicLong();
+    private final AtomicLong lostCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    public InMemoryDeviceClient() {
+        this(IotHubClientProtocol.MQTT, System.nanoTime());
+    }
+
+    /**
+     * The seed makes the latency and loss draws reproducible. Every sending thread draws from its
+     * own stream derived from the seed, numbered in the order the threads first send, so the
+     * threads do not contend on one generator.
+     */
+    public InMemoryDeviceClient(IotHubClientProtocol protocol, long seed) {
+        this(protocol, seed, SharedScheduler.INSTANCE);
+    }
+
+    public InMemoryDeviceClient(IotHubClientProtocol protocol, long seed, ScheduledExecutorService scheduler) {
+        if(protocol == null) {
+            throw new IllegalArgumentException("Protocol cannot be null");
+        }
+        if(scheduler == null) {
+            throw new IllegalArgumentException("Scheduler cannot be null");
+        }
+        this.protocol = protocol;
+        this.scheduler = scheduler;
+        this.seed = seed;
+    }
+
+    public void setLatency(long minLatencyMicros, long maxLatencyMicros) {
+        if(minLatencyMicros < 0 || maxLatencyMicros < minLatencyMicros) {
+            throw new IllegalArgumentException("Latency must satisfy 0 <= min <= max");
+        }
+        this.minLatencyMicros = minLatencyMicros;
+        this.maxLatencyMicros = maxLatencyMicros;
+    }
+
+    /**
+     * Fraction of the messages, 0 to 1, that complete with MESSAGE_EXPIRED.
+     */
+    public void setLossRate(double lossRate) {
+        if(!(lossRate >= 0 && lossRate <= 1)) {
+            throw new IllegalArgumentException("Loss rate must be between 0 and 1");
+        }
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * Messages per second above which sends complete with THROTTLED, 0 for no throttling.
+     */
+    public void setThrottleRate(double messagesPerSecond) {
+        if(!(messagesPerSecond >= 0) || Double.isInfinite(messagesPerSecond)) {
+            throw new IllegalArgumentException("Throttle rate must be zero or positive");
+        }
+        synchronized(throttleLock) {
+            this.throttleTokens = capacity(messagesPerSecond);
+            this.throttleRefillNanos = System.nanoTime();
+            this.throttleRate = messagesPerSecond;
+        }
+    }
+
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    public IotHubClientProtocol getProtocol() {
+        return protocol;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void open() throws IOException {
+        open = true;
+    }
+
+    public void close() throws IOException {
+        open = false;
+        for(Delivery delivery : pending) {
+            if(pending.remove(delivery)) {
+                cancelledCount.incrementAndGet();
+                delivery.complete(IotHubStatusCode.MESSAGE_CANCELLED_ONCLOSE);
+            }
+        }
+    }
+
+    public void sendEventAsync(Message message, IotHubEventCallback callback, Object callbackContext) {
+        if(!open) {
+            throw new IllegalStateException("Cannot send event from a closed client");
+        }
+        if(message == null) {
+            throw new IllegalArgumentException("Message cannot be null");
+        }
+        IotHubStatusCode status;
+        if(throttle()) {
+            throttledCount.incrementAndGet();
+            status = IotHubStatusCode.THROTTLED;
+        } else if(lossRate > 0 && random.get().nextDouble() < lossRate) {
+            lostCount.incrementAndGet();
+            status = IotHubStatusCode.MESSAGE_EXPIRED;
+        } else {
+            status = IotHubStatusCode.OK_EMPTY;
+        }
+        Delivery delivery = new Delivery(message, status, callback, callbackContext);
+        pending.add(delivery);
+        scheduler.schedule(delivery, nextLatencyMicros(), TimeUnit.MICROSECONDS);
+    }
+
+    public void setMessageCallback(MessageCallback callback, Object context) {
+        this.messageCallbackContext = context;
+        this.messageCallback = callback;
+    }
+
+    /**
+     * Delivers a cloud-to-device message to the message callback, on the calling thread.
+     */
+    public IotHubMessageResult sendCloudToDeviceMessage(Message message) {
+        MessageCallback callback = this.messageCallback;
+        if(callback == null) {
+            throw new IllegalStateException("No message callback is set");
+        }
+        return callback.execute(message, this.messageCallbackContext);
+    }
+
+    public void setOption(String optionName, Object value) {
+        if(optionName == null || value == null) {
+            throw new IllegalArgumentException("Option name and value cannot be null");
+        }
+        options.put(optionName, value);
+    }
+
+    public Object getOption(String optionName) {
+        return options.get(optionName);
+    }
+
+    public void startDeviceTwin(IotHubEventCallback deviceTwinStatusCallback, Object deviceTwinStatusCallbackContext,
+                                PropertyCallBack genericPropertyCallBack, Object genericPropertyCallBackContext) throws IOException {
+        if(!open) {
+            throw new IOException("Open the client connection before using it");
+        }
+        this.twinStatusCallbackContext = deviceTwinStatusCallbackContext;
+        this.twinStatusCallback = deviceTwinStatusCallback;
+        this.genericPropertyCallBackContext = genericPropertyCallBackContext;
+        this.genericPropertyCallBack = genericPropertyCallBack;
+        final Map<String, Object> current;
+        synchronized(desiredProperties) {
+            current = new LinkedHashMap<String, Object>(desiredProperties);
+        }
+        scheduler.execute(new Runnable() {
+            public void run() {
+                twinStatus(IotHubStatusCode.OK);
+                deliverDesired(current);
+            }
+        });
+    }
+
+    public void subscribeToDesiredProperties(Map<Property, Pair<PropertyCallBack<String, Object>, Object>> onDesiredPropertyChange) throws IOException {
+        checkTwinStarted();
+        for(Map.Entry<Property, Pair<PropertyCallBack<String, Object>, Object>> entry : onDesiredPropertyChange.entrySet()) {
+            desiredPropertyCallbacks.put(entry.getKey().getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Applies a desired-property patch and delivers it, property by property and in map order,
+     * to the subscribed or generic property callbacks. A null value deletes the property.
+     * Values are delivered as given; the SDK delivers scalars as strings (50 arrives as "50.0").
+     */
+    public void patchDesiredProperties(Map<String, Object> patch) {
+        final Map<String, Object> copy = new LinkedHashMap<String, Object>(patch);
+        synchronized(desiredProperties) {
+            for(Map.Entry<String, Object> entry : copy.entrySet()) {
+                if(entry.getValue() == null) {
+                    desiredProperties.remove(entry.getKey());
+                } else {
+                    desiredProperties.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        scheduler.execute(new Runnable() {
+            public void run() {
+                deliverDesired(copy);
+            }
+        });
+    }
+
+    public void sendReportedProperties(Set<Property> reportedProperties) throws IOException {
+        checkTwinStarted();
+        for(Property property : reportedProperties) {
+            if(property.getValue() == null) {
+                this.reportedProperties.remove(property.getKey());
+            } else {
+                this.reportedProperties.put(property.getKey(), property.getValue());
+            }
+        }
+        scheduler.execute(new Runnable() {
+            public void run() {
+                twinStatus(IotHubStatusCode.OK);
+            }
+        });
+    }
+
+    public Map<String, Object> getReportedProperties() {
+        return Collections.unmodifiableMap(new HashMap<String, Object>(reportedProperties));
+    }
+
+    public void subscribeToDeviceMethod(DeviceMethodCallback deviceMethodCallback, Object deviceMethodCallbackContext,
+                                        final IotHubEventCallback deviceMethodStatusCallback, final Object deviceMethodStatusCallbackContext) throws IOException {
+        if(!open) {
+            throw new IOException("Open the client connection before using it");
+        }
+        this.deviceMethodCallbackContext = deviceMethodCallbackContext;
+        this.deviceMethodCallback = deviceMethodCallback;
+        if(deviceMethodStatusCallback != null) {
+            scheduler.execute(new Runnable() {
+                public void run() {
+                    deviceMethodStatusCallback.execute(IotHubStatusCode.OK, deviceMethodStatusCallbackContext);
+                }
+            });
+        }
+    }
+
+    /**
+     * Invokes a direct method on the calling thread and returns the device's response.
+     */
+    public DeviceMethodData invokeMethod(String methodName, Object methodData) {
+        DeviceMethodCallback callback = this.deviceMethodCallback;
+        if(callback == null) {
+            throw new IllegalStateException("Device methods are not subscribed");
+        }
+        return callback.call(methodName, methodData, this.deviceMethodCallbackContext);
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    public long getAcceptedBytes() {
+        return acceptedBytes.get();
+    }
+
+    public long getLostCount() {
+        return lostCount.get();
+    }
+
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private void checkTwinStarted() throws IOException {
+        if(twinStatusCallback == null && genericPropertyCallBack == null) {
+            throw new IOException("Start device twin before using it");
+        }
+    }
+
+    private void twinStatus(IotHubStatusCode status) {
+        IotHubEventCallback callback = this.twinStatusCallback;
+        if(callback != null) {
+            callback.execute(status, this.twinStatusCallbackContext);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deliverDesired(Map<String, Object> properties) {
+        for(Map.Entry<String, Object> entry : properties.entrySet()) {
+            Pair<PropertyCallBack<String, Object>, Object> subscription = desiredPropertyCallbacks.get(entry.getKey());
+            if(subscription != null && subscription.getKey() != null) {
+                subscription.getKey().PropertyCall(entry.getKey(), entry.getValue(), subscription.getValue());
+                continue;
+            }
+            PropertyCallBack callback = this.genericPropertyCallBack;
+            if(callback != null) {
+                callback.PropertyCall(entry.getKey(), entry.getValue(), this.genericPropertyCallBackContext);
+            }
+        }
+    }
+
+    private boolean throttle() {
+        if(throttleRate <= 0) {
+            return false;
+        }
+        synchronized(throttleLock) {
+            double rate = this.throttleRate;
+            long now = System.nanoTime();
+            throttleTokens = Math.min(capacity(rate), throttleTokens + (now - throttleRefillNanos) * rate / TimeUnit.SECONDS.toNanos(1));
+            throttleRefillNanos = now;
+            if(throttleTokens < 1) {
+                return true;
+            }
+            throttleTokens -= 1;
+            return false;
+        }
+    }
+
+    /**
+     * One second of messages, but at least one so that a rate below 1/s still lets some through.
+     */
+    private static double capacity(double rate) {
+        return Math.max(1, rate);
+    }
+
+    private long nextLatencyMicros() {
+        long min = this.minLatencyMicros;
+        long max = this.maxLatencyMicros;
+        if(max <= min) {
+            return min;
+        }
+        return min + (long) (random.get().nextDouble() * (max - min + 1));
+    }
+
+    private final class Delivery implements Runnable {
+        private final Message message;
+        private final IotHubStatusCode status;
+        private final IotHubEventCallback callback;
+        private final Object callbackContext;
+
+        Delivery(Message message, IotHubStatusCode status, IotHubEventCallback callback, Object callbackContext) {
+            this.message = message;
+            this.status = status;
+            this.callback = callback;
+            this.callbackContext = callbackContext;
+        }
+
+        public void run() {
+            if(!pending.remove(this)) {
+                return;
+            }
+            if(status == IotHubStatusCode.OK_EMPTY) {
+                acceptedCount.incrementAndGet();
+                byte[] body = message.getBytes();
+                acceptedBytes.addAndGet(body == null ? 0 : body.length);
+                Receiver receiver = InMemoryDeviceClient.this.receiver;
+                if(receiver != null) {
+                    receiver.receive(message);
+                }
+            }
+            complete(status);
+        }
+
+        void complete(IotHubStatusCode status) {
+            if(callback != null) {
+                callback.execute(status, callbackContext);
+            }
+        }
+    }
+
+    private static final class SharedScheduler {
+        static final ScheduledExecutorService INSTANCE = create();
+
+        private static ScheduledExecutorService create() {
+            final AtomicInteger count = new AtomicInteger();
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "in-memory-hub-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
+}
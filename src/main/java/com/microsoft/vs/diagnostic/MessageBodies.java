@@ -0,0 +1,46 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+
+import java.lang.reflect.Field;
+
+/**
+ * Body length of a message without the copy of the body that Message.getBytes() makes, read
+ * from the SDK's private body field. Where that field cannot be read, e.g. under a security
+ * manager or with an SDK that renamed it, the length is reported as unknown.
+ */
+final class MessageBodies {
+    private static final Field BODY = bodyField();
+
+    private MessageBodies() {
+    }
+
+    /**
+     * The body length in bytes, or -1 when it cannot be read without copying the body.
+     */
+    static int length(Message message) {
+        if(BODY == null) {
+            return -1;
+        }
+        try {
+            byte[] body = (byte[]) BODY.get(message);
+            return body == null ? 0 : body.length;
+        } catch (IllegalAccessException | ClassCastException e) {
+            return -1;
+        }
+    }
+
+    private static Field bodyField() {
+        try {
+            Field field = Message.class.getDeclaredField("body");
+            if(field.getType() != byte[].class) {
+                return null;
+            }
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | RuntimeException e) {
+            System.out.println("Message sizes are not available to the diagnostic log: " + e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.microsoft.vs.diagnostic;
+
+/**
+ * Epoch clock derived from System.nanoTime().
+ *
+ * The wall-clock time is read once when the clock is created and every later reading adds
+ * the elapsed nanoTime to it, so timestamps have microsecond resolution and never go
+ * backwards when the system time is adjusted (e.g. by NTP) while the process runs.
+ */
+public class MonotonicClock implements DiagnosticClock {
+    private static final MonotonicClock INSTANCE = new MonotonicClock();
+
+    private final long anchorMicros;
+    private final long anchorNanos;
+
+    public MonotonicClock() {
+        this.anchorMicros = System.currentTimeMillis() * 1000L;
+        this.anchorNanos = System.nanoTime();
+    }
+
+    public static MonotonicClock getInstance() {
+        return INSTANCE;
+    }
+
+    public long currentTimeMillis() {
+        return currentTimeMicros() / 1000L;
+    }
+
+    public long currentTimeMicros() {
+        return anchorMicros + (System.nanoTime() - anchorNanos) / 1000L;
+    }
+}
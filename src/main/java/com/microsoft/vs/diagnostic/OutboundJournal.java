@@ -0,0 +1,392 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageProperty;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented journal of outbound messages that survives restarts.
+ *
+ * Every message gets a sequence number and is appended to the newest segment file of the
+ * directory; a new segment is started once the current one would grow past segmentBytes.
+ * An entry is [int payload length][int CRC32 of payload][long sequence][payload], where the
+ * payload holds the body, message id and all properties, diagnostic stamps included, so a
+ * replayed message keeps its original x-before-send-request. Entries are read back through
+ * read-only memory mappings.
+ *
+ * Acknowledged sequences move a watermark, the lowest sequence not yet acknowledged, which is
+ * kept in a small mapped file next to the segments. Acknowledgements above the watermark are
+ * only kept in memory, so after a restart those messages are replayed again. Segments entirely
+ * below the watermark are deleted. On open, a torn entry at the end of the newest segment (the process died while
+ * writing it) is cut off. When the segments take more than maxBytes, the oldest segment is
+ * dropped whether acknowledged or not, and its messages are counted as dropped.
+ */
+public class OutboundJournal implements Closeable {
+    static final String SEGMENT_SUFFIX = ".journal";
+    static final String WATERMARK_FILE = "watermark";
+    private static final int ENTRY_HEADER_SIZE = 16;
+
+    interface EntryHandler {
+        void onEntry(long sequence, Message message) throws InterruptedException;
+    }
+
+    private final File directory;
+    private final long segmentBytes;
+    private final long maxBytes;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final TreeSet<Long> acknowledgedAboveWatermark = new TreeSet<Long>();
+    private final RandomAccessFile watermarkFile;
+    private final MappedByteBuffer watermarkBuffer;
+    private RandomAccessFile activeFile;
+    private long nextSequence;
+    private long watermark;
+    private long totalBytes;
+    private long droppedCount;
+    private boolean closed;
+
+    public OutboundJournal(File directory, long segmentBytes, long maxBytes) throws IOException {
+        if(segmentBytes <= ENTRY_HEADER_SIZE || maxBytes < segmentBytes) {
+            throw new IllegalArgumentException("Segment size must hold an entry and cannot exceed the maximum size");
+        }
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        for(File file : files) {
+            Segment segment = new Segment(file, Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length())));
+            segments.add(segment);
+            totalBytes += file.length();
+        }
+
+        this.watermarkFile = new RandomAccessFile(new File(directory, WATERMARK_FILE), "rw");
+        this.watermarkBuffer = watermarkFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        this.watermark = watermarkBuffer.getLong(0);
+
+        if(segments.isEmpty()) {
+            nextSequence = watermark;
+        } else {
+            Segment last = segments.get(segments.size() - 1);
+            totalBytes -= last.file.length();
+            nextSequence = recover(last);
+            totalBytes += last.file.length();
+            watermark = Math.max(watermark, segments.get(0).firstSequence);
+            watermark = Math.min(watermark, nextSequence);
+            activeFile = new RandomAccessFile(last.file, "rw");
+            activeFile.seek(activeFile.length());
+        }
+        watermarkBuffer.putLong(0, watermark);
+    }
+
+    /**
+     * Persists the message and returns its sequence number.
+     */
+    public synchronized long append(Message message) throws IOException {
+        if(closed) {
+            throw new IOException("Journal is closed");
+        }
+        byte[] payload = encode(message);
+        int entrySize = ENTRY_HEADER_SIZE + payload.length;
+        if(activeFile == null || (activeFile.length() > 0 && activeFile.length() + entrySize > segmentBytes)) {
+            roll();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        long sequence = nextSequence;
+        ByteBuffer entry = ByteBuffer.allocate(entrySize);
+        entry.putInt(payload.length).putInt((int) crc.getValue()).putLong(sequence).put(payload);
+        entry.flip();
+        FileChannel channel = activeFile.getChannel();
+        while(entry.hasRemaining()) {
+            channel.write(entry);
+        }
+        nextSequence++;
+        totalBytes += entrySize;
+        enforceMaxBytes();
+        return sequence;
+    }
+
+    /**
+     * Marks the message as delivered (or as never to be delivered).
+     */
+    public synchronized void acknowledge(long sequence) {
+        if(closed || sequence < watermark || sequence >= nextSequence) {
+            return;
+        }
+        if(sequence != watermark) {
+            acknowledgedAboveWatermark.add(sequence);
+            return;
+        }
+        watermark++;
+        while(!acknowledgedAboveWatermark.isEmpty() && acknowledgedAboveWatermark.first() == watermark) {
+            acknowledgedAboveWatermark.pollFirst();
+            watermark++;
+        }
+        watermarkBuffer.putLong(0, watermark);
+        deleteAcknowledgedSegments();
+    }
+
+    public synchronized boolean isAcknowledged(long sequence) {
+        return sequence < watermark || acknowledgedAboveWatermark.contains(sequence);
+    }
+
+    /**
+     * Hands every unacknowledged entry with a sequence in [fromSequence, toSequence) to handler,
+     * oldest first. The journal is not locked while the handler runs.
+     */
+    void replay(long fromSequence, long toSequence, EntryHandler handler) throws IOException, InterruptedException {
+        List<Segment> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<Segment>(segments);
+        }
+        for(int i = 0; i < snapshot.size(); i++) {
+            Segment segment = snapshot.get(i);
+            if(i + 1 < snapshot.size() && snapshot.get(i + 1).firstSequence <= fromSequence) {
+                continue;
+            }
+            if(segment.firstSequence >= toSequence) {
+                break;
+            }
+            MappedByteBuffer buffer;
+            RandomAccessFile file;
+            try {
+                file = new RandomAccessFile(segment.file, "r");
+            } catch (IOException e) {
+                // deleted after being acknowledged or dropped
+                continue;
+            }
+            try {
+                buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                file.close();
+            }
+            while(buffer.remaining() >= ENTRY_HEADER_SIZE) {
+                int length = buffer.getInt();
+                int crc = buffer.getInt();
+                long sequence = buffer.getLong();
+                if(length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                if(sequence >= toSequence) {
+                    return;
+                }
+                if(sequence < fromSequence || isAcknowledged(sequence) || !checksumMatches(payload, crc)) {
+                    continue;
+                }
+                handler.onEntry(sequence, decode(payload));
+            }
+        }
+    }
+
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * The lowest sequence that has not been acknowledged.
+     */
+    public synchronized long getWatermark() {
+        return watermark;
+    }
+
+    public synchronized long getPendingCount() {
+        return nextSequence - watermark - acknowledgedAboveWatermark.size();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long getSizeBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public synchronized void flush() throws IOException {
+        if(closed) {
+            return;
+        }
+        if(activeFile != null) {
+            activeFile.getChannel().force(false);
+        }
+        watermarkBuffer.force();
+    }
+
+    public synchronized void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        if(activeFile != null) {
+            activeFile.close();
+        }
+        watermarkFile.close();
+    }
+
+    private void roll() throws IOException {
+        if(activeFile != null) {
+            activeFile.close();
+        }
+        File file = new File(directory, String.format("%020d", nextSequence) + SEGMENT_SUFFIX);
+        activeFile = new RandomAccessFile(file, "rw");
+        segments.add(new Segment(file, nextSequence));
+    }
+
+    private void deleteAcknowledgedSegments() {
+        while(segments.size() > 1 && segments.get(1).firstSequence <= watermark) {
+            Segment oldest = segments.get(0);
+            long length = oldest.file.length();
+            if(!oldest.file.delete()) {
+                // still mapped by a replay on some platforms, try again on the next acknowledgement
+                return;
+            }
+            totalBytes -= length;
+            segments.remove(0);
+        }
+    }
+
+    private void enforceMaxBytes() {
+        while(totalBytes > maxBytes && segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            long next = segments.get(1).firstSequence;
+            long length = oldest.file.length();
+            if(!oldest.file.delete()) {
+                return;
+            }
+            for(long sequence = Math.max(oldest.firstSequence, watermark); sequence < next; sequence++) {
+                if(!acknowledgedAboveWatermark.remove(sequence)) {
+                    droppedCount++;
+                }
+            }
+            totalBytes -= length;
+            segments.remove(0);
+            if(watermark < next) {
+                watermark = next;
+                while(!acknowledgedAboveWatermark.isEmpty() && acknowledgedAboveWatermark.first() == watermark) {
+                    acknowledgedAboveWatermark.pollFirst();
+                    watermark++;
+                }
+                watermarkBuffer.putLong(0, watermark);
+            }
+        }
+    }
+
+    /**
+     * Finds the end of the valid entries of the newest segment, cuts off anything after it
+     * and returns the sequence that follows the last valid entry.
+     */
+    private static long recover(Segment segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+        try {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            long next = segment.firstSequence;
+            int valid = 0;
+            while(buffer.remaining() >= ENTRY_HEADER_SIZE) {
+                int length = buffer.getInt();
+                int crc = buffer.getInt();
+                long sequence = buffer.getLong();
+                if(length < 0 || length > buffer.remaining() || sequence != next) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                if(!checksumMatches(payload, crc)) {
+                    break;
+                }
+                next++;
+                valid = buffer.position();
+            }
+            if(valid < file.length()) {
+                file.getChannel().truncate(valid);
+            }
+            return next;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static boolean checksumMatches(byte[] payload, int crc) {
+        CRC32 actual = new CRC32();
+        actual.update(payload);
+        return (int) actual.getValue() == crc;
+    }
+
+    static byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] body = message.getBytes();
+        out.writeInt(body == null ? 0 : body.length);
+        if(body != null) {
+            out.write(body);
+        }
+        String messageId = message.getMessageId();
+        out.writeBoolean(messageId != null);
+        if(messageId != null) {
+            out.writeUTF(messageId);
+        }
+        MessageProperty[] properties = message.getProperties();
+        out.writeInt(properties.length);
+        for(MessageProperty property : properties) {
+            out.writeUTF(property.getName());
+            out.writeUTF(property.getValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static Message decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        Message message = new Message(body);
+        if(in.readBoolean()) {
+            message.setMessageId(in.readUTF());
+        }
+        int count = in.readInt();
+        for(int i = 0; i < count; i++) {
+            message.setProperty(in.readUTF(), in.readUTF());
+        }
+        return message;
+    }
+
+    private static final class Segment {
+        final File file;
+        final long firstSequence;
+
+        Segment(File file, long firstSequence) {
+            this.file = file;
+            this.firstSequence = firstSequence;
+        }
+    }
+}
@@ -14,10 +14,11 @@ public class ProbabilityDiagnosticProvider extends BaseDiagnosticProvider {
 
     @Override
     public boolean NeedSampling() {
-        if(!super.NeedSampling()) {
+        DiagnosticSettings settings = getSettings();
+        if(!settings.isSamplingEnabled()) {
             return false;
         }
-        int n = rand.nextInt(100) + 1; //1-100
-        return n<=samplingRatePercentage;
+        int n = rand.nextInt(PARTS_PER_MILLION) + 1; //1-1000000
+        return n<=settings.getSamplingRatePartsPerMillion();
     }
 }
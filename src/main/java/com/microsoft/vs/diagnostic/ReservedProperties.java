@@ -0,0 +1,42 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageProperty;
+
+/**
+ * Lookup of the reserved diagnostic properties in a single pass over the message properties,
+ * instead of one Message.getProperty scan per reserved key.
+ */
+public final class ReservedProperties {
+    private static final int MIN_LENGTH = Math.min(Math.min(IDiagnosticProvider.KEY_VERSION.length(), IDiagnosticProvider.KEY_COMPACT.length()),
+            Math.min(IDiagnosticProvider.KEY_CORRELATION_ID.length(), IDiagnosticProvider.KEY_BEFORE_SEND_REQUEST.length()));
+
+    private ReservedProperties() {
+    }
+
+    /**
+     * Returns the first reserved property name found on the message, or null if there is none.
+     */
+    public static String findReserved(Message message) {
+        for(MessageProperty property : message.getProperties()) {
+            String name = property.getName();
+            // every reserved key starts with "x-", skip the rest without comparing strings
+            if(name.length() < MIN_LENGTH || name.charAt(1) != '-' || (name.charAt(0) != 'x' && name.charAt(0) != 'X')) {
+                continue;
+            }
+            if(property.hasSameName(IDiagnosticProvider.KEY_CORRELATION_ID)) {
+                return IDiagnosticProvider.KEY_CORRELATION_ID;
+            }
+            if(property.hasSameName(IDiagnosticProvider.KEY_BEFORE_SEND_REQUEST)) {
+                return IDiagnosticProvider.KEY_BEFORE_SEND_REQUEST;
+            }
+            if(property.hasSameName(IDiagnosticProvider.KEY_VERSION)) {
+                return IDiagnosticProvider.KEY_VERSION;
+            }
+            if(property.hasSameName(IDiagnosticProvider.KEY_COMPACT)) {
+                return IDiagnosticProvider.KEY_COMPACT;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,21 @@
+package com.microsoft.vs.diagnostic;
+
+/**
+ * When {@link BaseDiagnosticProvider} checks that a message does not already carry one of
+ * the reserved diagnostic properties.
+ */
+public enum ReservedPropertyValidation {
+    /**
+     * Check every message, sampled or not, so misuse is caught regardless of the sampling rate.
+     */
+    ALWAYS,
+    /**
+     * Check only messages that are about to be stamped. This is the original behaviour.
+     */
+    SAMPLED_ONLY,
+    /**
+     * Never check. Only for trusted pipelines where no sender sets the reserved properties;
+     * a reserved value set by a sender would be overwritten.
+     */
+    OFF
+}
@@ -0,0 +1,50 @@
+package com.microsoft.vs.diagnostic;
+
+/**
+ * Samples messages whose property propertyName equals propertyValue at a rate of their own,
+ * e.g. every alarm but only one heartbeat in a thousand. A value of {@link #ANY_VALUE}
+ * matches every message that has the property at all.
+ */
+public final class SamplingRule {
+    public static final String ANY_VALUE = "*";
+
+    private final String propertyName;
+    private final String propertyValue;
+    private final int samplingRatePartsPerMillion;
+
+    public SamplingRule(String propertyName, String propertyValue, int samplingRatePartsPerMillion) {
+        if(propertyName == null || propertyName.isEmpty()) {
+            throw new IllegalArgumentException("Property name cannot be empty");
+        }
+        if(propertyValue == null) {
+            throw new IllegalArgumentException("Property value cannot be null");
+        }
+        if(samplingRatePartsPerMillion > IDiagnosticProvider.PARTS_PER_MILLION || samplingRatePartsPerMillion < 0) {
+            throw new IllegalArgumentException("Invalid parts per million value");
+        }
+        this.propertyName = propertyName;
+        this.propertyValue = propertyValue;
+        this.samplingRatePartsPerMillion = samplingRatePartsPerMillion;
+    }
+
+    public String getPropertyName() {
+        return propertyName;
+    }
+
+    public String getPropertyValue() {
+        return propertyValue;
+    }
+
+    public int getSamplingRatePartsPerMillion() {
+        return samplingRatePartsPerMillion;
+    }
+
+    public boolean matchesAnyValue() {
+        return ANY_VALUE.equals(propertyValue);
+    }
+
+    @Override
+    public String toString() {
+        return propertyName + "=" + propertyValue + ":" + ((double) samplingRatePartsPerMillion / IDiagnosticProvider.PARTS_PER_MILLION_PER_PERCENT);
+    }
+}
@@ -0,0 +1,171 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An ordered list of sampling rules compiled for lookup on the send path.
+ *
+ * Rules are grouped by property name, and each name gets a hash table from property value
+ * to the first rule for that value. Matching a message therefore takes one pass over the
+ * message properties, with a hash lookup of each property name and, for the names rules
+ * refer to, one of the value, however many rules there are. When several
+ * rules match, the one listed first wins. Messages that no rule matches are sampled at the
+ * provider sampling rate.
+ *
+ * Rules sample deterministically: every rule keeps its own message sequence and samples
+ * exactly its rate out of every million matching messages, so a 100% alarm rule does not
+ * disturb the spacing of a 0.1% heartbeat rule.
+ *
+ * The text form, used for the diag_sample_rules desired property, is a ';' separated list of
+ * name=value:percentage entries, e.g. "type=alarm:100;type=heartbeat:0.1;priority=*:50".
+ */
+public final class SamplingRules {
+    public static final SamplingRules NONE = new SamplingRules(Collections.<SamplingRule>emptyList());
+
+    private final List<SamplingRule> rules;
+    private final Map<String, Integer> propertySlots;
+    private final List<Map<String, Integer>> rulesByValue;
+    private final int[] anyValueRules;
+    private final AtomicLongArray sequences;
+
+    public SamplingRules(List<SamplingRule> rules) {
+        if(rules == null) {
+            throw new IllegalArgumentException("Rules cannot be null");
+        }
+        this.rules = Collections.unmodifiableList(new ArrayList<SamplingRule>(rules));
+
+        List<String> names = new ArrayList<String>();
+        this.rulesByValue = new ArrayList<Map<String, Integer>>();
+        List<Integer> anyValue = new ArrayList<Integer>();
+        for(int i = 0; i < this.rules.size(); i++) {
+            SamplingRule rule = this.rules.get(i);
+            if(rule == null) {
+                throw new IllegalArgumentException("Rules cannot contain null");
+            }
+            int slot = names.indexOf(rule.getPropertyName());
+            if(slot < 0) {
+                slot = names.size();
+                names.add(rule.getPropertyName());
+                rulesByValue.add(new HashMap<String, Integer>());
+                anyValue.add(-1);
+            }
+            if(rule.matchesAnyValue()) {
+                if(anyValue.get(slot) < 0) {
+                    anyValue.set(slot, i);
+                }
+            } else if(!rulesByValue.get(slot).containsKey(rule.getPropertyValue())) {
+                rulesByValue.get(slot).put(rule.getPropertyValue(), i);
+            }
+        }
+        this.propertySlots = new HashMap<String, Integer>();
+        for(int i = 0; i < names.size(); i++) {
+            propertySlots.put(names.get(i), i);
+        }
+        this.anyValueRules = new int[anyValue.size()];
+        for(int i = 0; i < anyValueRules.length; i++) {
+            anyValueRules[i] = anyValue.get(i);
+        }
+        this.sequences = new AtomicLongArray(Math.max(this.rules.size(), 1));
+    }
+
+    /**
+     * Parses the text form described on the class, an empty or null string gives no rules.
+     */
+    public static SamplingRules parse(String text) {
+        if(text == null || text.trim().isEmpty()) {
+            return NONE;
+        }
+        List<SamplingRule> rules = new ArrayList<SamplingRule>();
+        for(String entry : text.split(";")) {
+            entry = entry.trim();
+            if(entry.isEmpty()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            int colon = entry.lastIndexOf(':');
+            if(equals <= 0 || colon < equals) {
+                throw new IllegalArgumentException("Invalid sampling rule " + entry);
+            }
+            double percentage;
+            try {
+                percentage = Double.parseDouble(entry.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid sampling rule " + entry);
+            }
+            if(Double.isNaN(percentage) || percentage < 0 || percentage > 100) {
+                throw new IllegalArgumentException("Invalid sampling rule " + entry);
+            }
+            rules.add(new SamplingRule(entry.substring(0, equals).trim(), entry.substring(equals + 1, colon).trim(),
+                    (int) Math.round(percentage * IDiagnosticProvider.PARTS_PER_MILLION_PER_PERCENT)));
+        }
+        return new SamplingRules(rules);
+    }
+
+    public List<SamplingRule> getRules() {
+        return rules;
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * The rule that decides the sampling of the message, or null when the provider sampling
+     * rate applies.
+     */
+    public SamplingRule match(Message message) {
+        int index = matchIndex(message);
+        return index < 0 ? null : rules.get(index);
+    }
+
+    int matchIndex(Message message) {
+        int best = -1;
+        for(MessageProperty property : message.getProperties()) {
+            Integer slot = propertySlots.get(property.getName());
+            if(slot == null) {
+                continue;
+            }
+            Integer candidate = rulesByValue.get(slot).get(property.getValue());
+            int index = candidate != null ? candidate : anyValueRules[slot];
+            if(index >= 0 && (best < 0 || index < best)) {
+                best = index;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Takes the next message of the rule's sequence and tells whether it is sampled.
+     */
+    boolean sample(int index) {
+        long rate = rules.get(index).getSamplingRatePartsPerMillion();
+        if(rate <= 0) {
+            return false;
+        }
+        if(rate >= IDiagnosticProvider.PARTS_PER_MILLION) {
+            return true;
+        }
+        long ticket = sequences.getAndIncrement(index);
+        return (ticket + 1) * rate / IDiagnosticProvider.PARTS_PER_MILLION != ticket * rate / IDiagnosticProvider.PARTS_PER_MILLION;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for(SamplingRule rule : rules) {
+            if(builder.length() > 0) {
+                builder.append(';');
+            }
+            builder.append(rule);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.DeviceClient;
+import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageCallback;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.DeviceMethodCallback;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Pair;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Property;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.PropertyCallBack;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link IDeviceClient} over a device SDK DeviceClient.
+ */
+class SdkDeviceClient implements IDeviceClient {
+    private final DeviceClient deviceClient;
+    private final IotHubClientProtocol protocol;
+
+    SdkDeviceClient(DeviceClient deviceClient, IotHubClientProtocol protocol) {
+        this.deviceClient = deviceClient;
+        this.protocol = protocol;
+    }
+
+    DeviceClient getDeviceClient() {
+        return deviceClient;
+    }
+
+    public IotHubClientProtocol getProtocol() {
+        return protocol;
+    }
+
+    public void open() throws IOException {
+        deviceClient.open();
+    }
+
+    public void close() throws IOException {
+        deviceClient.close();
+    }
+
+    public void sendEventAsync(Message message, IotHubEventCallback callback, Object callbackContext) {
+        deviceClient.sendEventAsync(message,callback,callbackContext);
+    }
+
+    public void setMessageCallback(MessageCallback callback, Object context) {
+        deviceClient.setMessageCallback(callback,context);
+    }
+
+    public void setOption(String optionName, Object value) {
+        deviceClient.setOption(optionName,value);
+    }
+
+    public void startDeviceTwin(IotHubEventCallback deviceTwinStatusCallback, Object deviceTwinStatusCallbackContext,
+                                PropertyCallBack genericPropertyCallBack, Object genericPropertyCallBackContext) throws IOException {
+        deviceClient.startDeviceTwin(deviceTwinStatusCallback,deviceTwinStatusCallbackContext,genericPropertyCallBack,genericPropertyCallBackContext);
+    }
+
+    public void subscribeToDesiredProperties(Map<Property, Pair<PropertyCallBack<String, Object>, Object>> onDesiredPropertyChange) throws IOException {
+        deviceClient.subscribeToDesiredProperties(onDesiredPropertyChange);
+    }
+
+    public void sendReportedProperties(Set<Property> reportedProperties) throws IOException {
+        deviceClient.sendReportedProperties(reportedProperties);
+    }
+
+    public void subscribeToDeviceMethod(DeviceMethodCallback deviceMethodCallback, Object deviceMethodCallbackContext,
+                                        IotHubEventCallback deviceMethodStatusCallback, Object deviceMethodStatusCallbackContext) throws IOException {
+        deviceClient.subscribeToDeviceMethod(deviceMethodCallback,deviceMethodCallbackContext,deviceMethodStatusCallback,deviceMethodStatusCallbackContext);
+    }
+}
@@ -0,0 +1,139 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the time from handing a sampled message to the DeviceClient until its
+ * IotHubEventCallback fires. Pending messages are kept in a bounded {@link InFlightTable},
+ * so acknowledgements that never arrive (e.g. while the hub is unreachable) expire instead of
+ * leaking. Latencies of successful sends (OK, OK_EMPTY), in microseconds, go into a
+ * {@link LatencyHistogram}; the time until a failure was reported goes into a separate one, so
+ * fast rejections and slow expiries do not skew the send latency.
+ * When a {@link DiagnosticRingLog} is attached, every tracked message and its outcome are
+ * also written to it.
+ */
+public class SendLatencyTracker {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    private final InFlightTable inFlight;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final LatencyHistogram failureHistogram = new LatencyHistogram();
+    private final LongAdder trackedCount = new LongAdder();
+    private volatile DiagnosticRingLog diagnosticLog;
+
+    public SendLatencyTracker() {
+        this(DEFAULT_CAPACITY, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public SendLatencyTracker(int capacity, long timeoutMillis) {
+        this.inFlight = new InFlightTable(capacity, timeoutMillis);
+    }
+
+    /**
+     * Registers the message if it carries a correlation id and returns the callback to give to
+     * the client in place of the user's one. Unsampled messages keep their original callback.
+     */
+    public IotHubEventCallback track(Message message, IotHubEventCallback callback) {
+        return track(message, -1, callback);
+    }
+
+    /**
+     * Same as above for a message of sizeBytes bytes. When the size is not known (negative) and
+     * a {@link DiagnosticRingLog} is attached, the body length is read from the message without
+     * copying the body; if even that is not possible the log records -1.
+     */
+    public IotHubEventCallback track(Message message, int sizeBytes, IotHubEventCallback callback) {
+        if(!CompactDiagnosticHeader.isStamped(message)) {
+            return callback;
+        }
+        trackedCount.increment();
+        DiagnosticRingLog log = diagnosticLog;
+        long record = -1;
+        if(log != null) {
+            if(sizeBytes < 0) {
+                sizeBytes = MessageBodies.length(message);
+            }
+            record = log.recordSent(message, sizeBytes);
+        }
+        return new TrackedCallback(inFlight.put(System.nanoTime()), log, record, callback);
+    }
+
+    void complete(long ticket, DiagnosticRingLog log, long record, IotHubStatusCode status) {
+        long elapsedNanos = inFlight.complete(ticket, System.nanoTime());
+        if(elapsedNanos >= 0) {
+            boolean succeeded = status == IotHubStatusCode.OK || status == IotHubStatusCode.OK_EMPTY;
+            (succeeded ? histogram : failureHistogram).recordValue(elapsedNanos / 1000L);
+        }
+        if(log != null) {
+            log.recordOutcome(record, status);
+        }
+    }
+
+    public DiagnosticRingLog getDiagnosticLog() {
+        return diagnosticLog;
+    }
+
+    /**
+     * Writes messages tracked from now on to log, or stops writing them when log is null.
+     */
+    public void setDiagnosticLog(DiagnosticRingLog log) {
+        this.diagnosticLog = log;
+    }
+
+    /**
+     * Send-to-acknowledgement latency of successful sends, in microseconds.
+     */
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Time from send until a failure status was reported, in microseconds.
+     */
+    public LatencyHistogram getFailureHistogram() {
+        return failureHistogram;
+    }
+
+    public long getTrackedCount() {
+        return trackedCount.sum();
+    }
+
+    public int getInFlightCount() {
+        inFlight.expire(System.nanoTime());
+        return inFlight.size();
+    }
+
+    public long getExpiredCount() {
+        return inFlight.getExpiredCount();
+    }
+
+    public long getEvictedCount() {
+        return inFlight.getEvictedCount();
+    }
+
+    private class TrackedCallback implements IotHubEventCallback {
+        private final long ticket;
+        private final DiagnosticRingLog log;
+        private final long record;
+        private final IotHubEventCallback userCallback;
+
+        TrackedCallback(long ticket, DiagnosticRingLog log, long record, IotHubEventCallback userCallback) {
+            this.ticket = ticket;
+            this.log = log;
+            this.record = record;
+            this.userCallback = userCallback;
+        }
+
+        public void execute(IotHubStatusCode status, Object context) {
+            complete(ticket, log, record, status);
+            if(userCallback != null) {
+                userCallback.execute(status, context);
+            }
+        }
+    }
+}
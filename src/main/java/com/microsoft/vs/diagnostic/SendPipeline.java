@@ -0,0 +1,244 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded hand-off between message producers and the DeviceClient.
+ *
+ * Producers only enqueue; worker threads run the diagnostic provider and pass messages to the
+ * client. When the queue is full the configured {@link OverflowPolicy} decides what happens,
+ * so a stalled connection can no longer grow the heap without limit. Messages that are dropped
+ * are handed to {@link Sink#drop}, which by default invokes their callback with
+ * {@link IotHubStatusCode#ERROR}.
+ *
+ * Every message accepted by submit is either handed to the sink or has its callback invoked,
+ * also when close() runs concurrently: the workers only exit once no producer is inside submit.
+ * A closed pipeline cannot be reopened.
+ */
+public class SendPipeline {
+    public enum OverflowPolicy
+    {
+        /** Block the producer until there is room. */
+        BLOCK,
+        /** Drop the oldest queued message to make room for the new one. */
+        DROP_OLDEST,
+        /** Drop the new message. */
+        DROP_NEWEST,
+        /** Throw IllegalStateException to the producer. */
+        FAIL_FAST
+    };
+
+    interface Sink {
+        void send(Message message, IotHubEventCallback callback, Object callbackContext);
+
+        /**
+         * A message the overflow policy dropped, or that an interrupted producer could not
+         * enqueue. It is never handed to send.
+         */
+        default void drop(Message message, IotHubEventCallback callback, Object callbackContext) {
+            if(callback != null) {
+                callback.execute(IotHubStatusCode.ERROR, callbackContext);
+            }
+        }
+    }
+
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final BlockingQueue<PendingEvent> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final Sink sink;
+    private final Thread[] workers;
+    private volatile boolean closed;
+    // producers between their closed check and the end of their enqueue
+    private final AtomicInteger activeProducers = new AtomicInteger();
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    SendPipeline(int capacity, int workerCount, OverflowPolicy overflowPolicy, Sink sink) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        if(workerCount <= 0) {
+            throw new IllegalArgumentException("Worker count must be positive");
+        }
+        if(overflowPolicy == null || sink == null) {
+            throw new IllegalArgumentException("Overflow policy and sink cannot be null");
+        }
+        this.queue = new ArrayBlockingQueue<PendingEvent>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.sink = sink;
+        this.workers = new Thread[workerCount];
+        for(int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(new Worker(), "diagnostic-send-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public void submit(Message message, IotHubEventCallback callback, Object callbackContext) {
+        activeProducers.incrementAndGet();
+        try {
+            if(closed) {
+                throw new IllegalStateException("Send pipeline is closed");
+            }
+            enqueue(new PendingEvent(message, callback, callbackContext));
+        } finally {
+            activeProducers.decrementAndGet();
+        }
+    }
+
+    private void enqueue(PendingEvent event) {
+        submittedCount.incrementAndGet();
+        switch(overflowPolicy) {
+            case BLOCK:
+                try {
+                    queue.put(event);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    drop(event);
+                }
+                break;
+            case DROP_OLDEST:
+                while(!queue.offer(event)) {
+                    PendingEvent oldest = queue.poll();
+                    if(oldest != null) {
+                        drop(oldest);
+                    }
+                }
+                break;
+            case DROP_NEWEST:
+                if(!queue.offer(event)) {
+                    drop(event);
+                }
+                break;
+            case FAIL_FAST:
+                if(!queue.offer(event)) {
+                    rejectedCount.incrementAndGet();
+                    throw new IllegalStateException("Send pipeline queue is full");
+                }
+                break;
+        }
+    }
+
+    /**
+     * Stops accepting messages, waits for producers still inside submit and for the workers to
+     * drain the queue, and cancels whatever could not be handed to the client.
+     */
+    public void close() {
+        closed = true;
+        for(Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        PendingEvent event;
+        while((event = queue.poll()) != null) {
+            reject(event, IotHubStatusCode.MESSAGE_CANCELLED_ONCLOSE);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getRemainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    private void drop(PendingEvent event) {
+        rejectedCount.incrementAndGet();
+        sink.drop(event.message, event.callback, event.callbackContext);
+    }
+
+    private void reject(PendingEvent event, IotHubStatusCode status) {
+        rejectedCount.incrementAndGet();
+        if(event.callback != null) {
+            event.callback.execute(status, event.callbackContext);
+        }
+    }
+
+    private class Worker implements Runnable {
+        public void run() {
+            while(true) {
+                PendingEvent event;
+                try {
+                    event = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if(event == null) {
+                    // a producer that got past the closed check may still enqueue
+                    if(closed && activeProducers.get() == 0 && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    sink.send(event.message, event.callback, event.callbackContext);
+                    sentCount.incrementAndGet();
+                } catch (IllegalArgumentException e) {
+                    // reserved diagnostic property set by the user
+                    failedCount.incrementAndGet();
+                    if(event.callback != null) {
+                        event.callback.execute(IotHubStatusCode.BAD_FORMAT, event.callbackContext);
+                    }
+                } catch (RuntimeException e) {
+                    failedCount.incrementAndGet();
+                    if(event.callback != null) {
+                        event.callback.execute(IotHubStatusCode.ERROR, event.callbackContext);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class PendingEvent {
+        final Message message;
+        final IotHubEventCallback callback;
+        final Object callbackContext;
+
+        PendingEvent(Message message, IotHubEventCallback callback, Object callbackContext) {
+            this.message = message;
+            this.callback = callback;
+            this.callbackContext = callbackContext;
+        }
+    }
+}
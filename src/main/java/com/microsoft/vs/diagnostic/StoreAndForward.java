@@ -0,0 +1,305 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends messages through an {@link OutboundJournal} so that they are not lost while the device
+ * is offline or restarting.
+ *
+ * Each message is journaled before it is handed to the client and acknowledged in the journal
+ * when its callback reports delivery or a permanent rejection. When the wrapper opens, a replay
+ * thread resends whatever an earlier session left unacknowledged, then keeps resending messages
+ * of this session whose callback reported a transient failure (throttling, server busy, expiry,
+ * generic errors), up to maxAttempts sends per message; after that the message is acknowledged
+ * as given up. Resends are paced to at most replayMessagesPerSecond. Replayed messages are sent
+ * exactly as journaled, so their diagnostic stamps, and thus the measured end-to-end delay, are
+ * the original ones. The user callback is invoked once per message with its final outcome:
+ * delivery, a permanent rejection, the last transient failure once the attempts are used up,
+ * or {@link IotHubStatusCode#MESSAGE_CANCELLED_ONCLOSE} when the wrapper closes first (the
+ * message then stays journaled for the next session). Delivery is at least once: a crash
+ * between delivery and acknowledgement resends the message.
+ */
+public class StoreAndForward {
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    private static final AtomicLong threadCount = new AtomicLong();
+
+    private final OutboundJournal journal;
+    private final long replayIntervalNanos;
+    private final int maxAttempts;
+    private final SendPipeline.Sink sink;
+    private final IotHubEventCallback replayCallback;
+    private final long sessionStartSequence;
+    private final LinkedBlockingQueue<RetryEntry> retries = new LinkedBlockingQueue<RetryEntry>();
+    private final Thread replayThread;
+    private volatile boolean closed;
+    private long nextSendNanos;
+
+    private final AtomicLong replayedCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong abandonedCount = new AtomicLong();
+
+    StoreAndForward(OutboundJournal journal, double replayMessagesPerSecond, SendPipeline.Sink sink) {
+        this(journal, replayMessagesPerSecond, DEFAULT_MAX_ATTEMPTS, sink, null);
+    }
+
+    /**
+     * replayCallback receives the outcomes of the messages of earlier sessions.
+     */
+    StoreAndForward(OutboundJournal journal, double replayMessagesPerSecond, int maxAttempts, SendPipeline.Sink sink,
+                    IotHubEventCallback replayCallback) {
+        if(replayMessagesPerSecond <= 0 || Double.isNaN(replayMessagesPerSecond) || Double.isInfinite(replayMessagesPerSecond)) {
+            throw new IllegalArgumentException("Replay rate must be positive");
+        }
+        if(maxAttempts <= 0) {
+            throw new IllegalArgumentException("Max attempts must be positive");
+        }
+        this.journal = journal;
+        this.replayIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / replayMessagesPerSecond);
+        this.maxAttempts = maxAttempts;
+        this.sink = sink;
+        this.replayCallback = replayCallback;
+        this.sessionStartSequence = journal.getNextSequence();
+        this.replayThread = new Thread(new Runnable() {
+            public void run() {
+                replay();
+            }
+        }, "diagnostic-replay-" + threadCount.incrementAndGet());
+        this.replayThread.setDaemon(true);
+    }
+
+    void start() {
+        replayThread.start();
+    }
+
+    /**
+     * Journals the message and returns the callback to give to the client in place of callback.
+     * If the message cannot be journaled it is still sent, just not protected.
+     */
+    IotHubEventCallback track(Message message, IotHubEventCallback callback) {
+        long sequence;
+        try {
+            sequence = journal.append(message);
+        } catch (IOException e) {
+            System.out.println("Failed to journal message: " + e.getMessage());
+            return callback;
+        }
+        return new JournalCallback(sequence, message, callback, 1);
+    }
+
+    /**
+     * Forgets a message tracked by {@link #track} that will never be handed to the client, e.g.
+     * because the caller got an exception instead.
+     */
+    void discard(IotHubEventCallback callback) {
+        if(callback instanceof JournalCallback) {
+            journal.acknowledge(((JournalCallback) callback).sequence);
+        }
+    }
+
+    public OutboundJournal getJournal() {
+        return journal;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Messages of earlier sessions resent by this one.
+     */
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    /**
+     * Messages of this session resent after a transient failure.
+     */
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    /**
+     * Messages given up after maxAttempts transient failures.
+     */
+    public long getAbandonedCount() {
+        return abandonedCount.get();
+    }
+
+    public int getRetryQueueDepth() {
+        return retries.size();
+    }
+
+    /**
+     * Stops resending. Messages waiting for a retry stay journaled for the next session and
+     * their callbacks get {@link IotHubStatusCode#MESSAGE_CANCELLED_ONCLOSE}.
+     */
+    void close() throws IOException {
+        closed = true;
+        replayThread.interrupt();
+        try {
+            replayThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        RetryEntry entry;
+        while((entry = retries.poll()) != null) {
+            entry.cancel();
+        }
+        journal.close();
+    }
+
+    void onOutcome(JournalCallback attempt, IotHubStatusCode status, Object context) {
+        if(status == IotHubStatusCode.MESSAGE_CANCELLED_ONCLOSE || (isTransient(status) && closed)) {
+            // left in the journal for the next session
+            attempt.report(status, context);
+            return;
+        }
+        if(isTransient(status)) {
+            if(attempt.attempt < maxAttempts) {
+                RetryEntry entry = new RetryEntry(attempt, context);
+                retries.offer(entry);
+                if(closed && retries.remove(entry)) {
+                    entry.cancel();
+                }
+                return;
+            }
+            abandonedCount.incrementAndGet();
+        }
+        journal.acknowledge(attempt.sequence);
+        attempt.report(status, context);
+    }
+
+    static boolean isTransient(IotHubStatusCode status) {
+        return status == IotHubStatusCode.THROTTLED
+                || status == IotHubStatusCode.SERVER_BUSY
+                || status == IotHubStatusCode.INTERNAL_SERVER_ERROR
+                || status == IotHubStatusCode.ERROR
+                || status == IotHubStatusCode.MESSAGE_EXPIRED;
+    }
+
+    private void replay() {
+        nextSendNanos = System.nanoTime();
+        try {
+            journal.replay(journal.getWatermark(), sessionStartSequence, new OutboundJournal.EntryHandler() {
+                public void onEntry(long sequence, Message message) throws InterruptedException {
+                    replayedCount.incrementAndGet();
+                    resend(new JournalCallback(sequence, message, replayCallback, 1), null);
+                }
+            });
+            while(!closed) {
+                RetryEntry entry = retries.take();
+                if(!journal.isAcknowledged(entry.failed.sequence)) {
+                    retriedCount.incrementAndGet();
+                    resend(entry.failed.nextAttempt(), entry.context);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closing
+        } catch (IOException e) {
+            System.out.println("Failed to replay journal: " + e.getMessage());
+        }
+    }
+
+    private void resend(JournalCallback attempt, Object context) throws InterruptedException {
+        long waitNanos = nextSendNanos - System.nanoTime();
+        try {
+            if(waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+            if(closed) {
+                // the interrupt of close() may have been consumed elsewhere
+                throw new InterruptedException();
+            }
+        } catch (InterruptedException e) {
+            attempt.report(IotHubStatusCode.MESSAGE_CANCELLED_ONCLOSE, context);
+            throw e;
+        }
+        nextSendNanos = Math.max(nextSendNanos, System.nanoTime() - replayIntervalNanos) + replayIntervalNanos;
+        try {
+            sink.send(attempt.message, attempt, context);
+        } catch (IllegalArgumentException e) {
+            // reserved diagnostic property, the message can never be sent
+            attempt.execute(IotHubStatusCode.BAD_FORMAT, context);
+        } catch (RuntimeException e) {
+            System.out.println("Failed to resend message: " + e);
+            attempt.execute(IotHubStatusCode.ERROR, context);
+        }
+    }
+
+    private static final class RetryEntry {
+        final JournalCallback failed;
+        final Object context;
+
+        RetryEntry(JournalCallback failed, Object context) {
+            this.failed = failed;
+            this.context = context;
+        }
+
+        void cancel() {
+            failed.report(IotHubStatusCode.MESSAGE_CANCELLED_ONCLOSE, context);
+        }
+    }
+
+    /**
+     * One send attempt of a journaled message. next is the callback that gets the final outcome;
+     * the wrapper may replace it before the first attempt is sent.
+     */
+    class JournalCallback implements IotHubEventCallback {
+        private final long sequence;
+        private final Message message;
+        private final int attempt;
+        private volatile IotHubEventCallback next;
+
+        JournalCallback(long sequence, Message message, IotHubEventCallback next, int attempt) {
+            this.sequence = sequence;
+            this.message = message;
+            this.next = next;
+            this.attempt = attempt;
+        }
+
+        IotHubEventCallback getNext() {
+            return next;
+        }
+
+        void setNext(IotHubEventCallback next) {
+            this.next = next;
+        }
+
+        /**
+         * Gives the message up without sending it: acknowledges it in the journal, so it is
+         * neither retried nor replayed, and reports status to next.
+         */
+        void abandon(IotHubStatusCode status, Object context) {
+            journal.acknowledge(sequence);
+            report(status, context);
+        }
+
+        JournalCallback nextAttempt() {
+            return new JournalCallback(sequence, message, next, attempt + 1);
+        }
+
+        void report(IotHubStatusCode status, Object context) {
+            IotHubEventCallback callback = next;
+            if(callback != null) {
+                try {
+                    callback.execute(status, context);
+                } catch (RuntimeException e) {
+                    // may run on the replay thread, which must keep going
+                    System.out.println("Send callback failed: " + e);
+                }
+            }
+        }
+
+        public void execute(IotHubStatusCode status, Object context) {
+            onOutcome(this, status, context);
+        }
+    }
+}
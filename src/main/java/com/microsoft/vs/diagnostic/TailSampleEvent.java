@@ -0,0 +1,74 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+
+/**
+ * A message that failed, was slow to be acknowledged, or was never acknowledged, recorded
+ * whether or not it was picked by head sampling.
+ */
+public class TailSampleEvent {
+    public enum Reason
+    {
+        /** The callback reported a status other than OK or OK_EMPTY. */
+        ERROR,
+        /** The acknowledgement took longer than the latency threshold. */
+        SLOW,
+        /** No acknowledgement arrived within the latency threshold; the message is still pending. */
+        STALLED
+    };
+
+    private final Reason reason;
+    private final IotHubStatusCode status;
+    private final String correlationId;
+    private final String messageId;
+    private final int sizeBytes;
+    private final long latencyMicros;
+
+    TailSampleEvent(Reason reason, IotHubStatusCode status, String correlationId, String messageId, int sizeBytes, long latencyMicros) {
+        this.reason = reason;
+        this.status = status;
+        this.correlationId = correlationId;
+        this.messageId = messageId;
+        this.sizeBytes = sizeBytes;
+        this.latencyMicros = latencyMicros;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Callback status, or null for {@link Reason#STALLED}.
+     */
+    public IotHubStatusCode getStatus() {
+        return status;
+    }
+
+    /**
+     * x-correlation-id of the message, or null when it was not head-sampled.
+     */
+    public String getCorrelationId() {
+        return correlationId;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public int getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * Time from hand-off to acknowledgement, or to detection for {@link Reason#STALLED}.
+     */
+    public long getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "TailSampleEvent{reason=" + reason + ", status=" + status + ", correlationId=" + correlationId
+                + ", messageId=" + messageId + ", sizeBytes=" + sizeBytes + ", latencyMicros=" + latencyMicros + "}";
+    }
+}
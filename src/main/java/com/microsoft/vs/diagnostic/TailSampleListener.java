@@ -0,0 +1,9 @@
+package com.microsoft.vs.diagnostic;
+
+/**
+ * Receives tail samples. Called on the SDK callback thread (or the sending thread for stalled
+ * messages), so implementations should hand the event off rather than block.
+ */
+public interface TailSampleListener {
+    public void onTailSample(TailSampleEvent event);
+}
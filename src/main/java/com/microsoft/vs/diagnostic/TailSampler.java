@@ -0,0 +1,213 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tail-biased sampling: keeps track of every message sent, sampled or not, and reports the
+ * messages that end badly to a {@link TailSampleListener}.
+ *
+ * A message is reported when its callback returns an error status, or when its acknowledgement
+ * takes longer than the latency threshold. Pending messages also sit in a fixed ring of slots
+ * indexed by a per-message ticket, which a shared timer sweeps for messages that have been
+ * pending longer than the threshold (they stalled); a stalled message is reported once, and
+ * again as slow or failed if it is acknowledged later. When the ring is too small for the
+ * messages in flight, a still pending message loses its slot: it is counted as evicted and can
+ * no longer be found stalled, but its acknowledgement is still checked.
+ *
+ * Tracking takes no lock and does not read the message; the body size and ids are only read
+ * for a message that is reported. The head sampling rate is not affected.
+ */
+public class TailSampler {
+    private static final int PENDING = 0;
+    private static final int STALLED = 1;
+    private static final int DONE = 2;
+    private static final AtomicIntegerFieldUpdater<TailCallback> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(TailCallback.class, "state");
+
+    private final TailSampleListener listener;
+    private final long latencyThresholdNanos;
+    private final long sweepIntervalMillis;
+    private final int mask;
+    private final AtomicReferenceArray<TailCallback> slots;
+    private final AtomicLong nextTicket = new AtomicLong();
+    private ScheduledFuture<?> sweepTask;
+
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong slowCount = new AtomicLong();
+    private final AtomicLong stalledCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    public TailSampler(int capacity, long latencyThresholdMillis, TailSampleListener listener) {
+        this(capacity, latencyThresholdMillis, Math.max(1, latencyThresholdMillis / 2), listener);
+    }
+
+    /**
+     * As above, but sweeps for stalled messages every sweepIntervalMillis instead of every half
+     * latency threshold.
+     */
+    public TailSampler(int capacity, long latencyThresholdMillis, long sweepIntervalMillis, TailSampleListener listener) {
+        if(capacity <= 0 || latencyThresholdMillis <= 0 || sweepIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Capacity, latency threshold and sweep interval must be positive");
+        }
+        if(listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null");
+        }
+        int slotCount = 1;
+        while(slotCount < capacity) {
+            slotCount <<= 1;
+        }
+        this.listener = listener;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.sweepIntervalMillis = sweepIntervalMillis;
+        this.mask = slotCount - 1;
+        this.slots = new AtomicReferenceArray<TailCallback>(slotCount);
+        start();
+    }
+
+    /**
+     * Records the message and returns the callback to pass to the client in place of callback.
+     */
+    public IotHubEventCallback track(Message message, IotHubEventCallback callback) {
+        long ticket = nextTicket.getAndIncrement();
+        TailCallback tracked = new TailCallback(ticket, System.nanoTime(), message, callback);
+        TailCallback previous = slots.getAndSet((int) (ticket & mask), tracked);
+        if(previous != null && previous.state != DONE) {
+            evictedCount.incrementAndGet();
+            sweep(previous, tracked.startNanos);
+        }
+        return tracked;
+    }
+
+    /**
+     * Starts the stalled message sweep again after {@link #close()}. The constructor starts it.
+     */
+    public synchronized void start() {
+        if(sweepTask == null) {
+            sweepTask = SweepScheduler.INSTANCE.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    sweep();
+                }
+            }, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the stalled message sweep. Acknowledgements are still checked.
+     */
+    public synchronized void close() {
+        if(sweepTask != null) {
+            sweepTask.cancel(false);
+            sweepTask = null;
+        }
+    }
+
+    void sweep() {
+        sweep(System.nanoTime());
+    }
+
+    void sweep(long now) {
+        for(int i = 0; i < slots.length(); i++) {
+            TailCallback tracked = slots.get(i);
+            if(tracked != null) {
+                sweep(tracked, now);
+            }
+        }
+    }
+
+    private void sweep(TailCallback tracked, long now) {
+        if(now - tracked.startNanos > latencyThresholdNanos && STATE.compareAndSet(tracked, PENDING, STALLED)) {
+            stalledCount.incrementAndGet();
+            listener.onTailSample(event(tracked, TailSampleEvent.Reason.STALLED, null, now));
+        }
+    }
+
+    void complete(TailCallback tracked, IotHubStatusCode status) {
+        long now = System.nanoTime();
+        if(STATE.getAndSet(tracked, DONE) == DONE) {
+            return;
+        }
+        slots.compareAndSet((int) (tracked.ticket & mask), tracked, null);
+        TailSampleEvent event = null;
+        if(status != IotHubStatusCode.OK && status != IotHubStatusCode.OK_EMPTY) {
+            errorCount.incrementAndGet();
+            event = event(tracked, TailSampleEvent.Reason.ERROR, status, now);
+        } else if(now - tracked.startNanos > latencyThresholdNanos) {
+            slowCount.incrementAndGet();
+            event = event(tracked, TailSampleEvent.Reason.SLOW, status, now);
+        }
+        if(event != null) {
+            listener.onTailSample(event);
+        }
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    public long getSlowCount() {
+        return slowCount.get();
+    }
+
+    public long getStalledCount() {
+        return stalledCount.get();
+    }
+
+    /**
+     * Messages that lost their slot while still pending, because more messages were in flight
+     * than the sampler has slots.
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    private static TailSampleEvent event(TailCallback tracked, TailSampleEvent.Reason reason, IotHubStatusCode status, long now) {
+        Message message = tracked.message;
+        byte[] body = message.getBytes();
+        return new TailSampleEvent(reason, status, CompactDiagnosticHeader.getCorrelationId(message), message.getMessageId(),
+                body == null ? 0 : body.length, TimeUnit.NANOSECONDS.toMicros(now - tracked.startNanos));
+    }
+
+    private class TailCallback implements IotHubEventCallback {
+        private final long ticket;
+        private final long startNanos;
+        private final Message message;
+        private final IotHubEventCallback userCallback;
+        // not private, so that STATE can update it on Java 8
+        volatile int state = PENDING;
+
+        TailCallback(long ticket, long startNanos, Message message, IotHubEventCallback userCallback) {
+            this.ticket = ticket;
+            this.startNanos = startNanos;
+            this.message = message;
+            this.userCallback = userCallback;
+        }
+
+        public void execute(IotHubStatusCode status, Object context) {
+            complete(this, status);
+            if(userCallback != null) {
+                userCallback.execute(status, context);
+            }
+        }
+    }
+
+    private static final class SweepScheduler {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "diagnostic-tail-sweep");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
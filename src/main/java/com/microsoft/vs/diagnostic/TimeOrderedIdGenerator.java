@@ -0,0 +1,61 @@
+package com.microsoft.vs.diagnostic;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Default correlation id generator.
+ *
+ * Ids are 128 bits laid out as
+ * [48 bit epoch millis][16 bit process prefix] [32 bit process prefix][32 bit sequence]
+ * and printed in the usual 8-4-4-4-12 hex form, so they sort by creation time and keep the
+ * format the cloud side already expects from UUIDs. The 48 bit process prefix is drawn once
+ * from SecureRandom; after that generating an id costs one atomic increment and one String.
+ */
+public class TimeOrderedIdGenerator implements IdGenerator {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int ID_LENGTH = 36;
+
+    private final long processPrefix;
+    private final AtomicLong sequence;
+    private final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[ID_LENGTH];
+        }
+    };
+
+    public TimeOrderedIdGenerator() {
+        SecureRandom random = new SecureRandom();
+        this.processPrefix = random.nextLong() & 0xFFFFFFFFFFFFL;
+        this.sequence = new AtomicLong(random.nextInt());
+    }
+
+    public String nextId() {
+        long seq = sequence.getAndIncrement();
+        long mostSigBits = (System.currentTimeMillis() << 16) | (processPrefix >>> 32);
+        long leastSigBits = (processPrefix << 32) | (seq & 0xFFFFFFFFL);
+        char[] buf = buffers.get();
+        format(mostSigBits, leastSigBits, buf);
+        return new String(buf);
+    }
+
+    static void format(long mostSigBits, long leastSigBits, char[] buf) {
+        writeHex(buf, 0, mostSigBits >>> 32, 8);
+        buf[8] = '-';
+        writeHex(buf, 9, mostSigBits >>> 16, 4);
+        buf[13] = '-';
+        writeHex(buf, 14, mostSigBits, 4);
+        buf[18] = '-';
+        writeHex(buf, 19, leastSigBits >>> 48, 4);
+        buf[23] = '-';
+        writeHex(buf, 24, leastSigBits, 12);
+    }
+
+    private static void writeHex(char[] buf, int offset, long value, int digits) {
+        for(int i = offset + digits - 1; i >= offset; i--) {
+            buf[i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.microsoft.vs.diagnostic;
+
+import java.util.Date;
+
+/**
+ * Encoding of the {@link IDiagnosticProvider#KEY_BEFORE_SEND_REQUEST} value.
+ */
+public enum TimestampFormat {
+    /**
+     * java.util.Date#toString(), second resolution. This is the original format.
+     */
+    DATE_STRING {
+        @Override
+        public String format(DiagnosticClock clock) {
+            return new Date(clock.currentTimeMillis()).toString();
+        }
+    },
+    /**
+     * Decimal milliseconds since the Unix epoch.
+     */
+    EPOCH_MILLIS {
+        @Override
+        public String format(DiagnosticClock clock) {
+            return Long.toString(clock.currentTimeMillis());
+        }
+    },
+    /**
+     * Decimal microseconds since the Unix epoch.
+     */
+    EPOCH_MICROS {
+        @Override
+        public String format(DiagnosticClock clock) {
+            return Long.toString(clock.currentTimeMicros());
+        }
+    };
+
+    public abstract String format(DiagnosticClock clock);
+}
@@ -0,0 +1,13 @@
+package com.microsoft.vs.diagnostic;
+
+import java.util.UUID;
+
+/**
+ * Random (type 4) UUID correlation ids, the original behaviour of the provider.
+ * Backed by the shared SecureRandom, so prefer {@link TimeOrderedIdGenerator} on hot paths.
+ */
+public class UuidIdGenerator implements IdGenerator {
+    public String nextId() {
+        return UUID.randomUUID().toString();
+    }
+}
@@ -0,0 +1,40 @@
+package com.microsoft.vs.diagnostic;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors for callback dispatch and for the blocking wrapper operations (open, twin start,
+ * reported properties).
+ *
+ * This is the Java 21 implementation, packaged under META-INF/versions/21 of the library jar.
+ * Every task runs on its own virtual thread, so a blocked SDK call parks a virtual thread
+ * instead of holding a platform thread.
+ */
+public final class DiagnosticExecutors {
+    private DiagnosticExecutors() {
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return true;
+    }
+
+    public static ExecutorService newCallbackExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("diagnostic-callback-", 0).factory());
+    }
+
+    public static ExecutorService newBlockingExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("diagnostic-blocking-", 0).factory());
+    }
+
+    /**
+     * Blocking executor shared by every wrapper that was not given its own.
+     */
+    public static ExecutorService sharedBlockingExecutor() {
+        return SharedBlockingExecutor.INSTANCE;
+    }
+
+    private static final class SharedBlockingExecutor {
+        static final ExecutorService INSTANCE = newBlockingExecutor();
+    }
+}
@@ -0,0 +1,129 @@
+package com.microsoft.vs.diagnostic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CallbackDispatcherTest {
+
+    @Test
+    // Tasks with the same ordering key run in dispatch order on a thread pool
+    public void sameKeyKeepsOrder() throws InterruptedException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CallbackDispatcher dispatcher = new CallbackDispatcher(executor);
+        Object[] keys = {new Object(), new Object(), new Object()};
+        final List<List<Integer>> seen = new ArrayList<List<Integer>>();
+        final CountDownLatch done = new CountDownLatch(3 * 1000);
+        for(int k = 0; k < keys.length; k++) {
+            seen.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        for(int i = 0; i < 1000; i++) {
+            for(int k = 0; k < keys.length; k++) {
+                final List<Integer> list = seen.get(k);
+                final int value = i;
+                dispatcher.dispatch(keys[k], new Runnable() {
+                    public void run() {
+                        list.add(value);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        // counters are updated after the task body, so let the lanes finish first
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        for(List<Integer> list : seen) {
+            for(int i = 0; i < 1000; i++) {
+                assertEquals((int) list.get(i), i);
+            }
+        }
+        assertEquals(dispatcher.getDispatchedCount(), 3000);
+        assertEquals(dispatcher.getPendingCount(), 0);
+        assertEquals(dispatcher.getQueueDelayHistogram().getTotalCount(), 3000);
+        assertEquals(dispatcher.getExecutionTimeHistogram().getTotalCount(), 3000);
+        assertEquals(dispatcher.getLaneCount(), 0);
+    }
+
+    @Test
+    // A slow callback does not hold up the dispatching thread or any other key
+    public void slowCallbackDoesNotBlockOthers() throws InterruptedException
+    {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(executor);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch fast = new CountDownLatch(100);
+        try {
+            dispatcher.dispatch("slow", new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            for(int i = 0; i < 100; i++) {
+                dispatcher.dispatch(new Object(), new Runnable() {
+                    public void run() {
+                        fast.countDown();
+                    }
+                });
+            }
+            assertTrue(fast.await(5, TimeUnit.SECONDS));
+            // only the slow lane is left once the fast lanes have updated their counters
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while(dispatcher.getLaneCount() > 1 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(dispatcher.getLaneCount(), 1);
+            assertEquals(dispatcher.getPendingCount(), 1);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(dispatcher.getPendingCount(), 0);
+    }
+
+    @Test
+    // Callbacks run on the caller when the executor refuses them, and failures are counted
+    public void rejectedAndFailingCallbacks()
+    {
+        CallbackDispatcher dispatcher = new CallbackDispatcher(new Executor() {
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        });
+        final List<String> ran = new ArrayList<String>();
+        dispatcher.dispatch(null, new Runnable() {
+            public void run() {
+                ran.add("first");
+            }
+        });
+        dispatcher.dispatch(null, new Runnable() {
+            public void run() {
+                throw new IllegalStateException("handler bug");
+            }
+        });
+        assertEquals(ran.size(), 1);
+        assertEquals(dispatcher.getRejectedCount(), 2);
+        assertEquals(dispatcher.getFailedCount(), 1);
+        assertEquals(dispatcher.getPendingCount(), 0);
+    }
+}
@@ -0,0 +1,148 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.DeviceClient;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.PropertyCallBack;
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.Verifications;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeviceClientWrapperPoolTest {
+
+    @Mocked
+    DeviceClient mockDeviceClient;
+
+    final String DEVICE_CONNECTION_STRING = "HostName=iothub.device.com;DeviceId=java;SharedAccessKey=NMNxZNArh";
+
+    @Test
+    // Devices connect on first send only
+    public void devicesConnectLazily() throws IOException
+    {
+        DeviceClientWrapperPool pool = new DeviceClientWrapperPool(new ConcurrentContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,50), 60000);
+        String deviceId = pool.addDevice(DEVICE_CONNECTION_STRING);
+        assertEquals(deviceId,"java");
+        DeviceClientWrapperPool.PooledDevice device = pool.getDevice(deviceId);
+        assertFalse(device.isConnected());
+
+        pool.sendEventAsync(deviceId,new Message("body"),null,null);
+        pool.sendEventAsync(deviceId,new Message("body"),null,null);
+        assertTrue(device.isConnected());
+        assertEquals(device.getConnectCount(),1);
+        assertEquals(device.getMessagesSent(),2);
+        assertEquals(pool.getConnectedDeviceCount(),1);
+        pool.close();
+        assertFalse(device.isConnected());
+    }
+
+    @Test
+    // Idle devices are disconnected and reconnect on the next send
+    public void idleDevicesAreDisconnected() throws IOException
+    {
+        DeviceClientWrapperPool pool = new DeviceClientWrapperPool(new ConcurrentContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,50), 60000);
+        String deviceId = pool.addDevice(DEVICE_CONNECTION_STRING);
+        DeviceClientWrapperPool.PooledDevice device = pool.getDevice(deviceId);
+        pool.sendEventAsync(deviceId,new Message("body"),null,null);
+
+        pool.disconnectIdleDevices();
+        assertTrue(device.isConnected());
+
+        // sweep as if the idle timeout had passed, so the live scheduler never gets to run first
+        pool.disconnectIdleDevices(System.nanoTime() + TimeUnit.MINUTES.toNanos(2));
+        assertFalse(device.isConnected());
+        assertEquals(device.getIdleDisconnectCount(),1);
+
+        pool.sendEventAsync(deviceId,new Message("body"),null,null);
+        assertEquals(device.getConnectCount(),2);
+        pool.close();
+    }
+
+    @Test
+    // A connection that fails half way through opening is closed, not leaked, and the next send tries again
+    public void failedOpenClosesTheConnection() throws IOException
+    {
+        new Expectations() {{
+            mockDeviceClient.startDeviceTwin((IotHubEventCallback) any, any, (PropertyCallBack) any, any);
+            result = new IOException("twin failed");
+        }};
+        DeviceClientWrapperPool pool = new DeviceClientWrapperPool(new ConcurrentContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,50), 60000);
+        String deviceId = pool.addDevice(DEVICE_CONNECTION_STRING);
+        DeviceClientWrapperPool.PooledDevice device = pool.getDevice(deviceId);
+        for(int i = 0; i < 2; i++) {
+            try {
+                pool.sendEventAsync(deviceId,new Message("body"),null,null);
+                fail("The send must fail while the device cannot connect");
+            } catch (IOException expected) {
+            }
+            assertFalse(device.isConnected());
+        }
+        assertEquals(device.getConnectCount(),0);
+        new Verifications() {{
+            mockDeviceClient.open(); times = 2;
+            mockDeviceClient.close(); times = 2;
+        }};
+        pool.close();
+    }
+
+    @Test
+    // A removed device never reconnects, even for a send that raced the removal
+    public void removedDeviceDoesNotReconnect() throws IOException
+    {
+        DeviceClientWrapperPool pool = new DeviceClientWrapperPool(new ConcurrentContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,50), 60000);
+        String deviceId = pool.addDevice(DEVICE_CONNECTION_STRING);
+        DeviceClientWrapperPool.PooledDevice device = pool.getDevice(deviceId);
+        pool.sendEventAsync(deviceId,new Message("body"),null,null);
+        pool.removeDevice(deviceId);
+        assertFalse(device.isConnected());
+        try {
+            device.sendEventAsync(new Message("body"),null,null);
+            fail("A removed device must not reconnect");
+        } catch (IllegalStateException expected) {
+        }
+        assertFalse(device.isConnected());
+        assertEquals(device.getConnectCount(),1);
+        pool.close();
+    }
+
+    @Test
+    // Closing the pool retires every device
+    public void closedPoolDoesNotReconnect() throws IOException
+    {
+        DeviceClientWrapperPool pool = new DeviceClientWrapperPool(new ConcurrentContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,50), 60000);
+        String deviceId = pool.addDevice(DEVICE_CONNECTION_STRING);
+        DeviceClientWrapperPool.PooledDevice device = pool.getDevice(deviceId);
+        pool.close();
+        try {
+            device.sendEventAsync(new Message("body"),null,null);
+            fail("A device of a closed pool must not reconnect");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(device.getConnectCount(),0);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    // A device cannot be registered twice
+    public void deviceCannotBeRegisteredTwice()
+    {
+        DeviceClientWrapperPool pool = new DeviceClientWrapperPool(new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,50), 60000);
+        pool.addDevice(DEVICE_CONNECTION_STRING);
+        pool.addDevice(DEVICE_CONNECTION_STRING);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    // Sending from an unknown device fails
+    public void unknownDeviceCannotSend() throws IOException
+    {
+        DeviceClientWrapperPool pool = new DeviceClientWrapperPool(new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,50), 60000);
+        pool.sendEventAsync("unknown",new Message("body"),null,null);
+    }
+}
@@ -9,14 +9,23 @@ import com.microsoft.azure.sdk.iot.device.DeviceTwin.DeviceTwin;
 import com.microsoft.azure.sdk.iot.device.DeviceTwin.PropertyCallBack;
 import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
 import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.Message;
 import com.microsoft.azure.sdk.iot.device.transport.mqtt.MqttTransport;
 import mockit.*;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by zhqqi on 3/30/2017.
@@ -44,6 +53,97 @@ public class DeviceClientWrapperTest {
         };
     }
 
+    // Telemetry uses the requested protocol and opens no second connection
+    @Test
+    public void WrapperConstructorWithProtocol(
+            @Mocked final DeviceClient mockClient)
+            throws URISyntaxException
+    {
+        new DeviceClientWrapper(DEVICE_CONNECTION_STRING,IotHubClientProtocol.AMQPS,mockDiagnosticProvider);
+        new Verifications()
+        {
+            {
+                new DeviceClient(DEVICE_CONNECTION_STRING,IotHubClientProtocol.AMQPS);
+                times = 1;
+                new DeviceClient(DEVICE_CONNECTION_STRING,IotHubClientProtocol.MQTT);
+                times = 0;
+            }
+        };
+    }
+
+    // A provider driven by the server gets the mqtt twin connection over amqp without asking
+    @Test
+    public void WrapperConstructorWithProtocolOpensTwinForServerSource(
+            @Mocked final DeviceClient mockClient)
+            throws URISyntaxException
+    {
+        new DeviceClientWrapper(DEVICE_CONNECTION_STRING,IotHubClientProtocol.AMQPS,new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Server,20));
+        new Verifications()
+        {
+            {
+                new DeviceClient(DEVICE_CONNECTION_STRING,IotHubClientProtocol.AMQPS);
+                times = 1;
+                new DeviceClient(DEVICE_CONNECTION_STRING,IotHubClientProtocol.MQTT);
+                times = 1;
+            }
+        };
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    // A provider driven by the server cannot do without the twin
+    public void serverSourceWithoutTwinConnectionIsRejected(
+            @Mocked final DeviceClient mockClient)
+            throws URISyntaxException
+    {
+        new DeviceClientWrapper(DEVICE_CONNECTION_STRING,IotHubClientProtocol.AMQPS,new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Server,20),false);
+    }
+
+    @Test (expected = UnsupportedOperationException.class)
+    // Without the mqtt twin connection the twin is unavailable over amqp
+    public void deviceTwinUnavailableOverAmqpByDefault(
+            @Mocked final DeviceClient mockClient)
+            throws URISyntaxException, IOException
+    {
+        DeviceClientWrapper wrapper = new DeviceClientWrapper(DEVICE_CONNECTION_STRING,IotHubClientProtocol.AMQPS,mockDiagnosticProvider);
+        wrapper.open();
+        new Verifications()
+        {
+            {
+                mockClient.startDeviceTwin((IotHubEventCallback)any,any,(PropertyCallBack)any,any);
+                times = 0;
+            }
+        };
+        wrapper.startDeviceTwin(null,null,null,null);
+    }
+
+    @Test
+    // With the mqtt twin connection, twin is started on it and not on the amqp connection
+    public void startDeviceTwinOnMqttWhenProtocolIsAmqp(
+            @Mocked DeviceClient anyClient)
+            throws URISyntaxException, IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                new DeviceClient(DEVICE_CONNECTION_STRING,IotHubClientProtocol.AMQPS);
+                new DeviceClient(DEVICE_CONNECTION_STRING,IotHubClientProtocol.MQTT);
+            }
+        };
+        DeviceClientWrapper wrapper = new DeviceClientWrapper(DEVICE_CONNECTION_STRING,IotHubClientProtocol.AMQPS,mockDiagnosticProvider,true);
+        wrapper.open();
+        new Verifications()
+        {
+            {
+                DeviceClient telemetryClient = new DeviceClient(DEVICE_CONNECTION_STRING,IotHubClientProtocol.AMQPS);
+                DeviceClient twinClient = new DeviceClient(DEVICE_CONNECTION_STRING,IotHubClientProtocol.MQTT);
+                twinClient.startDeviceTwin((IotHubEventCallback)any,any,(PropertyCallBack)any,any);
+                times = 1;
+                telemetryClient.startDeviceTwin((IotHubEventCallback)any,any,(PropertyCallBack)any,any);
+                times = 0;
+            }
+        };
+    }
+
     @Test
     // When connection open, start device twin automatically
     public void startDeviceTwinOnConnectionOpen(
@@ -214,6 +314,84 @@ public class DeviceClientWrapperTest {
         assertEquals(p.getSamplingRatePercentage(),50);
     }
 
+    @Test
+    // Fractional sampling rate will be update when source is server
+    public void fractionalSamplingRateWillBeUpdateWhenSourceIsServer(
+            @Mocked final MqttTransport mockTransport)
+            throws URISyntaxException, IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockTransport.isEmpty();
+                result = true;
+            }
+        };
+
+        DeviceClientWrapper wrapper = new DeviceClientWrapper(DEVICE_CONNECTION_STRING, new BaseDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Server,20) {
+        });
+        wrapper.open();
+
+        DeviceClient dc = Deencapsulation.getField(wrapper,"deviceClient");
+        DeviceTwin dt = Deencapsulation.getField(dc,"deviceTwin");
+        Twin t = Deencapsulation.getField(dt,"twinObject");
+        final IDiagnosticProvider p = Deencapsulation.getField(wrapper,"diagnosticProvider");
+        t.updateTwin("{\"desired\":{\"diag_enable\":\"true\",\"diag_sample_rate\":0.05}}");
+        assertEquals(p.getSamplingRatePartsPerMillion(),500);
+        assertEquals(p.getSamplingRatePercentage(),0);
+    }
+
+    @Test
+    // Sampling target will be update when source is server
+    public void samplingTargetWillBeUpdateWhenSourceIsServer(
+            @Mocked final MqttTransport mockTransport)
+            throws URISyntaxException, IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockTransport.isEmpty();
+                result = true;
+            }
+        };
+
+        DeviceClientWrapper wrapper = new DeviceClientWrapper(DEVICE_CONNECTION_STRING, new AdaptiveDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Server,5));
+        wrapper.open();
+
+        DeviceClient dc = Deencapsulation.getField(wrapper,"deviceClient");
+        DeviceTwin dt = Deencapsulation.getField(dc,"deviceTwin");
+        Twin t = Deencapsulation.getField(dt,"twinObject");
+        final AdaptiveDiagnosticProvider p = Deencapsulation.getField(wrapper,"diagnosticProvider");
+        t.updateTwin("{\"desired\":{\"diag_enable\":\"true\",\"diag_sample_target\":50}}");
+        assertEquals(p.getTargetSamplesPerSecond(),50.0,0);
+    }
+
+    @Test
+    // Sampling rules will be update when source is server
+    public void samplingRulesWillBeUpdateWhenSourceIsServer(
+            @Mocked final MqttTransport mockTransport)
+            throws URISyntaxException, IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockTransport.isEmpty();
+                result = true;
+            }
+        };
+
+        DeviceClientWrapper wrapper = new DeviceClientWrapper(DEVICE_CONNECTION_STRING, new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Server,20));
+        wrapper.open();
+
+        DeviceClient dc = Deencapsulation.getField(wrapper,"deviceClient");
+        DeviceTwin dt = Deencapsulation.getField(dc,"deviceTwin");
+        Twin t = Deencapsulation.getField(dt,"twinObject");
+        final IDiagnosticProvider p = Deencapsulation.getField(wrapper,"diagnosticProvider");
+        t.updateTwin("{\"desired\":{\"diag_enable\":\"true\",\"diag_sample_rules\":\"type=alarm:100;type=heartbeat:0.1\"}}");
+        assertEquals(p.getSamplingRules().getRules().size(),2);
+        assertEquals(p.getSamplingRules().getRules().get(1).getSamplingRatePartsPerMillion(),1000);
+    }
+
     @Test
     // Sampling switch will not be changed when source is none
     public void samplingWillNotBeChangedWhenSourceIsNone(
@@ -365,4 +543,98 @@ public class DeviceClientWrapperTest {
         assertEquals(p.getSamplingRatePercentage(),0);
     }
 
+    @Test
+    // Batch send processes the batch once and enqueues every message
+    public void batchSendEnqueuesEveryMessage(
+            @Mocked final DeviceClient mockClient,
+            @Mocked final IotHubEventCallback mockIHCB)
+            throws URISyntaxException
+    {
+        final List<Message> messages = new ArrayList<Message>();
+        for(int i = 0;i<3;i++) {
+            messages.add(new Message("body"));
+        }
+        new NonStrictExpectations()
+        {
+            {
+                mockDiagnosticProvider.ProcessBatch(messages);
+                result = messages;
+            }
+        };
+
+        DeviceClientWrapper wrapper = new DeviceClientWrapper(DEVICE_CONNECTION_STRING,mockDiagnosticProvider);
+        wrapper.sendEventBatchAsync(messages,mockIHCB,null);
+        new Verifications()
+        {
+            {
+                mockDiagnosticProvider.ProcessBatch(messages);
+                times = 1;
+                mockClient.sendEventAsync((Message)any,(IotHubEventCallback)any,null);
+                times = 3;
+            }
+        };
+    }
+
+    @Test
+    // Batch send passes each message its own callback context
+    public void batchSendPassesContextPerMessage(
+            @Mocked final DeviceClient mockClient,
+            @Mocked final IotHubEventCallback mockIHCB)
+            throws URISyntaxException
+    {
+        final List<Message> messages = new ArrayList<Message>();
+        for(int i = 0;i<3;i++) {
+            messages.add(new Message("body"));
+        }
+        new NonStrictExpectations()
+        {
+            {
+                mockDiagnosticProvider.ProcessBatch(messages);
+                result = messages;
+            }
+        };
+
+        DeviceClientWrapper wrapper = new DeviceClientWrapper(DEVICE_CONNECTION_STRING,mockDiagnosticProvider);
+        wrapper.sendEventBatchAsync(messages,mockIHCB,Arrays.asList("a","b","c"));
+        new Verifications()
+        {
+            {
+                mockClient.sendEventAsync(messages.get(0),(IotHubEventCallback)any,"a");
+                times = 1;
+                mockClient.sendEventAsync(messages.get(1),(IotHubEventCallback)any,"b");
+                times = 1;
+                mockClient.sendEventAsync(messages.get(2),(IotHubEventCallback)any,"c");
+                times = 1;
+            }
+        };
+    }
+
+    @Test
+    // Statistics MBeans are registered while the wrapper is open
+    public void statisticsMBeansRegisteredWhileOpen(
+            @Mocked final MqttTransport mockTransport)
+            throws URISyntaxException, IOException
+    {
+        new NonStrictExpectations()
+        {
+            {
+                mockTransport.isEmpty();
+                result = true;
+            }
+        };
+
+        DeviceClientWrapper wrapper = new DeviceClientWrapper(DEVICE_CONNECTION_STRING, new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,20));
+        wrapper.open();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName wrapperName = Deencapsulation.getField(wrapper,"wrapperObjectName");
+        ObjectName providerName = Deencapsulation.getField(wrapper,"providerObjectName");
+        assertTrue(server.isRegistered(wrapperName));
+        assertTrue(server.isRegistered(providerName));
+        assertEquals(wrapperName.getKeyProperty("device"),"\"java\"");
+
+        wrapper.close();
+        assertFalse(server.isRegistered(wrapperName));
+        assertFalse(server.isRegistered(providerName));
+    }
+
 }
@@ -0,0 +1,66 @@
+package com.microsoft.vs.diagnostic;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DiagnosticExecutorsTest {
+
+    @Test
+    // Executors run tasks on named daemon threads, or virtual threads where supported
+    public void executorsRunOnNamedBackgroundThreads() throws InterruptedException, ExecutionException, TimeoutException
+    {
+        ExecutorService callback = DiagnosticExecutors.newCallbackExecutor();
+        Thread thread = callback.submit(new Callable<Thread>() {
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        }).get(5, TimeUnit.SECONDS);
+        callback.shutdown();
+        assertTrue(thread.getName().startsWith("diagnostic-callback-"));
+        assertTrue(thread.isDaemon());
+
+        Thread blocking = DiagnosticExecutors.sharedBlockingExecutor().submit(new Callable<Thread>() {
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertTrue(blocking.getName().startsWith("diagnostic-blocking-"));
+        assertSame(DiagnosticExecutors.sharedBlockingExecutor(), DiagnosticExecutors.sharedBlockingExecutor());
+    }
+
+    @Test
+    // Tasks do not wait for each other, so blocked operations do not hold up later ones
+    public void blockedTasksDoNotQueue() throws InterruptedException
+    {
+        ExecutorService executor = DiagnosticExecutors.newBlockingExecutor();
+        final CountDownLatch started = new CountDownLatch(64);
+        final CountDownLatch release = new CountDownLatch(1);
+        for(int i = 0; i < 64; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(started.getCount(), 0);
+    }
+}
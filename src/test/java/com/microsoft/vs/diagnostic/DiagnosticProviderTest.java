@@ -7,8 +7,17 @@ import org.bouncycastle.jcajce.provider.symmetric.ARC4;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -34,6 +43,133 @@ public class DiagnosticProviderTest {
         assertNotEquals(m.getProperty(IDiagnosticProvider.KEY_VERSION),null);
     }
 
+    @Test
+    // Time ordered correlation ids are unique, ordered and uuid formatted
+    public void timeOrderedIdsAreUniqueAndUuidFormatted()
+    {
+        TimeOrderedIdGenerator g = new TimeOrderedIdGenerator();
+        Set<String> ids = new HashSet<String>();
+        String previous = null;
+        for(int i = 0;i<10000;i++) {
+            String id = g.nextId();
+            assertEquals(id.length(),36);
+            UUID.fromString(id);
+            if(previous != null) {
+                assertTrue(id.substring(0,13).compareTo(previous.substring(0,13)) >= 0);
+            }
+            previous = id;
+            ids.add(id);
+        }
+        assertEquals(ids.size(),10000);
+    }
+
+    @Test
+    // Correlation id generator can be replaced
+    public void correlationIdGeneratorCanBeReplaced()
+    {
+        BaseDiagnosticProvider b = new BaseDiagnosticProvider() {
+            @Override
+            public boolean NeedSampling() {
+                return true;
+            }
+        };
+        b.setIdGenerator(new IdGenerator() {
+            public String nextId() {
+                return "fixed-id";
+            }
+        });
+        Message m = b.Process(new Message("body"));
+        assertEquals(m.getProperty(IDiagnosticProvider.KEY_CORRELATION_ID),"fixed-id");
+
+        b.setIdGenerator(new UuidIdGenerator());
+        m = b.Process(new Message("body"));
+        UUID.fromString(m.getProperty(IDiagnosticProvider.KEY_CORRELATION_ID));
+    }
+
+    @Test
+    // Before send timestamp is written in the selected format from the provider clock
+    public void timestampWrittenInSelectedFormat()
+    {
+        BaseDiagnosticProvider b = new BaseDiagnosticProvider() {
+            @Override
+            public boolean NeedSampling() {
+                return true;
+            }
+        };
+        b.setClock(new DiagnosticClock() {
+            public long currentTimeMillis() {
+                return 1491000000123L;
+            }
+
+            public long currentTimeMicros() {
+                return 1491000000123456L;
+            }
+        });
+        b.setTimestampFormat(TimestampFormat.EPOCH_MILLIS);
+        Message m = b.Process(new Message("body"));
+        assertEquals(m.getProperty(IDiagnosticProvider.KEY_BEFORE_SEND_REQUEST),"1491000000123");
+
+        b.setTimestampFormat(TimestampFormat.EPOCH_MICROS);
+        m = b.Process(new Message("body"));
+        assertEquals(m.getProperty(IDiagnosticProvider.KEY_BEFORE_SEND_REQUEST),"1491000000123456");
+    }
+
+    @Test
+    // Monotonic clock is anchored to wall clock and never goes backwards
+    public void monotonicClockIsAnchoredToWallClock()
+    {
+        MonotonicClock c = new MonotonicClock();
+        long wall = System.currentTimeMillis();
+        assertTrue(Math.abs(c.currentTimeMillis() - wall) < 1000);
+        long previous = c.currentTimeMicros();
+        for(int i = 0;i<1000;i++) {
+            long now = c.currentTimeMicros();
+            assertTrue(now >= previous);
+            previous = now;
+        }
+    }
+
+    @Test
+    // Batch processing stamps sampled messages with distinct ids and one timestamp
+    public void batchProcessingStampsSampledMessages()
+    {
+        ContinuousDiagnosticProvider c = new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,50);
+        c.setTimestampFormat(TimestampFormat.EPOCH_MICROS);
+        List<Message> messages = new ArrayList<Message>();
+        for(int i = 0;i<10;i++) {
+            messages.add(new Message("body"));
+        }
+        messages = c.ProcessBatch(messages);
+        Set<String> ids = new HashSet<String>();
+        Set<String> timestamps = new HashSet<String>();
+        for(Message m : messages) {
+            if(m.getProperty(IDiagnosticProvider.KEY_CORRELATION_ID) != null) {
+                ids.add(m.getProperty(IDiagnosticProvider.KEY_CORRELATION_ID));
+                timestamps.add(m.getProperty(IDiagnosticProvider.KEY_BEFORE_SEND_REQUEST));
+            }
+        }
+        assertEquals(ids.size(),5);
+        assertEquals(timestamps.size(),1);
+    }
+
+    @Test
+    // Batch processing does not modify any message when one uses a reserved property
+    public void batchProcessingRejectsReservedPropertiesBeforeStamping()
+    {
+        ContinuousDiagnosticProvider c = new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,100);
+        List<Message> messages = new ArrayList<Message>();
+        messages.add(new Message("body"));
+        Message reserved = new Message("body");
+        reserved.setProperty(IDiagnosticProvider.KEY_VERSION,"any");
+        messages.add(reserved);
+        try {
+            c.ProcessBatch(messages);
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals(messages.get(0).getProperty(IDiagnosticProvider.KEY_CORRELATION_ID),null);
+        }
+    }
+
     @Test (expected = IllegalArgumentException.class)
     // Do not allow user to set retained diagnostic properties
     public void doNotAllowUserToSetDiagnosticProperties()
@@ -49,6 +185,51 @@ public class DiagnosticProviderTest {
         m = b.Process(m);
     }
 
+    @Test
+    // Reserved properties are found regardless of position and case
+    public void reservedPropertiesFoundInSinglePass()
+    {
+        Message m = new Message("body");
+        for(int i = 0;i<10;i++) {
+            m.setProperty("x-custom" + i,"value");
+        }
+        assertEquals(ReservedProperties.findReserved(m),null);
+        m.setProperty(IDiagnosticProvider.KEY_VERSION,"any");
+        assertEquals(ReservedProperties.findReserved(m),IDiagnosticProvider.KEY_VERSION);
+
+        Message mixedCase = new Message("body");
+        mixedCase.setProperty("x-custom","value");
+        mixedCase.setProperty("X-Correlation-ID","any");
+        assertEquals(ReservedProperties.findReserved(mixedCase),IDiagnosticProvider.KEY_CORRELATION_ID);
+        Message upperCase = new Message("body");
+        upperCase.setProperty("X-DIAG","any");
+        assertEquals(ReservedProperties.findReserved(upperCase),IDiagnosticProvider.KEY_COMPACT);
+    }
+
+    @Test
+    // Reserved property validation follows the configured mode
+    public void reservedPropertyValidationFollowsMode()
+    {
+        BaseDiagnosticProvider b = new BaseDiagnosticProvider() {
+            @Override
+            public boolean NeedSampling() {
+                return false;
+            }
+        };
+        Message m = new Message("body");
+        m.setProperty(IDiagnosticProvider.KEY_CORRELATION_ID,"any");
+        b.Process(m);
+        b.setReservedPropertyValidation(ReservedPropertyValidation.OFF);
+        b.Process(m);
+        b.setReservedPropertyValidation(ReservedPropertyValidation.ALWAYS);
+        try {
+            b.Process(m);
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains(IDiagnosticProvider.KEY_CORRELATION_ID));
+        }
+    }
+
     @Test (expected = IllegalArgumentException.class)
     // Sampling percentage cannot out of range 0-100
     public void samplingPercentageCanNotOutOfRange()
@@ -151,6 +332,61 @@ public class DiagnosticProviderTest {
         }
     }
 
+    @Test
+    // Test concurrent continuous sampling rate 0,20,25,30,50,100
+    public void concurrentContinuousSamplingRate()
+    {
+        int[] rates = {0,20,25,30,50,100};
+        for(int rate : rates)
+        {
+            ConcurrentContinuousDiagnosticProvider c = new ConcurrentContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,rate);
+            int count = 0;
+            for(int i = 0;i<100;i++) {
+                if(c.NeedSampling()) count++;
+            }
+            assertEquals(count,rate);
+        }
+    }
+
+    @Test
+    // Concurrent continuous sampling rate stays exact under many threads
+    public void concurrentContinuousSamplingRateUnderContention() throws InterruptedException
+    {
+        final int threads = 32;
+        final int callsPerThread = 10000;
+        int[] rates = {1,20,25,30,50};
+        for(int rate : rates)
+        {
+            final ConcurrentContinuousDiagnosticProvider c = new ConcurrentContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,rate);
+            final AtomicInteger count = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] workers = new Thread[threads];
+            for(int t = 0;t<threads;t++) {
+                workers[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        int local = 0;
+                        for(int i = 0;i<callsPerThread;i++) {
+                            if(c.NeedSampling()) local++;
+                        }
+                        count.addAndGet(local);
+                    }
+                };
+                workers[t].start();
+            }
+            start.countDown();
+            for(Thread w : workers) {
+                w.join();
+            }
+            assertEquals(count.get(),threads*callsPerThread/100*rate);
+        }
+    }
+
     @Test
     // Test probability sampling rate 0
     public void probabilitySamplingRate0()
@@ -206,6 +442,147 @@ public class DiagnosticProviderTest {
         }
     }
 
+    @Test
+    // Test concurrent probability sampling rate 0,20,25,50,100
+    public void concurrentProbabilitySamplingRate()
+    {
+        int[] rates = {0,20,25,50,100};
+        for(int rate: rates) {
+            ConcurrentProbabilityDiagnosticProvider c = new ConcurrentProbabilityDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, rate);
+            final int num = 1000;
+            int count = 0;
+            for(int i = 0;i<num*100;i++) {
+                if(c.NeedSampling()) count++;
+            }
+            int high = ((Double)(1.1*rate*num)).intValue();
+            int low = ((Double)(0.9*rate*num)).intValue();
+            assertTrue(count<=high && count>=low);
+        }
+    }
+
+    @Test
+    // Concurrent probability sampling is reproducible with the same seed
+    public void concurrentProbabilitySamplingIsReproducibleWithSeed()
+    {
+        ConcurrentProbabilityDiagnosticProvider a = new ConcurrentProbabilityDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, 30, 42L);
+        ConcurrentProbabilityDiagnosticProvider b = new ConcurrentProbabilityDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, 30, 42L);
+        ConcurrentProbabilityDiagnosticProvider other = new ConcurrentProbabilityDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, 30, 43L);
+        int differences = 0;
+        for(int i = 0;i<1000;i++) {
+            boolean sampled = a.NeedSampling();
+            assertEquals(sampled,b.NeedSampling());
+            if(sampled != other.NeedSampling()) differences++;
+        }
+        assertTrue(differences > 0);
+    }
+
+    @Test
+    // Adaptive sampling converges on the target samples per second
+    public void adaptiveSamplingHitsTarget()
+    {
+        final long[] now = {0};
+        DiagnosticClock clock = new DiagnosticClock() {
+            public long currentTimeMillis() {
+                return now[0] / 1000;
+            }
+
+            public long currentTimeMicros() {
+                return now[0];
+            }
+        };
+        AdaptiveDiagnosticProvider a = new AdaptiveDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, 10, 1000, clock);
+        int[] messagesPerSecond = {5000, 100, 5};
+        for(int rate : messagesPerSecond) {
+            // warm up one window at this rate, then count one second of samples
+            int sampled = 0;
+            for(int second = 0;second<2;second++) {
+                sampled = 0;
+                for(int i = 0;i<rate;i++) {
+                    now[0] += 1000000L / rate;
+                    if(a.NeedSampling()) sampled++;
+                }
+            }
+            assertTrue("rate " + rate + " sampled " + sampled, Math.abs(sampled - Math.min(10, rate)) <= 2);
+        }
+    }
+
+    @Test
+    // Messages decided by a sampling rule count towards the adaptive throughput
+    public void adaptiveSamplingCountsRuleMatches()
+    {
+        final long[] now = {0};
+        DiagnosticClock clock = new DiagnosticClock() {
+            public long currentTimeMillis() {
+                return now[0] / 1000;
+            }
+
+            public long currentTimeMicros() {
+                return now[0];
+            }
+        };
+        AdaptiveDiagnosticProvider a = new AdaptiveDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, 10, 1000, clock);
+        a.setSamplingRules(SamplingRules.parse("type=alarm:100"));
+        Message alarm = new Message("alarm");
+        alarm.setProperty("type", "alarm");
+        Message reading = new Message("reading");
+        // 1000 messages per second, only 10 of which no rule matches
+        for(int i = 0;i<2000;i++) {
+            now[0] += 1000;
+            if(i % 100 == 0) {
+                a.NeedSampling(reading);
+            } else {
+                assertTrue(a.NeedSampling(alarm));
+            }
+        }
+        assertTrue("effective rate " + a.getEffectiveSamplingRate(), a.getEffectiveSamplingRate() <= 0.02);
+    }
+
+    @Test
+    // Adaptive sampling never exceeds the sampling percentage
+    public void adaptiveSamplingIsCappedByPercentage()
+    {
+        AdaptiveDiagnosticProvider a = new AdaptiveDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, 1000000);
+        a.setSamplingRatePercentage(20);
+        int count = 0;
+        for(int i = 0;i<100;i++) {
+            if(a.NeedSampling()) count++;
+        }
+        assertEquals(count,20);
+    }
+
+    @Test
+    // Sampling rates below one percent are honoured by every sampler
+    public void subPercentSamplingRate()
+    {
+        BaseDiagnosticProvider[] providers = {
+                new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,0),
+                new ConcurrentContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,0),
+                new ProbabilityDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,0),
+                new ConcurrentProbabilityDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,0)
+        };
+        for(BaseDiagnosticProvider p : providers) {
+            p.setSamplingRate(0.001);
+            assertEquals(p.getSamplingRatePartsPerMillion(),1000);
+            assertEquals(p.getSamplingRatePercentage(),0);
+            int count = 0;
+            for(int i = 0;i<1000000;i++) {
+                if(p.NeedSampling()) count++;
+            }
+            assertTrue(p.getClass().getSimpleName() + " sampled " + count, count>=900 && count<=1100);
+        }
+    }
+
+    @Test
+    // Percentage setter keeps parts per million in step
+    public void percentageSetterUpdatesPartsPerMillion()
+    {
+        ContinuousDiagnosticProvider c = new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,20);
+        assertEquals(c.getSamplingRatePartsPerMillion(),200000);
+        c.setSamplingRatePercentage(35);
+        assertEquals(c.getSamplingRatePartsPerMillion(),350000);
+        assertEquals(c.getSamplingRate(),0.35,0);
+    }
+
     @Test
     // Do not sampling when source is service and no twin received
     public void doNotSamplingWhenSourceIsServiceAndNoTwinReceived()
@@ -219,4 +596,258 @@ public class DiagnosticProviderTest {
         }
         assertEquals(count,0);
     }
+
+    @Test
+    // Setters publish a new settings snapshot and leave earlier snapshots untouched
+    public void settersPublishNewSettingsSnapshot()
+    {
+        ContinuousDiagnosticProvider c = new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Server,20);
+        DiagnosticSettings before = c.getSettings();
+        c.setServerSamplingTurnedOn(true);
+        c.setSamplingRatePercentage(40);
+        DiagnosticSettings after = c.getSettings();
+        assertNotEquals(before,after);
+        assertEquals(before.getSamplingRatePercentage(),20);
+        assertEquals(before.isServerSamplingTurnedOn(),false);
+        assertEquals(after.getSamplingRatePercentage(),40);
+        assertEquals(after.isServerSamplingTurnedOn(),true);
+        assertEquals(after.getSamplingRateSource(),IDiagnosticProvider.SamplingRateSource.Server);
+    }
+
+    @Test
+    // Invalid settings are rejected
+    public void invalidSettingsAreRejected()
+    {
+        ContinuousDiagnosticProvider c = new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,20);
+        try {
+            c.setSettings(null);
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            c.setSamplingRatePercentage(101);
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            c.getSettings().withSamplingRatePartsPerMillion(-1);
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(c.getSamplingRatePercentage(),20);
+    }
+
+    @Test
+    // Senders never see a source from one update combined with a rate from another
+    public void samplingNeverSeesTornSettings() throws InterruptedException
+    {
+        final ConcurrentContinuousDiagnosticProvider c = new ConcurrentContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,0);
+        // neither snapshot samples anything, only a mix of the two would
+        final DiagnosticSettings clientOff = new DiagnosticSettings(IDiagnosticProvider.SamplingRateSource.Client,0,false);
+        final DiagnosticSettings noneFull = new DiagnosticSettings(IDiagnosticProvider.SamplingRateSource.None,IDiagnosticProvider.PARTS_PER_MILLION,false);
+        final AtomicInteger sampled = new AtomicInteger();
+        final int threadCount = 4;
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for(int t = 0;t<threadCount;t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    for(int i = 0;i<200000;i++) {
+                        if(c.NeedSampling()) sampled.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        while(done.getCount() > 0) {
+            c.setSettings(noneFull);
+            c.setSettings(clientOff);
+        }
+        done.await();
+        assertEquals(sampled.get(),0);
+    }
+
+    @Test
+    // Matching sampling rules override the sampling rate, other messages keep it
+    public void samplingRulesOverrideSamplingRate()
+    {
+        ContinuousDiagnosticProvider c = new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,10);
+        c.setSamplingRules(SamplingRules.parse("type=alarm:100;type=heartbeat:0.1"));
+        int alarms = 0;
+        int heartbeats = 0;
+        int others = 0;
+        for(int i = 0;i<10000;i++) {
+            Message alarm = new Message("alarm");
+            alarm.setProperty("type","alarm");
+            Message heartbeat = new Message("heartbeat");
+            heartbeat.setProperty("type","heartbeat");
+            Message other = new Message("other");
+            other.setProperty("type","reading");
+            if(c.NeedSampling(alarm)) alarms++;
+            if(c.NeedSampling(heartbeat)) heartbeats++;
+            if(c.NeedSampling(other)) others++;
+        }
+        assertEquals(alarms,10000);
+        assertEquals(heartbeats,10);
+        assertEquals(others,1000);
+    }
+
+    @Test
+    // The first matching rule wins, and * matches any value of the property
+    public void firstMatchingSamplingRuleWins()
+    {
+        SamplingRules rules = SamplingRules.parse("priority=high:100;type=alarm:50;type=*:1");
+        Message message = new Message("body");
+        message.setProperty("type","alarm");
+        assertEquals(rules.match(message).getSamplingRatePartsPerMillion(),500000);
+        message.setProperty("priority","high");
+        assertEquals(rules.match(message).getSamplingRatePartsPerMillion(),1000000);
+        Message other = new Message("body");
+        other.setProperty("type","reading");
+        assertEquals(rules.match(other).getSamplingRatePartsPerMillion(),10000);
+        assertEquals(rules.match(new Message("body")),null);
+    }
+
+    @Test
+    // Sampling rules do not sample while sampling is turned off
+    public void samplingRulesRespectServerSwitch()
+    {
+        ContinuousDiagnosticProvider c = new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Server,0);
+        c.setSamplingRules(SamplingRules.parse("type=alarm:100"));
+        Message alarm = new Message("alarm");
+        alarm.setProperty("type","alarm");
+        assertEquals(c.NeedSampling(alarm),false);
+        c.setServerSamplingTurnedOn(true);
+        assertEquals(c.NeedSampling(alarm),true);
+        c.Process(alarm);
+        assertNotEquals(alarm.getProperty(IDiagnosticProvider.KEY_CORRELATION_ID),null);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    // Malformed sampling rules are rejected
+    public void malformedSamplingRulesAreRejected()
+    {
+        SamplingRules.parse("type=alarm:200");
+    }
+
+    @Test
+    // Compact encoding stamps a single header that decodes to id, timestamp and version
+    public void compactEncodingRoundTrips()
+    {
+        ContinuousDiagnosticProvider c = new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,100);
+        c.setEncoding(DiagnosticEncoding.COMPACT);
+        long before = MonotonicClock.getInstance().currentTimeMicros();
+        Message message = c.Process(new Message("body"));
+        assertEquals(message.getProperty(IDiagnosticProvider.KEY_CORRELATION_ID),null);
+        assertEquals(message.getProperty(IDiagnosticProvider.KEY_BEFORE_SEND_REQUEST),null);
+        assertEquals(message.getProperty(IDiagnosticProvider.KEY_VERSION),null);
+        String value = message.getProperty(IDiagnosticProvider.KEY_COMPACT);
+        assertEquals(value.length(),38);
+        CompactDiagnosticHeader header = CompactDiagnosticHeader.decode(message);
+        assertEquals(header.getVersion(),IDiagnosticProvider.COMPACT_DIAGNOSTIC_VERSION);
+        assertTrue(header.getBeforeSendMicros() >= before);
+        assertEquals(header.getCorrelationId().length(),36);
+        assertEquals(CompactDiagnosticHeader.getCorrelationId(message),header.getCorrelationId());
+        assertEquals(CompactDiagnosticHeader.uuidBits(value,0),UUID.fromString(header.getCorrelationId()).getMostSignificantBits());
+        assertEquals(CompactDiagnosticHeader.uuidBits(value,1),UUID.fromString(header.getCorrelationId()).getLeastSignificantBits());
+    }
+
+    @Test
+    // Compact encoding keeps correlation ids that are not UUIDs
+    public void compactEncodingKeepsTextIds()
+    {
+        String value = CompactDiagnosticHeader.encode("device-7/42",123456789L);
+        CompactDiagnosticHeader header = CompactDiagnosticHeader.decode(value);
+        assertEquals(header.getCorrelationId(),"device-7/42");
+        assertEquals(header.getBeforeSendMicros(),123456789L);
+        assertEquals(CompactDiagnosticHeader.hasUuidId(value),false);
+    }
+
+    @Test
+    // A batch in compact encoding shares one timestamp
+    public void compactBatchSharesTimestamp()
+    {
+        ContinuousDiagnosticProvider c = new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,100);
+        c.setEncoding(DiagnosticEncoding.COMPACT);
+        List<Message> messages = new ArrayList<Message>();
+        for(int i = 0;i<3;i++) {
+            messages.add(new Message("body"));
+        }
+        c.ProcessBatch(messages);
+        long micros = CompactDiagnosticHeader.decode(messages.get(0)).getBeforeSendMicros();
+        Set<String> ids = new HashSet<String>();
+        for(Message m : messages) {
+            CompactDiagnosticHeader header = CompactDiagnosticHeader.decode(m);
+            assertEquals(header.getBeforeSendMicros(),micros);
+            ids.add(header.getCorrelationId());
+        }
+        assertEquals(ids.size(),3);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    // Messages already carrying the compact header are rejected
+    public void compactHeaderIsReserved()
+    {
+        ContinuousDiagnosticProvider c = new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client,100);
+        Message message = new Message("body");
+        message.setProperty(IDiagnosticProvider.KEY_COMPACT,"value");
+        c.Process(message);
+    }
+
+    @Test
+    // A provider written against the original interface gets working defaults for the later methods
+    public void originalProviderGetsDefaultMethods()
+    {
+        IDiagnosticProvider provider = new IDiagnosticProvider() {
+            private SamplingRateSource source = SamplingRateSource.Client;
+            private int percentage = 30;
+            private boolean serverSamplingTurnedOn;
+
+            public Message Process(Message message) {
+                message.setProperty("processed", "true");
+                return message;
+            }
+            public boolean NeedSampling() {
+                return true;
+            }
+            public SamplingRateSource getSamplingRateSource() {
+                return source;
+            }
+            public void setSamplingRateSource(SamplingRateSource samplingRateSource) {
+                source = samplingRateSource;
+            }
+            public int getSamplingRatePercentage() {
+                return percentage;
+            }
+            public void setSamplingRatePercentage(int samplingRatePercentage) {
+                percentage = samplingRatePercentage;
+            }
+            public void setServerSamplingTurnedOn(boolean on) {
+                serverSamplingTurnedOn = on;
+            }
+            public boolean isServerSamplingTurnedOn() {
+                return serverSamplingTurnedOn;
+            }
+        };
+        List<Message> batch = new ArrayList<Message>();
+        batch.add(new Message("a"));
+        batch.add(new Message("b"));
+        List<Message> processed = provider.ProcessBatch(batch);
+        assertEquals(processed.size(), 2);
+        assertEquals(processed.get(1).getProperty("processed"), "true");
+        assertTrue(provider.NeedSampling(new Message("c")));
+        assertEquals(provider.getSamplingRatePartsPerMillion(), 300000);
+        assertEquals(provider.getSamplingRules(), SamplingRules.NONE);
+        assertFalse(provider.isSamplingRulesSupported());
+        // rules are ignored rather than failing the provider
+        provider.setSamplingRules(SamplingRules.parse("type=alarm:100"));
+        assertEquals(provider.getSamplingRules(), SamplingRules.NONE);
+
+        provider.setSettings(new DiagnosticSettings(IDiagnosticProvider.SamplingRateSource.Server, 50 * IDiagnosticProvider.PARTS_PER_MILLION_PER_PERCENT, true,
+                SamplingRules.parse("type=alarm:100")));
+        DiagnosticSettings settings = provider.getSettings();
+        assertEquals(settings.getSamplingRateSource(), IDiagnosticProvider.SamplingRateSource.Server);
+        assertEquals(settings.getSamplingRatePercentage(), 50);
+        assertTrue(settings.isServerSamplingTurnedOn());
+    }
+
 }
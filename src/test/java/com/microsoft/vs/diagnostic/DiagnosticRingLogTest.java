@@ -0,0 +1,221 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DiagnosticRingLogTest {
+    private static final String ID = "015b1f4e-1a2b-7c3d-8e9f-00000000002a";
+
+    @Test
+    // Records and outcomes are read back in order
+    public void recordsAreReadBack() throws IOException
+    {
+        File file = tempFile();
+        DiagnosticRingLog log = new DiagnosticRingLog(file, 8, new FixedClock(1000));
+        long first = log.recordSent(message(ID, "hello"), 5);
+        long second = log.recordSent(message("custom-id", "hi"), 2);
+        log.recordOutcome(first, IotHubStatusCode.OK_EMPTY);
+        log.close();
+
+        List<DiagnosticLogRecord> records = readAll(file);
+        assertEquals(records.size(), 2);
+        assertEquals(records.get(0).getSequence(), first);
+        assertEquals(records.get(0).getCorrelationId(), ID);
+        assertEquals(records.get(0).getSizeBytes(), 5);
+        assertEquals(records.get(0).getSentMicros(), 1000);
+        assertEquals(records.get(0).getStatus(), IotHubStatusCode.OK_EMPTY);
+        assertEquals(records.get(0).getLatencyMicros(), 0);
+        assertEquals(records.get(1).getSequence(), second);
+        assertEquals(records.get(1).getCorrelationId(), "#" + "custom-id".hashCode());
+        assertTrue(records.get(1).isPending());
+        assertEquals(records.get(1).getStatus(), null);
+    }
+
+    @Test
+    // Only the newest capacity records are kept, and reopening continues after them
+    public void ringKeepsNewestRecords() throws IOException
+    {
+        File file = tempFile();
+        DiagnosticRingLog log = new DiagnosticRingLog(file, 4);
+        for(int i = 0; i < 10; i++) {
+            log.recordOutcome(log.recordSent(message(ID, "body"), 4), IotHubStatusCode.OK);
+        }
+        log.close();
+        List<DiagnosticLogRecord> records = readAll(file);
+        assertEquals(records.size(), 4);
+        assertEquals(records.get(0).getSequence(), 6);
+        assertEquals(records.get(3).getSequence(), 9);
+
+        log = new DiagnosticRingLog(file, 4);
+        assertEquals(log.recordSent(message(ID, "body"), 4), 10);
+        log.close();
+        records = readAll(file);
+        assertEquals(records.get(0).getSequence(), 7);
+        assertEquals(records.get(3).getSequence(), 10);
+    }
+
+    @Test
+    // The outcome of a record the ring has wrapped over does not touch the newer record
+    public void lateOutcomeIsDropped() throws IOException
+    {
+        File file = tempFile();
+        DiagnosticRingLog log = new DiagnosticRingLog(file, 1);
+        long old = log.recordSent(message(ID, "old"), 3);
+        long newer = log.recordSent(message(ID, "newer"), 5);
+        log.recordOutcome(old, IotHubStatusCode.ERROR);
+        log.close();
+
+        List<DiagnosticLogRecord> records = readAll(file);
+        assertEquals(records.size(), 1);
+        assertEquals(records.get(0).getSequence(), newer);
+        assertTrue(records.get(0).isPending());
+    }
+
+    @Test
+    // A record torn by a crash is skipped
+    public void tornRecordIsSkipped() throws IOException
+    {
+        File file = tempFile();
+        DiagnosticRingLog log = new DiagnosticRingLog(file, 4);
+        log.recordSent(message(ID, "body"), 4);
+        log.recordSent(message(ID, "body"), 4);
+        log.close();
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(DiagnosticRingLog.HEADER_SIZE + DiagnosticRingLog.RECORD_SIZE + DiagnosticRingLog.FIELD_SEQUENCE_END);
+        raw.writeLong(0);
+        raw.close();
+
+        List<DiagnosticLogRecord> records = readAll(file);
+        assertEquals(records.size(), 1);
+        assertEquals(records.get(0).getSequence(), 0);
+    }
+
+    @Test
+    // Sampled messages tracked for latency are written to the attached log
+    public void trackerWritesSampledMessages() throws IOException
+    {
+        File file = tempFile();
+        DiagnosticRingLog log = new DiagnosticRingLog(file, 16);
+        SendLatencyTracker tracker = new SendLatencyTracker();
+        tracker.setDiagnosticLog(log);
+        IotHubEventCallback sampled = tracker.track(message(ID, "body"), null);
+        tracker.track(new Message("unsampled"), null);
+        sampled.execute(IotHubStatusCode.THROTTLED, null);
+        log.close();
+
+        List<DiagnosticLogRecord> records = readAll(file);
+        assertEquals(records.size(), 1);
+        assertEquals(records.get(0).getCorrelationId(), ID);
+        assertEquals(records.get(0).getStatus(), IotHubStatusCode.THROTTLED);
+        assertEquals(records.get(0).getSizeBytes(), 4);
+    }
+
+    @Test
+    // Concurrent writers claim distinct sequences and no record is lost
+    public void concurrentWritersClaimDistinctSlots() throws IOException, InterruptedException
+    {
+        File file = tempFile();
+        final DiagnosticRingLog log = new DiagnosticRingLog(file, 4000);
+        Thread[] writers = new Thread[4];
+        for(int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(new Runnable() {
+                public void run() {
+                    for(int i = 0; i < 1000; i++) {
+                        log.recordOutcome(log.recordSent(message(ID, "body"), 4), IotHubStatusCode.OK);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for(Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(log.getRecordCount(), 4000);
+        log.close();
+        List<DiagnosticLogRecord> records = readAll(file);
+        assertEquals(records.size(), 4000);
+        for(int i = 0; i < records.size(); i++) {
+            assertEquals(records.get(i).getSequence(), i);
+            assertEquals(records.get(i).getStatus(), IotHubStatusCode.OK);
+        }
+    }
+
+    @Test
+    // Ids of compact stamped messages are recorded
+    public void compactIdsAreRecorded() throws IOException
+    {
+        File file = tempFile();
+        DiagnosticRingLog log = new DiagnosticRingLog(file, 4);
+        Message message = new Message("body");
+        message.setProperty(IDiagnosticProvider.KEY_COMPACT, CompactDiagnosticHeader.encode(ID, 42));
+        log.recordSent(message, 4);
+        log.close();
+        assertEquals(readAll(file).get(0).getCorrelationId(), ID);
+    }
+
+    @Test
+    // Text ids hash the same whichever encoding stamped the message
+    public void compactTextIdsHashLikeProperties() throws IOException
+    {
+        String[] ids = {"custom-id", "device-42/\u00e9v\u00e9nement", "\ud83d\ude80-launch"};
+        for(String id : ids) {
+            File file = tempFile();
+            DiagnosticRingLog log = new DiagnosticRingLog(file, 4);
+            Message compact = new Message("body");
+            compact.setProperty(IDiagnosticProvider.KEY_COMPACT, CompactDiagnosticHeader.encode(id, 42));
+            log.recordSent(compact, 4);
+            log.recordSent(message(id, "body"), 4);
+            log.close();
+            List<DiagnosticLogRecord> records = readAll(file);
+            assertEquals(records.get(0).getCorrelationId(), "#" + id.hashCode());
+            assertEquals(records.get(1).getCorrelationId(), "#" + id.hashCode());
+        }
+    }
+
+    private static Message message(String correlationId, String body) {
+        Message message = new Message(body);
+        message.setProperty(IDiagnosticProvider.KEY_CORRELATION_ID, correlationId);
+        return message;
+    }
+
+    private static List<DiagnosticLogRecord> readAll(File file) throws IOException {
+        List<DiagnosticLogRecord> records = new ArrayList<DiagnosticLogRecord>();
+        for(DiagnosticLogRecord record : new DiagnosticRingLogReader(file)) {
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("diagnostic", ".log");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static class FixedClock implements DiagnosticClock {
+        private final long micros;
+
+        FixedClock(long micros) {
+            this.micros = micros;
+        }
+
+        public long currentTimeMillis() {
+            return micros / 1000;
+        }
+
+        public long currentTimeMicros() {
+            return micros;
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Property;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.PropertyCallBack;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryDeviceClientTest {
+
+    // Callback that counts outcomes and releases a latch per callback
+    private static class Outcomes implements IotHubEventCallback {
+        final ConcurrentMap<IotHubStatusCode, AtomicInteger> counts = new ConcurrentHashMap<IotHubStatusCode, AtomicInteger>();
+        final CountDownLatch done;
+
+        Outcomes(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        public void execute(IotHubStatusCode status, Object context) {
+            AtomicInteger count = counts.get(status);
+            if(count == null) {
+                counts.putIfAbsent(status, new AtomicInteger());
+                count = counts.get(status);
+            }
+            count.incrementAndGet();
+            done.countDown();
+        }
+
+        int get(IotHubStatusCode status) {
+            AtomicInteger count = counts.get(status);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    @Test
+    // Messages sent through the wrapper are stamped, accepted and measured without a network
+    public void wrapperSendsThroughLoopback() throws IOException, InterruptedException
+    {
+        InMemoryDeviceClient client = new InMemoryDeviceClient(IotHubClientProtocol.MQTT, 1);
+        client.setLatency(100, 500);
+        final List<Message> received = Collections.synchronizedList(new ArrayList<Message>());
+        client.setReceiver(new InMemoryDeviceClient.Receiver() {
+            public void receive(Message message) {
+                received.add(message);
+            }
+        });
+        DeviceClientWrapper wrapper = new DeviceClientWrapper("loopback", client, new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, 100));
+        wrapper.open();
+        Outcomes outcomes = new Outcomes(1000);
+        for(int i = 0; i < 1000; i++) {
+            wrapper.sendEventAsync(new Message("payload"), outcomes, null);
+        }
+        assertTrue(outcomes.done.await(10, TimeUnit.SECONDS));
+        wrapper.close();
+        assertEquals(outcomes.get(IotHubStatusCode.OK_EMPTY), 1000);
+        assertEquals(client.getAcceptedCount(), 1000);
+        assertEquals(client.getAcceptedBytes(), 7000);
+        assertEquals(received.size(), 1000);
+        assertNotNull(received.get(0).getProperty(IDiagnosticProvider.KEY_CORRELATION_ID));
+        assertEquals(wrapper.getStatistics().getMessagesSent(), 1000);
+        assertEquals(wrapper.getSendLatencyHistogram().getTotalCount(), 1000);
+    }
+
+    @Test
+    // Lost messages expire and sends over the throttle rate are throttled
+    public void lossAndThrottling() throws IOException, InterruptedException
+    {
+        InMemoryDeviceClient client = new InMemoryDeviceClient(IotHubClientProtocol.AMQPS, 1);
+        client.open();
+        client.setLossRate(1);
+        Outcomes lost = new Outcomes(10);
+        for(int i = 0; i < 10; i++) {
+            client.sendEventAsync(new Message("lost"), lost, null);
+        }
+        assertTrue(lost.done.await(5, TimeUnit.SECONDS));
+        assertEquals(lost.get(IotHubStatusCode.MESSAGE_EXPIRED), 10);
+        assertEquals(client.getLostCount(), 10);
+
+        client.setLossRate(0);
+        client.setThrottleRate(10);
+        Outcomes throttled = new Outcomes(50);
+        for(int i = 0; i < 50; i++) {
+            client.sendEventAsync(new Message("burst"), throttled, null);
+        }
+        assertTrue(throttled.done.await(5, TimeUnit.SECONDS));
+        int accepted = throttled.get(IotHubStatusCode.OK_EMPTY);
+        assertTrue(accepted >= 10 && accepted <= 12);
+        assertEquals(throttled.get(IotHubStatusCode.THROTTLED), 50 - accepted);
+        assertEquals(client.getThrottledCount(), 50 - accepted);
+
+        // below one message per second the bucket still holds one message
+        client.setThrottleRate(0.5);
+        Outcomes slow = new Outcomes(5);
+        for(int i = 0; i < 5; i++) {
+            client.sendEventAsync(new Message("slow"), slow, null);
+        }
+        assertTrue(slow.done.await(5, TimeUnit.SECONDS));
+        assertEquals(slow.get(IotHubStatusCode.OK_EMPTY), 1);
+        assertEquals(slow.get(IotHubStatusCode.THROTTLED), 4);
+        client.close();
+    }
+
+    @Test
+    // Closing completes pending messages as cancelled
+    public void closeCancelsPendingMessages() throws IOException
+    {
+        InMemoryDeviceClient client = new InMemoryDeviceClient();
+        client.setLatency(TimeUnit.SECONDS.toMicros(30), TimeUnit.SECONDS.toMicros(30));
+        client.open();
+        Outcomes outcomes = new Outcomes(3);
+        for(int i = 0; i < 3; i++) {
+            client.sendEventAsync(new Message("pending"), outcomes, null);
+        }
+        assertEquals(client.getPendingCount(), 3);
+        client.close();
+        assertEquals(outcomes.get(IotHubStatusCode.MESSAGE_CANCELLED_ONCLOSE), 3);
+        assertEquals(client.getCancelledCount(), 3);
+        assertEquals(client.getPendingCount(), 0);
+        try {
+            client.sendEventAsync(new Message("closed"), outcomes, null);
+            org.junit.Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    // Desired patches drive the diagnostic settings and reach the user callback, reported properties are kept
+    public void twinPatchesDriveWrapper() throws IOException, InterruptedException
+    {
+        InMemoryDeviceClient client = new InMemoryDeviceClient();
+        Map<String, Object> initial = new LinkedHashMap<String, Object>();
+        initial.put(IDiagnosticProvider.KEY_TWIN_DIAG_ENABLE, "true");
+        client.patchDesiredProperties(initial);
+        IDiagnosticProvider provider = new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Server, 20);
+        DeviceClientWrapper wrapper = new DeviceClientWrapper("twin", client, provider);
+        final ConcurrentMap<String, Object> userProperties = new ConcurrentHashMap<String, Object>();
+        final CountDownLatch userCalled = new CountDownLatch(1);
+        final CountDownLatch statusCalled = new CountDownLatch(2);
+        wrapper.startDeviceTwin(new IotHubEventCallback() {
+            public void execute(IotHubStatusCode status, Object context) {
+                statusCalled.countDown();
+            }
+        }, null, new PropertyCallBack<String, Object>() {
+            public void PropertyCall(String key, Object value, Object context) {
+                userProperties.put(key, value);
+                userCalled.countDown();
+            }
+        }, null);
+        wrapper.open();
+
+        Map<String, Object> patch = new LinkedHashMap<String, Object>();
+        patch.put(IDiagnosticProvider.KEY_TWIN_DIAG_SAMPLE_RATE, "50.0");
+        patch.put("custom", "value");
+        client.patchDesiredProperties(patch);
+        assertTrue(userCalled.await(5, TimeUnit.SECONDS));
+        assertEquals(provider.getSamplingRatePercentage(), 50);
+        assertTrue(provider.getSettings().isSamplingEnabled());
+        assertEquals(userProperties.size(), 1);
+        assertEquals(userProperties.get("custom"), "value");
+
+        Set<Property> reported = new HashSet<Property>();
+        reported.add(new Property("firmware", "1.2"));
+        wrapper.sendReportedProperties(reported);
+        assertTrue(statusCalled.await(5, TimeUnit.SECONDS));
+        assertEquals(client.getReportedProperties().get("firmware"), "1.2");
+        wrapper.close();
+    }
+
+    @Test
+    // Every diagnostic property is applied as one settings update on the delivering thread
+    public void twinPropertiesAreAppliedAsTheyArrive() throws IOException, InterruptedException
+    {
+        InMemoryDeviceClient client = new InMemoryDeviceClient();
+        final List<DiagnosticSettings> updates = Collections.synchronizedList(new ArrayList<DiagnosticSettings>());
+        IDiagnosticProvider provider = new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Server, 20) {
+            @Override
+            public boolean compareAndSetSettings(DiagnosticSettings expected, DiagnosticSettings settings) {
+                boolean set = super.compareAndSetSettings(expected, settings);
+                if(set) {
+                    updates.add(settings);
+                }
+                return set;
+            }
+        };
+        DeviceClientWrapper wrapper = new DeviceClientWrapper("patch", client, provider);
+        final CountDownLatch delivered = new CountDownLatch(1);
+        wrapper.startDeviceTwin(null, null, new PropertyCallBack<String, Object>() {
+            public void PropertyCall(String key, Object value, Object context) {
+                delivered.countDown();
+            }
+        }, null);
+        wrapper.open();
+
+        Map<String, Object> patch = new LinkedHashMap<String, Object>();
+        patch.put(IDiagnosticProvider.KEY_TWIN_DIAG_ENABLE, "true");
+        patch.put(IDiagnosticProvider.KEY_TWIN_DIAG_SAMPLE_RATE, "50.0");
+        patch.put(IDiagnosticProvider.KEY_TWIN_DIAG_SAMPLE_RULES, "type=alarm:100");
+        patch.put("custom", "last");
+        client.patchDesiredProperties(patch);
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertEquals(updates.size(), 3);
+        DiagnosticSettings settings = provider.getSettings();
+        assertTrue(settings.isServerSamplingTurnedOn());
+        assertEquals(settings.getSamplingRatePercentage(), 50);
+        assertEquals(settings.getSamplingRules().getRules().size(), 1);
+        wrapper.close();
+    }
+
+    @Test
+    // A provider that fails to take a twin property does not stop the later properties
+    public void twinUpdateFailureIsContained() throws IOException, InterruptedException
+    {
+        InMemoryDeviceClient client = new InMemoryDeviceClient();
+        final int[] percentage = {0};
+        IDiagnosticProvider provider = new IDiagnosticProvider() {
+            public Message Process(Message message) {
+                return message;
+            }
+            public boolean NeedSampling() {
+                return false;
+            }
+            public SamplingRateSource getSamplingRateSource() {
+                return SamplingRateSource.Server;
+            }
+            public void setSamplingRateSource(SamplingRateSource samplingRateSource) {
+            }
+            public int getSamplingRatePercentage() {
+                return percentage[0];
+            }
+            public void setSamplingRatePercentage(int samplingRatePercentage) {
+                percentage[0] = samplingRatePercentage;
+            }
+            public void setServerSamplingTurnedOn(boolean on) {
+                throw new IllegalStateException("switch is read only");
+            }
+            public boolean isServerSamplingTurnedOn() {
+                return false;
+            }
+        };
+        DeviceClientWrapper wrapper = new DeviceClientWrapper("failing", client, provider);
+        final CountDownLatch delivered = new CountDownLatch(1);
+        wrapper.startDeviceTwin(null, null, new PropertyCallBack<String, Object>() {
+            public void PropertyCall(String key, Object value, Object context) {
+                delivered.countDown();
+            }
+        }, null);
+        wrapper.open();
+
+        Map<String, Object> patch = new LinkedHashMap<String, Object>();
+        patch.put(IDiagnosticProvider.KEY_TWIN_DIAG_ENABLE, "true");
+        patch.put(IDiagnosticProvider.KEY_TWIN_DIAG_SAMPLE_RULES, "type=alarm:100");
+        patch.put(IDiagnosticProvider.KEY_TWIN_DIAG_SAMPLE_RATE, "50.0");
+        patch.put("custom", "last");
+        client.patchDesiredProperties(patch);
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertEquals(percentage[0], 50);
+        assertEquals(provider.getSamplingRules(), SamplingRules.NONE);
+        wrapper.close();
+    }
+
+    @Test
+    // With the send pipeline, messages are journaled once, before they are queued
+    public void sendPipelineJournalsBeforeQueuing() throws IOException, InterruptedException
+    {
+        InMemoryDeviceClient client = new InMemoryDeviceClient();
+        DeviceClientWrapper wrapper = new DeviceClientWrapper("journal", client, new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, 100));
+        wrapper.enableSendPipeline(16, 1, SendPipeline.OverflowPolicy.BLOCK);
+        wrapper.enableStoreAndForward(Files.createTempDirectory("journal").toFile(), 1024 * 1024, 16 * 1024 * 1024, 1000);
+        wrapper.open();
+        OutboundJournal journal = wrapper.getStoreAndForward().getJournal();
+
+        Outcomes outcomes = new Outcomes(10);
+        for(int i = 0; i < 10; i++) {
+            wrapper.sendEventAsync(new Message("body"), outcomes, null);
+        }
+        assertEquals(journal.getNextSequence(), 10);
+        assertTrue(outcomes.done.await(5, TimeUnit.SECONDS));
+        assertEquals(outcomes.get(IotHubStatusCode.OK_EMPTY), 10);
+        assertEquals(journal.getNextSequence(), 10);
+        assertEquals(journal.getPendingCount(), 0);
+        assertEquals(wrapper.getStatistics().getCallbackOutcome(IotHubStatusCode.OK_EMPTY), 10);
+        wrapper.close();
+    }
+
+    @Test
+    // Messages queued with store and forward are journaled with their stamps and replayed with them
+    public void sendPipelineReplaysStampedMessages() throws IOException, InterruptedException
+    {
+        File directory = Files.createTempDirectory("journal").toFile();
+        InMemoryDeviceClient client = new InMemoryDeviceClient();
+        client.setLatency(TimeUnit.SECONDS.toMicros(30), TimeUnit.SECONDS.toMicros(30));
+        DeviceClientWrapper wrapper = new DeviceClientWrapper("restart", client, new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, 100));
+        wrapper.enableSendPipeline(16, 1, SendPipeline.OverflowPolicy.BLOCK);
+        wrapper.enableStoreAndForward(directory, 1024 * 1024, 16 * 1024 * 1024, 1000);
+        wrapper.open();
+        for(int i = 0; i < 3; i++) {
+            wrapper.sendEventAsync(new Message("body"), null, null);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(client.getPendingCount() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(client.getPendingCount(), 3);
+        // the client cancels the pending sends, which stay journaled
+        wrapper.close();
+
+        InMemoryDeviceClient restarted = new InMemoryDeviceClient();
+        final List<Message> received = Collections.synchronizedList(new ArrayList<Message>());
+        final CountDownLatch replayed = new CountDownLatch(3);
+        restarted.setReceiver(new InMemoryDeviceClient.Receiver() {
+            public void receive(Message message) {
+                received.add(message);
+                replayed.countDown();
+            }
+        });
+        DeviceClientWrapper next = new DeviceClientWrapper("restart", restarted, new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, 0));
+        next.enableSendPipeline(16, 1, SendPipeline.OverflowPolicy.BLOCK);
+        next.enableStoreAndForward(directory, 1024 * 1024, 16 * 1024 * 1024, 1000);
+        next.open();
+        assertTrue(replayed.await(5, TimeUnit.SECONDS));
+        next.close();
+        assertEquals(received.size(), 3);
+        for(Message message : received) {
+            assertNotNull(message.getProperty(IDiagnosticProvider.KEY_CORRELATION_ID));
+        }
+    }
+
+    @Test
+    // A message the pipeline drops is acknowledged in the journal and not resent
+    public void droppedMessagesAreNotRetried() throws IOException, InterruptedException
+    {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        InMemoryDeviceClient client = new InMemoryDeviceClient() {
+            public void sendEventAsync(Message message, IotHubEventCallback callback, Object callbackContext) {
+                sending.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.sendEventAsync(message, callback, callbackContext);
+            }
+        };
+        DeviceClientWrapper wrapper = new DeviceClientWrapper("drop", client, new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, 100));
+        wrapper.enableSendPipeline(1, 1, SendPipeline.OverflowPolicy.DROP_NEWEST);
+        wrapper.enableStoreAndForward(Files.createTempDirectory("journal").toFile(), 1024 * 1024, 16 * 1024 * 1024, 1000);
+        wrapper.open();
+        OutboundJournal journal = wrapper.getStoreAndForward().getJournal();
+
+        Outcomes outcomes = new Outcomes(3);
+        wrapper.sendEventAsync(new Message("sending"), outcomes, null);
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        wrapper.sendEventAsync(new Message("queued"), outcomes, null);
+        wrapper.sendEventAsync(new Message("dropped"), outcomes, null);
+        assertEquals(outcomes.get(IotHubStatusCode.ERROR), 1);
+        release.countDown();
+        assertTrue(outcomes.done.await(5, TimeUnit.SECONDS));
+        assertEquals(outcomes.get(IotHubStatusCode.OK_EMPTY), 2);
+        assertEquals(client.getAcceptedCount(), 2);
+        assertEquals(journal.getPendingCount(), 0);
+        assertEquals(wrapper.getStoreAndForward().getRetriedCount(), 0);
+        assertEquals(wrapper.getSendPipeline().getRejectedCount(), 1);
+        wrapper.close();
+    }
+
+    @Test
+    // The callback executor created by the wrapper is shut down on close and replaced on open
+    public void ownedCallbackExecutorFollowsTheWrapper() throws IOException, InterruptedException
+    {
+        InMemoryDeviceClient client = new InMemoryDeviceClient();
+        DeviceClientWrapper wrapper = new DeviceClientWrapper("callbacks", client, new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, 0));
+        CallbackDispatcher first = wrapper.enableCallbackDispatch();
+        wrapper.open();
+        wrapper.close();
+        final AtomicInteger ran = new AtomicInteger();
+        first.dispatch("late", new Runnable() {
+            public void run() {
+                ran.incrementAndGet();
+            }
+        });
+        assertEquals(ran.get(), 1);
+        assertEquals(first.getRejectedCount(), 1);
+
+        wrapper.open();
+        final CountDownLatch done = new CountDownLatch(1);
+        wrapper.sendEventAsync(new Message("again"), new IotHubEventCallback() {
+            public void execute(IotHubStatusCode status, Object context) {
+                done.countDown();
+            }
+        }, null);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(wrapper.getCallbackDispatcher() != first);
+        assertEquals(wrapper.getCallbackDispatcher().getRejectedCount(), 0);
+        wrapper.close();
+    }
+
+    @Test
+    // The send pipeline is recreated when a closed wrapper is opened again
+    public void sendPipelineSurvivesReopen() throws IOException, InterruptedException
+    {
+        InMemoryDeviceClient client = new InMemoryDeviceClient();
+        DeviceClientWrapper wrapper = new DeviceClientWrapper("reopen", client, new ContinuousDiagnosticProvider(IDiagnosticProvider.SamplingRateSource.Client, 0));
+        SendPipeline first = wrapper.enableSendPipeline(16, 1, SendPipeline.OverflowPolicy.BLOCK);
+        wrapper.open();
+        wrapper.close();
+        assertTrue(first.isClosed());
+        wrapper.open();
+        Outcomes outcomes = new Outcomes(1);
+        wrapper.sendEventAsync(new Message("again"), outcomes, null);
+        assertTrue(outcomes.done.await(5, TimeUnit.SECONDS));
+        assertEquals(outcomes.get(IotHubStatusCode.OK_EMPTY), 1);
+        assertTrue(wrapper.getSendPipeline() != first);
+        wrapper.close();
+    }
+
+}
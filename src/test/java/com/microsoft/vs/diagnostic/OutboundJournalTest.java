@@ -0,0 +1,266 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundJournalTest {
+
+    @Test
+    // Journaled messages survive a restart with their diagnostic stamps
+    public void messagesSurviveRestart() throws IOException, InterruptedException
+    {
+        File directory = tempDirectory();
+        OutboundJournal journal = new OutboundJournal(directory, 1024, 1024 * 1024);
+        journal.append(new Message("delivered"));
+        Message message = new Message("payload");
+        message.setMessageId("message-1");
+        message.setProperty(IDiagnosticProvider.KEY_BEFORE_SEND_REQUEST, "2017-03-31T10:00:00.000Z");
+        message.setProperty("custom", "value");
+        journal.append(message);
+        journal.acknowledge(0);
+        journal.close();
+
+        journal = new OutboundJournal(directory, 1024, 1024 * 1024);
+        assertEquals(journal.getNextSequence(), 2);
+        assertEquals(journal.getWatermark(), 1);
+        List<Message> replayed = replayAll(journal);
+        journal.close();
+        assertEquals(replayed.size(), 1);
+        assertEquals(new String(replayed.get(0).getBytes()), "payload");
+        assertEquals(replayed.get(0).getMessageId(), "message-1");
+        assertEquals(replayed.get(0).getProperty(IDiagnosticProvider.KEY_BEFORE_SEND_REQUEST), "2017-03-31T10:00:00.000Z");
+        assertEquals(replayed.get(0).getProperty("custom"), "value");
+    }
+
+    @Test
+    // Acknowledged segments are deleted once the watermark passes them
+    public void acknowledgedSegmentsAreDeleted() throws IOException
+    {
+        File directory = tempDirectory();
+        OutboundJournal journal = new OutboundJournal(directory, 100, 1024 * 1024);
+        for(int i = 0; i < 10; i++) {
+            journal.append(new Message("message number " + i));
+        }
+        int segments = journal.getSegmentCount();
+        assertTrue(segments > 2);
+        for(int i = 9; i >= 0; i--) {
+            journal.acknowledge(i);
+        }
+        assertEquals(journal.getWatermark(), 10);
+        assertEquals(journal.getPendingCount(), 0);
+        assertEquals(journal.getSegmentCount(), 1);
+        journal.close();
+    }
+
+    @Test
+    // A torn entry at the end of the journal is cut off on open
+    public void tornTailIsTruncated() throws IOException, InterruptedException
+    {
+        File directory = tempDirectory();
+        OutboundJournal journal = new OutboundJournal(directory, 1024, 1024 * 1024);
+        journal.append(new Message("complete"));
+        journal.append(new Message("torn"));
+        journal.close();
+        File segment = new File(directory, String.format("%020d", 0) + OutboundJournal.SEGMENT_SUFFIX);
+        RandomAccessFile raw = new RandomAccessFile(segment, "rw");
+        raw.setLength(raw.length() - 2);
+        raw.close();
+
+        journal = new OutboundJournal(directory, 1024, 1024 * 1024);
+        assertEquals(journal.getNextSequence(), 1);
+        assertEquals(journal.append(new Message("after")), 1);
+        List<Message> replayed = replayAll(journal);
+        journal.close();
+        assertEquals(replayed.size(), 2);
+        assertEquals(new String(replayed.get(1).getBytes()), "after");
+    }
+
+    @Test
+    // The oldest segments are dropped when the journal outgrows its limit
+    public void oldestSegmentsAreDroppedOverLimit() throws IOException
+    {
+        File directory = tempDirectory();
+        OutboundJournal journal = new OutboundJournal(directory, 100, 300);
+        for(int i = 0; i < 30; i++) {
+            journal.append(new Message("message number " + i));
+        }
+        assertTrue(journal.getSizeBytes() <= 300);
+        assertTrue(journal.getDroppedCount() > 0);
+        assertEquals(journal.getWatermark(), journal.getDroppedCount());
+        assertEquals(journal.getPendingCount(), 30 - journal.getDroppedCount());
+        journal.close();
+    }
+
+    @Test
+    // Messages of an earlier session are resent and transient failures are retried
+    public void storeAndForwardReplaysAndRetries() throws IOException, InterruptedException
+    {
+        File directory = tempDirectory();
+        OutboundJournal journal = new OutboundJournal(directory, 1024, 1024 * 1024);
+        journal.append(new Message("offline-1"));
+        journal.append(new Message("offline-2"));
+        journal.close();
+
+        final BlockingQueue<Object[]> sent = new LinkedBlockingQueue<Object[]>();
+        journal = new OutboundJournal(directory, 1024, 1024 * 1024);
+        StoreAndForward storeAndForward = new StoreAndForward(journal, 1000, new SendPipeline.Sink() {
+            public void send(Message message, IotHubEventCallback callback, Object callbackContext) {
+                sent.add(new Object[]{message, callback});
+            }
+        });
+        final BlockingQueue<IotHubStatusCode> outcomes = new LinkedBlockingQueue<IotHubStatusCode>();
+        IotHubEventCallback online = storeAndForward.track(new Message("online"), new IotHubEventCallback() {
+            public void execute(IotHubStatusCode status, Object context) {
+                outcomes.add(status);
+            }
+        });
+        storeAndForward.start();
+
+        Object[] first = sent.poll(5, TimeUnit.SECONDS);
+        Object[] second = sent.poll(5, TimeUnit.SECONDS);
+        assertEquals(new String(((Message) first[0]).getBytes()), "offline-1");
+        assertEquals(new String(((Message) second[0]).getBytes()), "offline-2");
+        ((IotHubEventCallback) first[1]).execute(IotHubStatusCode.OK_EMPTY, null);
+        ((IotHubEventCallback) second[1]).execute(IotHubStatusCode.OK_EMPTY, null);
+
+        online.execute(IotHubStatusCode.THROTTLED, null);
+        Object[] retry = sent.poll(5, TimeUnit.SECONDS);
+        assertEquals(new String(((Message) retry[0]).getBytes()), "online");
+        // the user only hears about the final outcome
+        assertTrue(outcomes.isEmpty());
+        ((IotHubEventCallback) retry[1]).execute(IotHubStatusCode.OK, null);
+        assertEquals(outcomes.poll(), IotHubStatusCode.OK);
+        assertTrue(outcomes.isEmpty());
+
+        assertEquals(storeAndForward.getReplayedCount(), 2);
+        assertEquals(storeAndForward.getRetriedCount(), 1);
+        assertEquals(journal.getPendingCount(), 0);
+        storeAndForward.close();
+    }
+
+    @Test
+    // A message that keeps failing is given up after the last attempt and reported once
+    public void retriesAreCapped() throws IOException, InterruptedException
+    {
+        OutboundJournal journal = new OutboundJournal(tempDirectory(), 1024, 1024 * 1024);
+        final AtomicInteger attempts = new AtomicInteger();
+        StoreAndForward storeAndForward = new StoreAndForward(journal, 1000, 3, new SendPipeline.Sink() {
+            public void send(Message message, IotHubEventCallback callback, Object callbackContext) {
+                attempts.incrementAndGet();
+                callback.execute(IotHubStatusCode.MESSAGE_EXPIRED, callbackContext);
+            }
+        }, null);
+        final BlockingQueue<Object[]> outcomes = new LinkedBlockingQueue<Object[]>();
+        IotHubEventCallback callback = storeAndForward.track(new Message("expiring"), new IotHubEventCallback() {
+            public void execute(IotHubStatusCode status, Object context) {
+                outcomes.add(new Object[]{status, context});
+            }
+        });
+        storeAndForward.start();
+        callback.execute(IotHubStatusCode.MESSAGE_EXPIRED, "context");
+
+        Object[] outcome = outcomes.poll(5, TimeUnit.SECONDS);
+        assertEquals(outcome[0], IotHubStatusCode.MESSAGE_EXPIRED);
+        assertEquals(outcome[1], "context");
+        assertEquals(attempts.get(), 2);
+        assertEquals(storeAndForward.getRetriedCount(), 2);
+        assertEquals(storeAndForward.getAbandonedCount(), 1);
+        assertEquals(journal.getPendingCount(), 0);
+        assertTrue(outcomes.isEmpty());
+        storeAndForward.close();
+    }
+
+    @Test
+    // A sink that throws does not stop the replay thread
+    public void replaySurvivesFailingSink() throws IOException, InterruptedException
+    {
+        File directory = tempDirectory();
+        OutboundJournal journal = new OutboundJournal(directory, 1024, 1024 * 1024);
+        journal.append(new Message("bad"));
+        journal.append(new Message("good"));
+        journal.close();
+
+        final BlockingQueue<IotHubStatusCode> outcomes = new LinkedBlockingQueue<IotHubStatusCode>();
+        journal = new OutboundJournal(directory, 1024, 1024 * 1024);
+        StoreAndForward storeAndForward = new StoreAndForward(journal, 1000, 1, new SendPipeline.Sink() {
+            public void send(Message message, IotHubEventCallback callback, Object callbackContext) {
+                if(new String(message.getBytes()).equals("bad")) {
+                    throw new IllegalStateException("client closed");
+                }
+                callback.execute(IotHubStatusCode.OK_EMPTY, callbackContext);
+            }
+        }, new IotHubEventCallback() {
+            public void execute(IotHubStatusCode status, Object context) {
+                outcomes.add(status);
+            }
+        });
+        storeAndForward.start();
+        assertEquals(outcomes.poll(5, TimeUnit.SECONDS), IotHubStatusCode.ERROR);
+        assertEquals(outcomes.poll(5, TimeUnit.SECONDS), IotHubStatusCode.OK_EMPTY);
+        storeAndForward.close();
+    }
+
+    @Test
+    // Closing reports pending retries as cancelled and keeps them for the next session
+    public void closeCancelsPendingRetries() throws IOException, InterruptedException
+    {
+        File directory = tempDirectory();
+        OutboundJournal journal = new OutboundJournal(directory, 1024, 1024 * 1024);
+        // a slow replay rate keeps the retry queued
+        StoreAndForward storeAndForward = new StoreAndForward(journal, 0.001, new SendPipeline.Sink() {
+            public void send(Message message, IotHubEventCallback callback, Object callbackContext) {
+            }
+        });
+        final BlockingQueue<IotHubStatusCode> outcomes = new LinkedBlockingQueue<IotHubStatusCode>();
+        IotHubEventCallback first = storeAndForward.track(new Message("first"), null);
+        IotHubEventCallback second = storeAndForward.track(new Message("second"), new IotHubEventCallback() {
+            public void execute(IotHubStatusCode status, Object context) {
+                outcomes.add(status);
+            }
+        });
+        storeAndForward.start();
+        first.execute(IotHubStatusCode.THROTTLED, null);
+        second.execute(IotHubStatusCode.THROTTLED, null);
+        storeAndForward.close();
+        assertEquals(outcomes.poll(5, TimeUnit.SECONDS), IotHubStatusCode.MESSAGE_CANCELLED_ONCLOSE);
+
+        journal = new OutboundJournal(directory, 1024, 1024 * 1024);
+        assertEquals(replayAll(journal).size(), 2);
+        journal.close();
+    }
+
+    private static List<Message> replayAll(OutboundJournal journal) throws IOException, InterruptedException {
+        final List<Message> messages = Collections.synchronizedList(new ArrayList<Message>());
+        journal.replay(journal.getWatermark(), journal.getNextSequence(), new OutboundJournal.EntryHandler() {
+            public void onEntry(long sequence, Message message) {
+                messages.add(message);
+            }
+        });
+        return messages;
+    }
+
+    private static File tempDirectory() throws IOException {
+        File directory = File.createTempFile("journal", "");
+        if(!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        directory.deleteOnExit();
+        return directory;
+    }
+}
@@ -0,0 +1,123 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SendLatencyTrackerTest {
+
+    @Test
+    // Histogram percentiles are within bucket precision
+    public void histogramPercentilesAreWithinPrecision()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+        for(long v = 1;v<=100000;v++) {
+            h.recordValue(v);
+        }
+        assertEquals(h.getTotalCount(),100000);
+        assertEquals(h.getMaxValue(),100000);
+        assertWithin(h.getP50(),50000);
+        assertWithin(h.getP99(),99000);
+        assertWithin(h.getP999(),99900);
+    }
+
+    @Test
+    // Histogram bucket bounds cover every value
+    public void histogramBucketsCoverValues()
+    {
+        long[] values = {0,1,31,32,33,63,64,1000,123456789L,Long.MAX_VALUE};
+        for(long v : values) {
+            int i = LatencyHistogram.indexOf(v);
+            assertTrue(LatencyHistogram.lowestEquivalentValue(i) <= v);
+            assertTrue(LatencyHistogram.highestEquivalentValue(i) >= v);
+        }
+    }
+
+    @Test
+    // Only sampled messages are tracked, and completion is recorded before user callback
+    public void sampledMessagesAreTrackedUntilAcknowledged()
+    {
+        SendLatencyTracker t = new SendLatencyTracker();
+        final AtomicInteger calls = new AtomicInteger();
+        IotHubEventCallback user = new IotHubEventCallback() {
+            public void execute(IotHubStatusCode status, Object context) {
+                calls.incrementAndGet();
+            }
+        };
+
+        Message unsampled = new Message("body");
+        assertSame(t.track(unsampled,user),user);
+
+        Message sampled = new Message("body");
+        sampled.setProperty(IDiagnosticProvider.KEY_CORRELATION_ID,"id-1");
+        IotHubEventCallback wrapped = t.track(sampled,user);
+        assertEquals(t.getInFlightCount(),1);
+        wrapped.execute(IotHubStatusCode.OK_EMPTY,null);
+        assertEquals(t.getInFlightCount(),0);
+        assertEquals(t.getHistogram().getTotalCount(),1);
+        assertEquals(calls.get(),1);
+    }
+
+    @Test
+    // In flight entries expire after the timeout
+    public void inFlightEntriesExpireAfterTimeout()
+    {
+        final long ms = 1000000L;
+        InFlightTable t = new InFlightTable(16,100,10);
+        long first = t.put(0);
+        long second = t.put(50*ms);
+        t.expire(105*ms);
+        assertEquals(t.size(),2);
+        t.expire(125*ms);
+        assertEquals(t.size(),1);
+        assertEquals(t.getExpiredCount(),1);
+        assertEquals(t.complete(first,130*ms),-1);
+        assertEquals(t.complete(second,130*ms),80*ms);
+        assertEquals(t.size(),0);
+        assertEquals(t.getCompletedCount(),1);
+    }
+
+    @Test
+    // In flight table keeps a fixed capacity and evicts the oldest entries
+    public void inFlightTableEvictsWhenFull()
+    {
+        InFlightTable t = new InFlightTable(4,60000);
+        long[] tickets = new long[10];
+        for(int i = 0;i<10;i++) {
+            tickets[i] = t.put(i);
+        }
+        assertEquals(t.size(),4);
+        assertEquals(t.getEvictedCount(),6);
+        assertEquals(t.complete(tickets[0],20),-1);
+        assertEquals(t.complete(tickets[9],20),11);
+        assertEquals(t.size(),3);
+    }
+
+    private static void assertWithin(long actual, long expected) {
+        assertTrue(actual + " not near " + expected, Math.abs(actual - expected) <= expected * 0.04);
+    }
+
+    @Test
+    // Failed acknowledgements are kept out of the send latency histogram
+    public void failuresAreRecordedSeparately()
+    {
+        SendLatencyTracker t = new SendLatencyTracker();
+        IotHubStatusCode[] statuses = {IotHubStatusCode.OK_EMPTY, IotHubStatusCode.OK, IotHubStatusCode.MESSAGE_EXPIRED, IotHubStatusCode.ERROR};
+        for(IotHubStatusCode status : statuses) {
+            Message sampled = new Message("body");
+            sampled.setProperty(IDiagnosticProvider.KEY_CORRELATION_ID,"id-" + status);
+            t.track(sampled,null).execute(status,null);
+        }
+        assertEquals(t.getHistogram().getTotalCount(),2);
+        assertEquals(t.getFailureHistogram().getTotalCount(),2);
+        assertEquals(t.getInFlightCount(),0);
+    }
+
+}
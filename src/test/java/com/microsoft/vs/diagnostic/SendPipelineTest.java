@@ -0,0 +1,180 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SendPipelineTest {
+
+    // Sink that holds every send until released
+    private static class GatedSink implements SendPipeline.Sink {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final Semaphore entered = new Semaphore(0);
+        final List<Object> sent = Collections.synchronizedList(new ArrayList<Object>());
+
+        public void send(Message message, IotHubEventCallback callback, Object callbackContext) {
+            entered.release();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            sent.add(callbackContext);
+        }
+    }
+
+    private static class RecordingCallback implements IotHubEventCallback {
+        final List<Object> contexts = Collections.synchronizedList(new ArrayList<Object>());
+        final AtomicInteger errors = new AtomicInteger();
+
+        public void execute(IotHubStatusCode status, Object context) {
+            if(status == IotHubStatusCode.ERROR) {
+                errors.incrementAndGet();
+                contexts.add(context);
+            }
+        }
+    }
+
+    @Test
+    // All submitted messages reach the sink
+    public void allMessagesAreSent()
+    {
+        GatedSink sink = new GatedSink();
+        sink.gate.countDown();
+        SendPipeline p = new SendPipeline(16, 2, SendPipeline.OverflowPolicy.BLOCK, sink);
+        for(int i = 0;i<100;i++) {
+            p.submit(new Message("body"), null, i);
+        }
+        p.close();
+        assertEquals(sink.sent.size(),100);
+        assertEquals(p.getSentCount(),100);
+        assertEquals(p.getRejectedCount(),0);
+    }
+
+    @Test
+    // Drop newest rejects the new message when queue is full
+    public void dropNewestRejectsNewMessage() throws InterruptedException
+    {
+        GatedSink sink = new GatedSink();
+        RecordingCallback cb = new RecordingCallback();
+        SendPipeline p = new SendPipeline(2, 1, SendPipeline.OverflowPolicy.DROP_NEWEST, sink);
+        p.submit(new Message("body"), cb, 0);
+        awaitWorkerInSink(sink); // worker holds message 0
+        for(int i = 1;i<5;i++) {
+            p.submit(new Message("body"), cb, i);
+        }
+        assertEquals(p.getQueueDepth(),2);
+        assertEquals(p.getRejectedCount(),2);
+        assertEquals(cb.contexts.get(0),3);
+        assertEquals(cb.contexts.get(1),4);
+        sink.gate.countDown();
+        p.close();
+        assertEquals(sink.sent.size(),3);
+    }
+
+    @Test
+    // Drop oldest evicts the oldest queued message when queue is full
+    public void dropOldestEvictsOldestMessage() throws InterruptedException
+    {
+        GatedSink sink = new GatedSink();
+        RecordingCallback cb = new RecordingCallback();
+        SendPipeline p = new SendPipeline(2, 1, SendPipeline.OverflowPolicy.DROP_OLDEST, sink);
+        p.submit(new Message("body"), cb, 0);
+        awaitWorkerInSink(sink);
+        for(int i = 1;i<5;i++) {
+            p.submit(new Message("body"), cb, i);
+        }
+        assertEquals(p.getRejectedCount(),2);
+        assertEquals(cb.contexts.get(0),1);
+        assertEquals(cb.contexts.get(1),2);
+        sink.gate.countDown();
+        p.close();
+        assertEquals(sink.sent.size(),3);
+        assertTrue(sink.sent.contains(4));
+    }
+
+    @Test
+    // Fail fast throws to the producer when queue is full
+    public void failFastThrowsWhenFull() throws InterruptedException
+    {
+        GatedSink sink = new GatedSink();
+        SendPipeline p = new SendPipeline(1, 1, SendPipeline.OverflowPolicy.FAIL_FAST, sink);
+        try {
+            p.submit(new Message("body"), null, 0);
+            awaitWorkerInSink(sink);
+            p.submit(new Message("body"), null, 1);
+            try {
+                p.submit(new Message("body"), null, 2);
+                org.junit.Assert.fail("Expected IllegalStateException");
+            } catch (IllegalStateException e) {
+            }
+            assertEquals(p.getRejectedCount(),1);
+        } finally {
+            sink.gate.countDown();
+            p.close();
+        }
+        assertEquals(sink.sent.size(),2);
+    }
+
+    @Test
+    // Every message accepted while the pipeline closes is either sent or called back
+    public void closeRacingProducersLosesNoMessage() throws InterruptedException
+    {
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger calledBack = new AtomicInteger();
+        final AtomicInteger accepted = new AtomicInteger();
+        final IotHubEventCallback cb = new IotHubEventCallback() {
+            public void execute(IotHubStatusCode status, Object context) {
+                calledBack.incrementAndGet();
+            }
+        };
+        final SendPipeline p = new SendPipeline(4, 2, SendPipeline.OverflowPolicy.BLOCK, new SendPipeline.Sink() {
+            public void send(Message message, IotHubEventCallback callback, Object callbackContext) {
+                sent.incrementAndGet();
+            }
+        });
+        final CountDownLatch started = new CountDownLatch(4);
+        Thread[] producers = new Thread[4];
+        for(int t = 0;t<producers.length;t++) {
+            producers[t] = new Thread(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    while(true) {
+                        try {
+                            p.submit(new Message("body"), cb, null);
+                            accepted.incrementAndGet();
+                        } catch (IllegalStateException e) {
+                            return;
+                        }
+                    }
+                }
+            });
+            producers[t].start();
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        p.close();
+        for(Thread producer : producers) {
+            producer.join(5000);
+            assertTrue(!producer.isAlive());
+        }
+        assertTrue(accepted.get() > 0);
+        assertEquals(sent.get() + calledBack.get(), accepted.get());
+        assertEquals(p.getQueueDepth(),0);
+    }
+
+    private static void awaitWorkerInSink(GatedSink sink) throws InterruptedException {
+        assertTrue(sink.entered.tryAcquire(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,129 @@
+package com.microsoft.vs.diagnostic;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TailSamplerTest {
+
+    private static class RecordingListener implements TailSampleListener {
+        final List<TailSampleEvent> events = new ArrayList<TailSampleEvent>();
+
+        public synchronized void onTailSample(TailSampleEvent event) {
+            events.add(event);
+        }
+    }
+
+    @Test
+    // Successful fast messages are not reported
+    public void successfulMessagesAreNotReported()
+    {
+        RecordingListener listener = new RecordingListener();
+        TailSampler s = new TailSampler(16, 60000, listener);
+        for(int i = 0;i<100;i++) {
+            s.track(new Message("body"), null).execute(IotHubStatusCode.OK_EMPTY, null);
+        }
+        assertEquals(listener.events.size(),0);
+    }
+
+    @Test
+    // Failed messages are reported even when not head sampled
+    public void failedMessagesAreReported()
+    {
+        RecordingListener listener = new RecordingListener();
+        TailSampler s = new TailSampler(16, 60000, listener);
+        Message m = new Message("payload");
+        m.setMessageId("m-1");
+        s.track(m, null).execute(IotHubStatusCode.THROTTLED, null);
+        assertEquals(listener.events.size(),1);
+        TailSampleEvent e = listener.events.get(0);
+        assertEquals(e.getReason(),TailSampleEvent.Reason.ERROR);
+        assertEquals(e.getStatus(),IotHubStatusCode.THROTTLED);
+        assertEquals(e.getMessageId(),"m-1");
+        assertEquals(e.getSizeBytes(),7);
+        assertNull(e.getCorrelationId());
+        assertEquals(s.getErrorCount(),1);
+    }
+
+    @Test
+    // Slow and stalled messages are reported
+    public void slowAndStalledMessagesAreReported() throws InterruptedException
+    {
+        RecordingListener listener = new RecordingListener();
+        // the timer never sweeps during the test, the test sweeps itself
+        TailSampler s = new TailSampler(4, 5, 60000, listener);
+        Message sampled = new Message("body");
+        sampled.setProperty(IDiagnosticProvider.KEY_CORRELATION_ID,"id-1");
+        IotHubEventCallback slow = s.track(sampled, null);
+        Thread.sleep(20);
+        slow.execute(IotHubStatusCode.OK_EMPTY, null);
+        assertEquals(listener.events.get(0).getReason(),TailSampleEvent.Reason.SLOW);
+        assertEquals(listener.events.get(0).getCorrelationId(),"id-1");
+
+        IotHubEventCallback stalled = s.track(new Message("body"), null);
+        s.sweep();
+        assertEquals(listener.events.size(),1);
+        Thread.sleep(20);
+        s.sweep();
+        s.sweep();
+        assertEquals(listener.events.size(),2);
+        assertEquals(listener.events.get(1).getReason(),TailSampleEvent.Reason.STALLED);
+        assertNull(listener.events.get(1).getStatus());
+
+        // a stalled message that fails later is reported again
+        stalled.execute(IotHubStatusCode.ERROR, null);
+        assertEquals(listener.events.get(2).getReason(),TailSampleEvent.Reason.ERROR);
+        assertEquals(s.getSlowCount(),1);
+        assertEquals(s.getStalledCount(),1);
+        assertEquals(s.getErrorCount(),1);
+        s.close();
+    }
+
+    @Test
+    // The timer finds stalled messages without another message being sent
+    public void stalledMessagesAreFoundByTimer() throws InterruptedException
+    {
+        final CountDownLatch reported = new CountDownLatch(1);
+        TailSampler s = new TailSampler(4, 5, 5, new TailSampleListener() {
+            public void onTailSample(TailSampleEvent event) {
+                if(event.getReason() == TailSampleEvent.Reason.STALLED) {
+                    reported.countDown();
+                }
+            }
+        });
+        s.track(new Message("body"), null);
+        assertTrue(reported.await(10, TimeUnit.SECONDS));
+        assertEquals(s.getStalledCount(),1);
+        s.close();
+    }
+
+    @Test
+    // Pending messages that lose their slot are counted, and their acknowledgement still checked
+    public void evictedMessagesAreCounted()
+    {
+        RecordingListener listener = new RecordingListener();
+        TailSampler s = new TailSampler(2, 60000, 60000, listener);
+        IotHubEventCallback first = s.track(new Message("body"), null);
+        s.track(new Message("body"), null).execute(IotHubStatusCode.OK, null);
+        s.track(new Message("body"), null);
+        assertEquals(s.getEvictedCount(),1);
+        // the second slot was free again when it was reused
+        s.track(new Message("body"), null);
+        assertEquals(s.getEvictedCount(),1);
+
+        first.execute(IotHubStatusCode.THROTTLED, null);
+        assertEquals(listener.events.size(),1);
+        assertEquals(listener.events.get(0).getReason(),TailSampleEvent.Reason.ERROR);
+        s.close();
+    }
+}